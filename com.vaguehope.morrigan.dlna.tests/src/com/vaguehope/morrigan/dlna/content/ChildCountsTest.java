@@ -0,0 +1,68 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChildCountsTest {
+
+	private ChildCounts undertest;
+	private AtomicInteger counted;
+	private ChildCounts.Counter counter;
+
+	@Before
+	public void before () throws Exception {
+		this.undertest = new ChildCounts();
+		this.counted = new AtomicInteger();
+		this.counter = new ChildCounts.Counter() {
+			@Override
+			public int count () throws Exception {
+				ChildCountsTest.this.counted.incrementAndGet();
+				return 42;
+			}
+		};
+	}
+
+	@Test
+	public void itReturnsCountPutWhenNodeWasMade () throws Exception {
+		this.undertest.put("c1", 7);
+		assertEquals(Integer.valueOf(7), this.undertest.get("c1", this.counter));
+		assertEquals(0, this.counted.get());
+	}
+
+	@Test
+	public void itOnlyReturnsKnownCountWithoutCounting () throws Exception {
+		assertNull(this.undertest.getKnown("c1"));
+		this.undertest.put("c1", 7);
+		assertEquals(Integer.valueOf(7), this.undertest.getKnown("c1"));
+	}
+
+	@Test
+	public void itCountsInBackgroundWhenNotKnown () throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		assertNull(this.undertest.get("c1", new ChildCounts.Counter() {
+			@Override
+			public int count () throws Exception {
+				done.countDown();
+				return 42;
+			}
+		}));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		Integer actual = null;
+		while (actual == null && System.nanoTime() < deadline) {
+			actual = this.undertest.get("c1", this.counter);
+			if (actual == null) Thread.sleep(10);
+		}
+		assertEquals(Integer.valueOf(42), actual);
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.fourthline.cling.support.model.Protocol;
+import org.fourthline.cling.support.model.ProtocolInfo;
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.item.AudioItem;
+import org.fourthline.cling.support.model.item.ImageItem;
+import org.fourthline.cling.support.model.item.Item;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaguehope.morrigan.dlna.players.SinkProtocols;
+
+public class ClientResourcesTest {
+
+	private Item item;
+
+	@Before
+	public void before () throws Exception {
+		this.item = new AudioItem("id", "parent", "title", "", res("audio/flac", "http://h/id"));
+		this.item.addResource(res("audio/mpeg", "http://h/id/MP3"));
+		this.item.addResource(res("image/jpeg", "http://h/art"));
+	}
+
+	@Test
+	public void itLeavesItemAloneForUnknownClient () throws Exception {
+		assertSame(this.item, ClientResources.ANY.apply(this.item));
+		assertSame(this.item, ClientResources.forSink(null).apply(this.item));
+	}
+
+	@Test
+	public void itLeavesItemAloneWhenClientAcceptsOriginal () throws Exception {
+		final ClientResources undertest = ClientResources.forSink(SinkProtocols.parse("http-get:*:audio/*:*"));
+		assertSame(this.item, undertest.apply(this.item));
+	}
+
+	@Test
+	public void itMovesAcceptedTranscodeFirstWithoutChangingOriginal () throws Exception {
+		final ClientResources undertest = ClientResources.forSink(SinkProtocols.parse("http-get:*:audio/mpeg:*,http-get:*:image/jpeg:*"));
+		final Item actual = undertest.apply(this.item);
+		assertNotSame(this.item, actual);
+		assertEquals(Arrays.asList("http://h/id/MP3", "http://h/id", "http://h/art"), uris(actual));
+		assertEquals(Arrays.asList("http://h/id", "http://h/id/MP3", "http://h/art"), uris(this.item));
+	}
+
+	@Test
+	public void itDoesNotPromoteArtInPlaceOfMedia () throws Exception {
+		final ClientResources undertest = ClientResources.forSink(SinkProtocols.parse("http-get:*:image/jpeg:*"));
+		assertSame(this.item, undertest.apply(this.item));
+	}
+
+	@Test
+	public void itDoesNotPromoteThumbnailInPlaceOfImage () throws Exception {
+		final Item image = new ImageItem("id", "parent", "title", "", res("image/png", "http://h/id"));
+		image.addResource(new Res(new ProtocolInfo(DlnaImageProfile.JPEG_TN.getProtocolInfo()), null, "http://h/id/JPEG_TN"));
+		image.addResource(new Res(new ProtocolInfo(DlnaImageProfile.JPEG_SM.getProtocolInfo()), null, "http://h/id/JPEG_SM"));
+		final ClientResources undertest = ClientResources.forSink(SinkProtocols.parse("http-get:*:image/jpeg:*"));
+		assertSame(image, undertest.apply(image));
+	}
+
+	@Test
+	public void itOnlyCopiesListWhenSomethingChanged () throws Exception {
+		final List<Item> items = Arrays.asList(this.item);
+		assertSame(items, ClientResources.forSink(SinkProtocols.parse("http-get:*:audio/flac:*")).apply(items));
+		assertNotSame(items, ClientResources.forSink(SinkProtocols.parse("http-get:*:audio/mpeg:*")).apply(items));
+	}
+
+	private static Res res (final String mime, final String uri) {
+		return new Res(new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, mime, ProtocolInfo.WILDCARD), null, uri);
+	}
+
+	private static List<String> uris (final Item item) {
+		final String[] ret = new String[item.getResources().size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = item.getResources().get(i).getValue();
+		}
+		return Arrays.asList(ret);
+	}
+
+}
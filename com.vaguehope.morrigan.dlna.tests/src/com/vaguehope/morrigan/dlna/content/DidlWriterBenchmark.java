@@ -0,0 +1,97 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.fourthline.cling.support.contentdirectory.DIDLParser;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.Protocol;
+import org.fourthline.cling.support.model.ProtocolInfo;
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.container.Container;
+import org.fourthline.cling.support.model.item.AudioItem;
+import org.fourthline.cling.support.model.item.Item;
+
+/**
+ * Compares DIDLParser.generate() with DidlWriter for a full Browse page of items,
+ * and with DidlWriter assembling the page from cached item fragments as repeat Browses do.
+ * Not a unit test, run main() by hand, ideally with -verbose:gc to see the garbage difference:
+ * args: [items per page] [pages]
+ */
+public final class DidlWriterBenchmark {
+
+	private static final int DEFAULT_ITEMS = 1000;
+	private static final int DEFAULT_PAGES = 200;
+
+	private DidlWriterBenchmark () {
+		throw new AssertionError();
+	}
+
+	public static void main (final String[] args) throws Exception {
+		final int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITEMS;
+		final int pages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+
+		final List<Item> items = makeItems(itemCount);
+		final DIDLContent didl = new DIDLContent();
+		didl.setItems(items);
+
+		for (int round = 0; round < 2; round++) { // First round is warm up.
+			final boolean report = round > 0;
+
+			long chars = 0;
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < pages; i++) {
+				chars += new DIDLParser().generate(didl).length();
+			}
+			report("DIDLParser", startNanos, pages, chars, report);
+
+			chars = 0;
+			startNanos = System.nanoTime();
+			for (int i = 0; i < pages; i++) {
+				chars += DidlWriter.write(Collections.<Container> emptyList(), items).length();
+			}
+			report("DidlWriter", startNanos, pages, chars, report);
+
+			final ItemFragments fragments = new ItemFragments();
+			chars = 0;
+			startNanos = System.nanoTime();
+			for (int i = 0; i < pages; i++) {
+				chars += DidlWriter.write(Collections.<Container> emptyList(), items, "c0123", fragments, ClientResources.ANY, DidlFilter.ALL).length();
+			}
+			report("Fragments", startNanos, pages, chars, report);
+		}
+	}
+
+	private static void report (final String name, final long startNanos, final int pages, final long chars, final boolean report) {
+		if (!report) return;
+		final double millisPerPage = (System.nanoTime() - startNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1) / pages;
+		System.out.println(String.format("%-12s %8.3f ms/page  %8d chars/page", name, millisPerPage, chars / pages));
+	}
+
+	/**
+	 * Shaped like what ContentAdaptor makes: original, MP3 transcode and art res, date, description and art URI.
+	 */
+	private static List<Item> makeItems (final int count) {
+		final List<Item> ret = new ArrayList<Item>();
+		for (int i = 0; i < count; i++) {
+			final String id = "m0123456789abcdef" + i;
+			final Res res = new Res(new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, "audio/flac", "DLNA.ORG_OP=11"),
+					Long.valueOf(30000000L + i), "http://10.20.30.40:12345/" + id);
+			res.setDuration("0:04:12.000");
+			final Item item = new AudioItem(id, "c0123", "Some Artist - Some Track & Title " + i, "", res);
+			item.addProperty(new DIDLObject.Property.DC.DATE("2015-06-07T08:09:10+0000"));
+			item.addResource(new Res(new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, "audio/mpeg", "DLNA.ORG_PN=MP3;DLNA.ORG_OP=00;DLNA.ORG_CI=1"),
+					null, "http://10.20.30.40:12345/" + id + "/MP3"));
+			item.addResource(new Res(new ProtocolInfo("http-get:*:image/jpeg:*"), Long.valueOf(45678), "http://10.20.30.40:12345/a" + id));
+			item.addProperty(new DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create("http://10.20.30.40:12345/a" + id + "/JPEG_TN")));
+			item.addProperty(new DIDLObject.Property.DC.DESCRIPTION("tags: rock, 90s, favourite"));
+			ret.add(item);
+		}
+		return ret;
+	}
+
+}
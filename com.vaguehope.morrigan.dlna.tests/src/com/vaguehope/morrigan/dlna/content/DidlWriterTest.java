@@ -0,0 +1,198 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.fourthline.cling.support.contentdirectory.DIDLParser;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.Protocol;
+import org.fourthline.cling.support.model.ProtocolInfo;
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.WriteStatus;
+import org.fourthline.cling.support.model.container.Container;
+import org.fourthline.cling.support.model.item.AudioItem;
+import org.fourthline.cling.support.model.item.Item;
+import org.junit.Test;
+
+public class DidlWriterTest {
+
+	@Test
+	public void itWritesWhatDidlParserWrites () throws Exception {
+		final List<Container> containers = Arrays.asList(container("c1", "Tags & <Things>"), container("c2", "Albums"));
+		final List<Item> items = Arrays.asList(item("i1", "Track \"one\""), item("i2", "Track two"));
+
+		final DIDLContent expected = new DIDLContent();
+		expected.setContainers(containers);
+		expected.setItems(items);
+
+		final DIDLParser parser = new DIDLParser();
+		assertSameContent(parser.parse(parser.generate(expected)), parser.parse(DidlWriter.write(containers, items)));
+	}
+
+	@Test
+	public void itWritesEmptyPage () throws Exception {
+		final DIDLContent actual = new DIDLParser().parse(DidlWriter.write(Collections.<Container> emptyList(), Collections.<Item> emptyList()));
+		assertEquals(0, actual.getContainers().size());
+		assertEquals(0, actual.getItems().size());
+	}
+
+	@Test
+	public void itDoesNotCarryOverPreviousOutput () throws Exception {
+		DidlWriter.write(Collections.<Container> emptyList(), Arrays.asList(item("i1", "One"), item("i2", "Two")));
+		final String second = DidlWriter.write(item("i3", "Three"));
+		assertTrue(second, second.startsWith("<DIDL-Lite"));
+		assertEquals(1, new DIDLParser().parse(second).getItems().size());
+	}
+
+	@Test
+	public void itWritesItemFragmentsWithPageParentId () throws Exception {
+		final List<Container> containers = Arrays.asList(container("c1", "Tags"));
+		final List<Item> items = Arrays.asList(item("i1", "One"), item("i2", "Two"));
+		final ItemFragments fragments = new ItemFragments();
+
+		final DIDLContent actual = new DIDLParser().parse(DidlWriter.write(containers, items, "p&\"1\"", fragments, ClientResources.ANY, DidlFilter.ALL));
+		assertEquals(1, actual.getContainers().size());
+		assertEquals("0", actual.getContainers().get(0).getParentID());
+		assertEquals(2, actual.getItems().size());
+		for (int i = 0; i < items.size(); i++) {
+			assertEquals("p&\"1\"", actual.getItems().get(i).getParentID());
+			assertEquals(items.get(i).getId(), actual.getItems().get(i).getId());
+			assertEquals(items.get(i).getTitle(), actual.getItems().get(i).getTitle());
+			assertEquals(items.get(i).getResources().size(), actual.getItems().get(i).getResources().size());
+		}
+	}
+
+	@Test
+	public void itReusesFragmentOnlyForSameItemInstance () throws Exception {
+		final ItemFragments undertest = new ItemFragments();
+		final Item item = item("i1", "One");
+		final String first = undertest.get(item, ClientResources.ANY, DidlFilter.ALL);
+		assertTrue(first, first.startsWith("<item "));
+		assertSame(first, undertest.get(item, ClientResources.ANY, DidlFilter.ALL));
+		assertNotSame(first, undertest.get(item("i1", "One"), ClientResources.ANY, DidlFilter.ALL));
+	}
+
+	@Test
+	public void itWritesOnlyRequiredPropertiesForNarrowFilter () throws Exception {
+		final DidlFilter filter = DidlFilter.parse("dc:title,upnp:class");
+		final String didl = DidlWriter.write(Arrays.asList(container("c1", "Tags")), Arrays.asList(item("i1", "One")), filter);
+		final DIDLContent actual = new DIDLParser().parse(didl);
+		assertEquals("Tags", actual.getContainers().get(0).getTitle());
+		assertNull(actual.getContainers().get(0).getChildCount());
+		assertEquals(0, actual.getContainers().get(0).getProperties().size());
+		assertEquals("One", actual.getItems().get(0).getTitle());
+		assertEquals("object.item.audioItem", actual.getItems().get(0).getClazz().getValue());
+		assertEquals(0, actual.getItems().get(0).getProperties().size());
+		assertEquals(0, actual.getItems().get(0).getResources().size());
+		assertFalse(filter.needsItemDetail());
+	}
+
+	@Test
+	public void itWritesOnlyRequestedResAttributes () throws Exception {
+		final DidlFilter filter = DidlFilter.parse("res@size, dc:date, @childCount");
+		final DIDLContent actual = new DIDLParser().parse(DidlWriter.write(Arrays.asList(container("c1", "Tags")), Arrays.asList(item("i1", "One")), filter));
+		assertEquals(Integer.valueOf(3), actual.getContainers().get(0).getChildCount());
+		final Item item = actual.getItems().get(0);
+		assertEquals(1, item.getProperties().size());
+		assertEquals("dc:date", "dc:" + item.getProperties().get(0).getDescriptorName());
+		assertEquals(2, item.getResources().size());
+		assertEquals(Long.valueOf(1234), item.getResources().get(0).getSize());
+		assertNull(item.getResources().get(0).getDuration());
+		assertTrue(filter.needsItemDetail());
+	}
+
+	@Test
+	public void itTreatsEmptyAndStarFilterAsAll () throws Exception {
+		assertSame(DidlFilter.ALL, DidlFilter.parse(""));
+		assertSame(DidlFilter.ALL, DidlFilter.parse(null));
+		assertSame(DidlFilter.ALL, DidlFilter.parse("dc:title,*"));
+		assertEquals("", DidlFilter.ALL.key());
+		assertEquals(DidlFilter.parse("upnp:class,dc:title").key(), DidlFilter.parse("dc:title, upnp:class").key());
+	}
+
+	@Test
+	public void itKeepsFragmentsPerFilter () throws Exception {
+		final ItemFragments undertest = new ItemFragments();
+		final Item item = item("i1", "One");
+		final String all = undertest.get(item, ClientResources.ANY, DidlFilter.ALL);
+		final String narrow = undertest.get(item, ClientResources.ANY, DidlFilter.parse("dc:title"));
+		assertTrue(all, all.contains("<res"));
+		assertFalse(narrow, narrow.contains("<res"));
+		assertSame(all, undertest.get(item, ClientResources.ANY, DidlFilter.ALL));
+	}
+
+	private static void assertSameContent (final DIDLContent expected, final DIDLContent actual) {
+		assertEquals(expected.getContainers().size(), actual.getContainers().size());
+		for (int i = 0; i < expected.getContainers().size(); i++) {
+			final Container e = expected.getContainers().get(i);
+			final Container a = actual.getContainers().get(i);
+			assertSameObject(e, a);
+			assertEquals(e.getChildCount(), a.getChildCount());
+			assertEquals(e.isSearchable(), a.isSearchable());
+		}
+		assertEquals(expected.getItems().size(), actual.getItems().size());
+		for (int i = 0; i < expected.getItems().size(); i++) {
+			assertSameObject(expected.getItems().get(i), actual.getItems().get(i));
+		}
+	}
+
+	private static void assertSameObject (final DIDLObject expected, final DIDLObject actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getParentID(), actual.getParentID());
+		assertEquals(expected.getTitle(), actual.getTitle());
+		assertEquals(expected.getCreator(), actual.getCreator());
+		assertEquals(expected.isRestricted(), actual.isRestricted());
+		assertEquals(expected.getWriteStatus(), actual.getWriteStatus());
+		assertEquals(expected.getClazz().getValue(), actual.getClazz().getValue());
+		assertEquals(expected.getProperties().size(), actual.getProperties().size());
+		for (int i = 0; i < expected.getProperties().size(); i++) {
+			assertEquals(expected.getProperties().get(i).getDescriptorName(), actual.getProperties().get(i).getDescriptorName());
+			assertEquals(String.valueOf(expected.getProperties().get(i).getValue()), String.valueOf(actual.getProperties().get(i).getValue()));
+		}
+		assertEquals(expected.getResources().size(), actual.getResources().size());
+		for (int i = 0; i < expected.getResources().size(); i++) {
+			final Res e = expected.getResources().get(i);
+			final Res a = actual.getResources().get(i);
+			assertEquals(e.getValue(), a.getValue());
+			assertEquals(e.getProtocolInfo().toString(), a.getProtocolInfo().toString());
+			assertEquals(e.getSize(), a.getSize());
+			assertEquals(e.getDuration(), a.getDuration());
+			assertEquals(e.getResolution(), a.getResolution());
+		}
+	}
+
+	private static Container container (final String id, final String title) {
+		final Container c = new Container();
+		c.setClazz(new DIDLObject.Class("object.container"));
+		c.setId(id);
+		c.setParentID("0");
+		c.setTitle(title);
+		c.setRestricted(true);
+		c.setSearchable(true);
+		c.setWriteStatus(WriteStatus.NOT_WRITABLE);
+		c.setChildCount(Integer.valueOf(3));
+		c.addProperty(new DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create("http://h/art/" + id)));
+		return c;
+	}
+
+	private static Item item (final String id, final String title) {
+		final Res res = new Res(new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, "audio/flac", "DLNA.ORG_OP=11"), Long.valueOf(1234), "http://h/" + id);
+		res.setDuration("0:03:21.000");
+		final Item item = new AudioItem(id, "c1", title, "", res);
+		item.addResource(new Res(new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, "audio/mpeg", "DLNA.ORG_PN=MP3;DLNA.ORG_OP=00;DLNA.ORG_CI=1"), null, "http://h/" + id + "/MP3"));
+		item.addProperty(new DIDLObject.Property.DC.DATE("2020-01-02T03:04:05+0000"));
+		item.addProperty(new DIDLObject.Property.DC.DESCRIPTION("tags: a, b & c"));
+		return item;
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FallbackFileRegistryTest {
+
+	private File journal;
+
+	@Before
+	public void before () throws Exception {
+		this.journal = File.createTempFile("fallback-ids", ".journal");
+		if (!this.journal.delete()) throw new IOException("Failed to delete: " + this.journal);
+	}
+
+	@After
+	public void after () throws Exception {
+		this.journal.delete();
+	}
+
+	@Test
+	public void itReloadsEntriesAfterRestart () throws Exception {
+		final FallbackFileRegistry undertest = new FallbackFileRegistry(this.journal, 10);
+		undertest.put("id-a", new File("/music/a.mp3"));
+		undertest.put("id-b", new File("/music/b.mp3"));
+
+		final FallbackFileRegistry reloaded = new FallbackFileRegistry(this.journal, 10);
+		assertEquals(new File("/music/a.mp3"), reloaded.get("id-a"));
+		assertEquals(new File("/music/b.mp3"), reloaded.get("id-b"));
+		assertNull(reloaded.get("id-c"));
+	}
+
+	@Test
+	public void itEvictsLeastRecentlyUsed () throws Exception {
+		final FallbackFileRegistry undertest = new FallbackFileRegistry(this.journal, 2);
+		undertest.put("id-a", new File("/music/a.mp3"));
+		undertest.put("id-b", new File("/music/b.mp3"));
+		undertest.get("id-a");
+		undertest.put("id-c", new File("/music/c.mp3"));
+
+		assertEquals(2, undertest.size());
+		assertNull(undertest.get("id-b"));
+		assertEquals(new File("/music/a.mp3"), undertest.get("id-a"));
+	}
+
+	@Test
+	public void itKeepsTheJournalBounded () throws Exception {
+		final FallbackFileRegistry undertest = new FallbackFileRegistry(this.journal, 5);
+		for (int i = 0; i < 100; i++) {
+			undertest.put("id-" + i, new File("/music/" + i + ".mp3"));
+		}
+		assertEquals(5, undertest.size());
+		assertTrue(countLines(this.journal) <= 10);
+
+		final FallbackFileRegistry reloaded = new FallbackFileRegistry(this.journal, 5);
+		assertEquals(5, reloaded.size());
+		assertEquals(new File("/music/99.mp3"), reloaded.get("id-99"));
+		assertEquals(5, countLines(this.journal));
+	}
+
+	@Test
+	public void itDoesNotRewriteUnchangedEntries () throws Exception {
+		final FallbackFileRegistry undertest = new FallbackFileRegistry(this.journal, 10);
+		undertest.put("id-a", new File("/music/a.mp3"));
+		undertest.put("id-a", new File("/music/a.mp3"));
+		assertEquals(1, countLines(this.journal));
+	}
+
+	private static int countLines (final File f) throws IOException {
+		final BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			int n = 0;
+			while (r.readLine() != null) {
+				n++;
+			}
+			return n;
+		}
+		finally {
+			r.close();
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageDerivativesTest {
+
+	private File tmpDir;
+	private ImageDerivatives undertest;
+
+	@Before
+	public void before () throws Exception {
+		this.tmpDir = File.createTempFile("image-derivatives", "");
+		if (!this.tmpDir.delete() || !this.tmpDir.mkdir()) throw new IOException("Failed to make dir: " + this.tmpDir);
+		this.undertest = new ImageDerivatives(new File(this.tmpDir, "cache"));
+	}
+
+	@After
+	public void after () throws Exception {
+		deleteRecursive(this.tmpDir);
+	}
+
+	@Test
+	public void itScalesToFitEachProfile () throws Exception {
+		final File src = writePng(1000, 800);
+		assertSize(160, 128, this.undertest.derive(src, DlnaImageProfile.JPEG_TN));
+		assertSize(600, 480, this.undertest.derive(src, DlnaImageProfile.JPEG_SM));
+	}
+
+	@Test
+	public void itDoesNotEnlargeSmallImages () throws Exception {
+		assertSize(100, 50, this.undertest.derive(writePng(100, 50), DlnaImageProfile.JPEG_SM));
+	}
+
+	@Test
+	public void itReusesCachedDerivative () throws Exception {
+		final File src = writePng(400, 400);
+		final File first = this.undertest.derive(src, DlnaImageProfile.JPEG_TN);
+		final long mtime = first.lastModified();
+		final File second = this.undertest.derive(src, DlnaImageProfile.JPEG_TN);
+		assertEquals(first, second);
+		assertEquals(mtime, second.lastModified());
+	}
+
+	@Test
+	public void itDeletesUnusedDerivativesOnStart () throws Exception {
+		final File src = writePng(400, 400);
+		final File used = this.undertest.derive(src, DlnaImageProfile.JPEG_TN);
+		final File unused = this.undertest.derive(src, DlnaImageProfile.JPEG_SM);
+		unused.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(60));
+		final File tmp = new File(used.getParentFile(), "partial.jpg.tmp");
+		tmp.createNewFile();
+
+		new ImageDerivatives(used.getParentFile());
+		assertTrue(used.exists());
+		assertFalse(unused.exists());
+		assertFalse(tmp.exists());
+	}
+
+	@Test
+	public void itReturnsNullForNonImages () throws Exception {
+		final File src = new File(this.tmpDir, "not-an-image.jpg");
+		final FileOutputStream os = new FileOutputStream(src);
+		try {
+			os.write("hello".getBytes("UTF-8"));
+		}
+		finally {
+			os.close();
+		}
+		assertNull(this.undertest.derive(src, DlnaImageProfile.JPEG_TN));
+	}
+
+	@Test
+	public void itParsesProfileIdSuffixes () throws Exception {
+		final String id = DlnaImageProfile.JPEG_TN.idFor("ia1.abc.def.xyz");
+		assertSame(DlnaImageProfile.JPEG_TN, DlnaImageProfile.forId(id));
+		assertEquals("ia1.abc.def.xyz", DlnaImageProfile.JPEG_TN.baseIdOf(id));
+		assertNull(DlnaImageProfile.forId("ia1.abc.def.xyz"));
+		assertNull(DlnaImageProfile.forId("/JPEG_TN"));
+	}
+
+	private File writePng (final int width, final int height) throws IOException {
+		final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		final File f = new File(this.tmpDir, String.format("src-%sx%s.png", width, height));
+		ImageIO.write(img, "png", f);
+		return f;
+	}
+
+	private static void assertSize (final int width, final int height, final File f) throws IOException {
+		final BufferedImage img = ImageIO.read(f);
+		assertEquals(width, img.getWidth());
+		assertEquals(height, img.getHeight());
+	}
+
+	private static void deleteRecursive (final File f) {
+		final File[] children = f.listFiles();
+		if (children != null) {
+			for (final File c : children) {
+				deleteRecursive(c);
+			}
+		}
+		f.delete();
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Kind;
+
+public class MediaFileLocatorTest {
+
+	@Test
+	public void itTakesDbRefFromCurrentIdsWithOrWithoutSuffix () throws Exception {
+		final String db = ObjectIdCodec.dbShortId("/some/db.sqlite");
+		final String id = ObjectIdCodec.encode(Kind.ITEM, db, ObjectIdCodec.encodeHash(BigInteger.valueOf(123456789L)));
+		assertEquals(db, MediaFileLocator.dbRefOf(id));
+		assertEquals(db, MediaFileLocator.dbRefOf(id + "/JPEG_TN"));
+		assertEquals(db, MediaFileLocator.dbRefOf(id + "/MP3"));
+	}
+
+	@Test
+	public void itTakesDbRefFromLegacyIds () throws Exception {
+		assertEquals("db.sqlite", MediaFileLocator.dbRefOf("db.sqlite/item/%2Fa%2Fb.mp3/1f"));
+	}
+
+	@Test
+	public void itHasNoDbRefForInvalidIds () throws Exception {
+		assertNull(MediaFileLocator.dbRefOf("made-up"));
+		assertNull(MediaFileLocator.dbRefOf("i1.abc.def.000"));
+	}
+
+}
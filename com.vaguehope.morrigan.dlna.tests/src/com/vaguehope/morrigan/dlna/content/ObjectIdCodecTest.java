@@ -0,0 +1,95 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Decoded;
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Kind;
+
+public class ObjectIdCodecTest {
+
+	private static final String DB = ObjectIdCodec.dbShortId("/home/user/.morrigan/mmdb/music.local.db3");
+
+	@Test
+	public void itRoundTripsAnItemHash () throws Exception {
+		final BigInteger hash = new BigInteger("d41d8cd98f00b204e9800998ecf8427e", 16);
+		final String id = ObjectIdCodec.encode(Kind.ITEM, DB, ObjectIdCodec.encodeHash(hash));
+		assertFalse(id.contains("/"));
+
+		final Decoded d = ObjectIdCodec.decode(id);
+		assertEquals(Kind.ITEM, d.getKind());
+		assertEquals(DB, d.getDb());
+		assertEquals(hash, ObjectIdCodec.decodeHash(d.getPayload()));
+	}
+
+	@Test
+	public void itRoundTripsAnItemHashAndRowId () throws Exception {
+		final BigInteger hash = new BigInteger("d41d8cd98f00b204e9800998ecf8427e", 16);
+		final String a = ObjectIdCodec.encode(Kind.ITEM, DB, ObjectIdCodec.encodeItem(hash, 12));
+		final String b = ObjectIdCodec.encode(Kind.ITEM, DB, ObjectIdCodec.encodeItem(hash, 13));
+		assertFalse(a.equals(b));
+
+		final Decoded d = ObjectIdCodec.decode(a);
+		assertEquals(hash, ObjectIdCodec.decodeItemHash(d.getPayload()));
+		assertEquals(12, ObjectIdCodec.decodeItemRowId(d.getPayload()));
+	}
+
+	@Test
+	public void itDecodesItemIdsMadeWithoutRowId () throws Exception {
+		final BigInteger hash = new BigInteger("d41d8cd98f00b204e9800998ecf8427e", 16);
+		final Decoded d = ObjectIdCodec.decode(ObjectIdCodec.encode(Kind.ITEM, DB, ObjectIdCodec.encodeHash(hash)));
+		assertEquals(hash, ObjectIdCodec.decodeItemHash(d.getPayload()));
+		assertEquals(-1, ObjectIdCodec.decodeItemRowId(d.getPayload()));
+	}
+
+	@Test
+	public void itRoundTripsNames () throws Exception {
+		for (final String name : new String[] { "", "a", "ab", "abc", "abcd", "Some Album (Disc 2)", "\u00e9t\u00e9 \u65e5\u672c" }) {
+			final String id = ObjectIdCodec.encode(Kind.ALBUM, DB, ObjectIdCodec.encodeName(name));
+			assertTrue(id, id.matches("[a-zA-Z0-9._-]+"));
+			assertEquals(name, ObjectIdCodec.decodeName(ObjectIdCodec.decode(id).getPayload()));
+		}
+	}
+
+	@Test
+	public void itEncodesIdsWithoutPayload () throws Exception {
+		final Decoded d = ObjectIdCodec.decode(ObjectIdCodec.encode(Kind.DB, DB, null));
+		assertEquals(Kind.DB, d.getKind());
+		assertEquals(DB, d.getDb());
+		assertEquals("", d.getPayload());
+	}
+
+	@Test
+	public void itIgnoresIdsInOtherFormats () throws Exception {
+		assertNull(ObjectIdCodec.decode("0"));
+		assertNull(ObjectIdCodec.decode("ldb-music_local_db3-8a7d1c"));
+		assertNull(ObjectIdCodec.decode("i1.local.db3/item/%2Fmusic%2Fa.mp3/1f"));
+		assertNull(ObjectIdCodec.decode("abc123def-some_file_mp3"));
+	}
+
+	@Test
+	public void itRejectsMangledIds () throws Exception {
+		final String id = ObjectIdCodec.encode(Kind.TAG, DB, ObjectIdCodec.encodeName("rock"));
+		assertInvalid(id.substring(0, id.length() - 1));
+		assertInvalid(id.replace(DB, DB + "x"));
+		assertInvalid(id.substring(0, id.lastIndexOf('.')));
+	}
+
+	private static void assertInvalid (final String id) {
+		try {
+			ObjectIdCodec.decode(id);
+			fail("Expected invalid: " + id);
+		}
+		catch (final IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+}
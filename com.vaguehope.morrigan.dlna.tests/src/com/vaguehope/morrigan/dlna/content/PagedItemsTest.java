@@ -0,0 +1,96 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.fourthline.cling.support.model.SortCriterion;
+import org.fourthline.cling.support.model.item.AudioItem;
+import org.fourthline.cling.support.model.item.Item;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaguehope.morrigan.dlna.content.PagedItems.ItemSource;
+import com.vaguehope.morrigan.model.exceptions.MorriganException;
+import com.vaguehope.morrigan.model.media.IMixedMediaItem;
+
+public class PagedItemsTest {
+
+	private List<IMixedMediaItem> rows;
+	private List<String> made;
+	private int queries;
+	private PagedItems undertest;
+
+	@Before
+	public void before () throws Exception {
+		this.rows = new ArrayList<IMixedMediaItem>();
+		for (int i = 0; i < 5000; i++) {
+			final IMixedMediaItem row = mock(IMixedMediaItem.class);
+			when(row.getFilepath()).thenReturn("/media/" + i + ".flac");
+			this.rows.add(row);
+		}
+		this.made = new ArrayList<String>();
+		this.undertest = new PagedItems(this.rows, new ItemSource() {
+			@Override
+			public Collection<IMixedMediaItem> rows () throws MorriganException {
+				PagedItemsTest.this.queries += 1;
+				return PagedItemsTest.this.rows;
+			}
+
+			@Override
+			public Item make (final String key, final boolean detailed) throws MorriganException {
+				PagedItemsTest.this.made.add(key);
+				return new AudioItem(key, "parent", key, "");
+			}
+		});
+	}
+
+	@Test
+	public void itHasSizeOfAllRowsWithoutMakingAny () throws Exception {
+		assertEquals(5000, this.undertest.size());
+		assertEquals(0, this.made.size());
+	}
+
+	@Test
+	public void itOnlyMakesItemsInPageRead () throws Exception {
+		final List<Item> page = new ArrayList<Item>(this.undertest.subList(4000, 4020));
+		assertEquals(20, page.size());
+		assertEquals("/media/4000.flac", page.get(0).getId());
+		assertEquals("/media/4019.flac", page.get(19).getId());
+		assertEquals(20, this.made.size());
+	}
+
+	@Test
+	public void itCountsKeysHeldByViews () throws Exception {
+		assertEquals(5000, this.undertest.keysHeld());
+		this.undertest.view(SortOrder.parse(new SortCriterion[] { new SortCriterion(true, "dc:title") }), true);
+		assertEquals(10000, this.undertest.keysHeld());
+		this.undertest.view(SortOrder.NONE, false);
+		assertEquals(10000, this.undertest.keysHeld());
+	}
+
+	@Test
+	public void itQueriesRowsAgainOnlyToSort () throws Exception {
+		final SortOrder order = SortOrder.parse(new SortCriterion[] { new SortCriterion(false, "dc:title") });
+		assertEquals(0, this.queries);
+		final PagedItems view = this.undertest.view(order, true);
+		assertEquals(1, this.queries);
+		assertSame(view, this.undertest.view(order, true));
+		assertEquals(1, this.queries);
+		assertEquals(5000, view.size());
+		assertEquals(0, this.made.size());
+	}
+
+	@Test
+	public void itMakesEachItemOnce () throws Exception {
+		final Item first = this.undertest.get(7);
+		assertSame(first, this.undertest.get(7));
+		assertEquals(1, this.made.size());
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.SortCriterion;
+import org.fourthline.cling.support.model.item.AudioItem;
+import org.fourthline.cling.support.model.item.Item;
+import org.junit.Test;
+
+import com.vaguehope.morrigan.model.media.IMixedMediaItem;
+
+public class SortOrderTest {
+
+	@Test
+	public void itIsNoneForNoCriteria () throws Exception {
+		assertTrue(SortOrder.parse(null).isNone());
+		assertTrue(SortOrder.parse(new SortCriterion[0]).isNone());
+		assertEquals("", SortOrder.parse(null).key());
+	}
+
+	@Test
+	public void itSkipsUnsupportedProperties () throws Exception {
+		assertTrue(SortOrder.parse(new SortCriterion[] { new SortCriterion(true, "upnp:class") }).isNone());
+		final SortOrder undertest = SortOrder.parse(new SortCriterion[] {
+				new SortCriterion(true, "upnp:originalTrackNumber"), new SortCriterion(true, "dc:title"), new SortCriterion(true, "dc:creator") });
+		assertEquals("+dc:title", undertest.key());
+	}
+
+	@Test
+	public void itKeysByCriteria () throws Exception {
+		final SortOrder undertest = SortOrder.parse(new SortCriterion[] { new SortCriterion(false, "dc:date"), new SortCriterion(true, "dc:title") });
+		assertEquals("-dc:date,+dc:title", undertest.key());
+	}
+
+	@Test
+	public void itSortsRowsByDateThenTitle () throws Exception {
+		final IMixedMediaItem a = row("b", 0, 1000);
+		final IMixedMediaItem b = row("a", 0, 1000);
+		final IMixedMediaItem c = row("c", 0, 3000);
+		final SortOrder undertest = SortOrder.parse(new SortCriterion[] { new SortCriterion(false, "dc:date"), new SortCriterion(true, "dc:title") });
+		assertEquals(Arrays.asList(c, b, a), undertest.sortRows(Arrays.asList(a, b, c)));
+	}
+
+	@Test
+	public void itSortsRowsByPlaybackCountThenTitle () throws Exception {
+		final IMixedMediaItem a = row("b", 5, 1000);
+		final IMixedMediaItem b = row("a", 5, 2000);
+		final IMixedMediaItem c = row("c", 9, 3000);
+		final SortOrder undertest = SortOrder.parse(new SortCriterion[] { new SortCriterion(false, "upnp:playbackCount"), new SortCriterion(true, "dc:title") });
+		assertEquals(Arrays.asList(c, b, a), undertest.sortRows(Arrays.asList(a, b, c)));
+	}
+
+	@Test
+	public void itSortsRowsByDateAdded () throws Exception {
+		final IMixedMediaItem a = row("a", 0, 3000);
+		final IMixedMediaItem b = row("b", 0, 1000);
+		final SortOrder undertest = SortOrder.parse(new SortCriterion[] { new SortCriterion(true, "dc:date") });
+		assertEquals(Arrays.asList(b, a), undertest.sortRows(Arrays.asList(a, b)));
+	}
+
+	@Test
+	public void itSortsObjectsByDateWithoutChangingInput () throws Exception {
+		final Item a = item("a", "2020-01-02T00:00:00+0000");
+		final Item b = item("b", "2019-01-02T00:00:00+0000");
+		final List<Item> input = Arrays.asList(a, b);
+		final SortOrder undertest = SortOrder.parse(new SortCriterion[] { new SortCriterion(true, "dc:date") });
+		assertEquals(Arrays.asList(b, a), undertest.sortObjects(input));
+		assertEquals(Arrays.asList(a, b), input);
+	}
+
+	private static IMixedMediaItem row (final String title, final long endCount, final long dateAdded) {
+		final IMixedMediaItem row = mock(IMixedMediaItem.class);
+		when(row.getTitle()).thenReturn(title);
+		when(row.getEndCount()).thenReturn(Long.valueOf(endCount));
+		when(row.getDateAdded()).thenReturn(new Date(dateAdded));
+		return row;
+	}
+
+	private static Item item (final String title, final String date) {
+		final Item item = new AudioItem(title, "parent", title, "");
+		item.addProperty(new DIDLObject.Property.DC.DATE(date));
+		return item;
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AccessLogTest {
+
+	@Test
+	public void itDrainsRecordedEntries () throws Exception {
+		final AccessLog undertest = new AccessLog(16, 1, 1000);
+		for (int i = 0; i < 10; i++) {
+			record(undertest, 200);
+		}
+		assertEquals(10, undertest.getPending());
+		assertEquals(10, undertest.drain(new AccessLog.RateLimit(1000)));
+		assertEquals(0, undertest.getPending());
+	}
+
+	@Test
+	public void itDropsRatherThanBlocksWhenFull () throws Exception {
+		final AccessLog undertest = new AccessLog(10, 1, 1000);
+		for (int i = 0; i < 20; i++) {
+			record(undertest, 200);
+		}
+		assertEquals(16, undertest.getPending());
+		assertEquals(4, undertest.getDropped());
+		assertEquals(16, undertest.drain(new AccessLog.RateLimit(1000)));
+
+		record(undertest, 200);
+		assertEquals(1, undertest.drain(new AccessLog.RateLimit(1000)));
+	}
+
+	@Test
+	public void itSamplesSuccessesButKeepsErrors () throws Exception {
+		final AccessLog undertest = new AccessLog(64, 10, 1000);
+		for (int i = 0; i < 30; i++) {
+			record(undertest, 206);
+		}
+		record(undertest, 404);
+		record(undertest, 500);
+		assertEquals(3 + 2, undertest.getPending());
+	}
+
+	@Test
+	public void itRateLimitsSuccessesButNotErrors () throws Exception {
+		final AccessLog.RateLimit rateLimit = new AccessLog.RateLimit(2);
+		assertEquals(true, rateLimit.allow(200));
+		assertEquals(true, rateLimit.allow(200));
+		assertEquals(false, rateLimit.allow(200));
+		assertEquals(true, rateLimit.allow(500));
+	}
+
+	@Test
+	public void itLosesNothingUnderConcurrentWriters () throws Exception {
+		final AccessLog undertest = new AccessLog(1 << 14, 1, 1);
+		final int threads = 8;
+		final int perThread = 1000;
+		final ExecutorService ex = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			for (int t = 0; t < threads; t++) {
+				ex.execute(new Runnable() {
+					@Override
+					public void run () {
+						try {
+							start.await();
+						}
+						catch (final InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+						for (int i = 0; i < perThread; i++) {
+							record(undertest, 200);
+						}
+					}
+				});
+			}
+			start.countDown();
+			ex.shutdown();
+			ex.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		finally {
+			ex.shutdownNow();
+		}
+		assertEquals(0, undertest.getDropped());
+		assertEquals(threads * perThread, undertest.drain(new AccessLog.RateLimit(1)));
+	}
+
+	private static void record (final AccessLog log, final int status) {
+		log.record("GET", status, "127.0.0.1", 1234, 5, "/some-id", "bytes=0-99");
+	}
+
+}
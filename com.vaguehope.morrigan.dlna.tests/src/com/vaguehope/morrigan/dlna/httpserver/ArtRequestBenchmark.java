@@ -0,0 +1,173 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerList;
+
+/**
+ * Compares small art requests through the old servlet chain
+ * (HandlerList -> ServletContextHandler -> servlet) with ContentHandler installed directly.
+ * Both serve from the art cache, so the difference is the dispatch overhead.
+ * Not a unit test, run main() by hand:
+ * args: [concurrent clients] [requests per client]
+ */
+public final class ArtRequestBenchmark {
+
+	private static final int DEFAULT_CLIENTS = 12;
+	private static final int DEFAULT_REQUESTS = 5000;
+	private static final int ART_BYTES = 16 * 1024;
+
+	private ArtRequestBenchmark () {
+		throw new AssertionError();
+	}
+
+	public static void main (final String[] args) throws Exception {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+		final int requests = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_REQUESTS;
+
+		final File file = makeTestFile();
+		final File seekDir = new File(file.getAbsolutePath() + "-seek");
+		try {
+			final FileLocator locator = new FileLocator() {
+				@Override
+				public File idToFile (final String id) {
+					return file;
+				}
+
+				@Override
+				public Validators idToValidators (final String id) {
+					return null;
+				}
+
+				@Override
+				public long idToDurationMillis (final String id) {
+					return 0;
+				}
+			};
+
+			for (int round = 0; round < 2; round++) { // First round is warm up.
+				final boolean report = round > 0;
+
+				final ContentHandler wrapped = new ContentHandler(locator, new SeekIndexStore(seekDir),
+						new AccessLog(), new BandwidthScheduler(0), new SharedSegmentCache(null), new StreamPump(0), new FfmpegTranscoder(), null);
+				final HandlerList chain = new HandlerList();
+				chain.setHandlers(new Handler[] { FileStreamerBenchmark.servletHandler(new HandlerServlet(wrapped)) });
+				run("ServletChain", chain, clients, requests, report);
+
+				final ContentHandler direct = new ContentHandler(locator, new SeekIndexStore(seekDir),
+						new AccessLog(), new BandwidthScheduler(0), new SharedSegmentCache(null), new StreamPump(0), new FfmpegTranscoder(), null);
+				run("ContentHandler", direct, clients, requests, report);
+			}
+		}
+		finally {
+			if (!file.delete()) System.err.println("Failed to delete: " + file.getAbsolutePath());
+		}
+	}
+
+	private static void run (final String name, final Handler handler, final int clients, final int requests,
+			final boolean report) throws Exception {
+		final Server server = FileStreamerBenchmark.startServer(handler);
+		final ExecutorService ex = Executors.newFixedThreadPool(clients);
+		try {
+			final String url = "http://127.0.0.1:" + server.getConnectors()[0].getLocalPort() + "/art.jpg";
+			final long startNanos = System.nanoTime();
+
+			final List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+			for (int c = 0; c < clients; c++) {
+				futures.add(ex.submit(new Callable<long[]>() {
+					@Override
+					public long[] call () throws Exception {
+						final long[] latencies = new long[requests];
+						for (int r = 0; r < requests; r++) {
+							final long t = System.nanoTime();
+							FileStreamerBenchmark.fetch(url, null);
+							latencies[r] = System.nanoTime() - t;
+						}
+						return latencies;
+					}
+				}));
+			}
+			final long[] all = new long[clients * requests];
+			int i = 0;
+			for (final Future<long[]> f : futures) {
+				final long[] latencies = f.get();
+				System.arraycopy(latencies, 0, all, i, latencies.length);
+				i += latencies.length;
+			}
+
+			final long durationNanos = System.nanoTime() - startNanos;
+			if (report) {
+				Arrays.sort(all);
+				final double seconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+				System.out.println(String.format("%-15s %9.0f req/s  p50=%6.3f ms  p99=%6.3f ms",
+						name,
+						all.length / seconds,
+						percentile(all, 0.50) / 1000000d,
+						percentile(all, 0.99) / 1000000d));
+			}
+		}
+		finally {
+			ex.shutdownNow();
+			server.stop();
+		}
+	}
+
+	private static long percentile (final long[] sorted, final double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	private static File makeTestFile () throws IOException {
+		final File file = File.createTempFile("art-bench", ".jpg");
+		final OutputStream os = new FileOutputStream(file);
+		try {
+			final byte[] bytes = new byte[ART_BYTES];
+			new Random(1).nextBytes(bytes);
+			os.write(bytes);
+		}
+		finally {
+			os.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Stands in for the servlet ContentHandler replaced, so the only difference measured is the dispatch path.
+	 */
+	private static final class HandlerServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ContentHandler handler;
+
+		HandlerServlet (final ContentHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		protected void service (final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+			this.handler.handle(req.getRequestURI(), Request.getRequest(req), req, resp);
+		}
+
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BandwidthSchedulerTest {
+
+	@Test
+	public void itDoesNotPaceUnknownStreamsWhenLinkRateUnknown () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(0);
+		final BandwidthScheduler.Stream bulk = undertest.open("a", 0);
+		assertFalse(bulk.isPaced());
+	}
+
+	@Test
+	public void itDoesNotPaceLoneStreamWhenLinkRateUnknown () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(0);
+		final BandwidthScheduler.Stream video = undertest.open("a", 1000 * 1000);
+		assertFalse(video.isPaced());
+	}
+
+	@Test
+	public void itCapsKnownBitrateStreamsAtHeadroomWhenCompeting () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(0);
+		final BandwidthScheduler.Stream video = undertest.open("a", 1000 * 1000);
+		final BandwidthScheduler.Stream bulk = undertest.open("b", 0);
+		assertTrue(video.isPaced());
+		assertEquals(4 * 1000 * 1000, video.getAllowance());
+		assertFalse(bulk.isPaced());
+
+		bulk.close();
+		assertFalse(video.isPaced());
+	}
+
+	@Test
+	public void itPacesRunningVideoWhenFlacStreamOpens () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(0);
+		final BandwidthScheduler.Stream video = undertest.open("tv", 1000 * 1000);
+		assertEquals(0, video.reserve(100 * 1000 * 1000));
+
+		final BandwidthScheduler.Stream flac = undertest.open("phone", 100 * 1000);
+		assertEquals(4 * 1000 * 1000, video.getAllowance());
+		assertEquals(400 * 1000, flac.getAllowance());
+		assertEquals(0, video.reserve(5 * 4 * 1000 * 1000)); // Initial burst at the new allowance.
+		assertTrue(video.reserve(4 * 1000 * 1000) > TimeUnit.MILLISECONDS.toNanos(500));
+
+		flac.close();
+		assertEquals(0, video.reserve(100 * 1000 * 1000));
+	}
+
+	@Test
+	public void itPacesBulkOnceLinkRateIsKnown () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(100 * 1000 * 1000 / 8);
+		final BandwidthScheduler.Stream video = undertest.open("tv", 1000 * 1000);
+		final BandwidthScheduler.Stream bulk = undertest.open("laptop", 0);
+		assertTrue(bulk.isPaced());
+		assertEquals((12500 - 4000) * 1000 / 2, bulk.getAllowance());
+		assertEquals(4000 * 1000 + (12500 - 4000) * 1000 / 2, video.getAllowance());
+	}
+
+	@Test
+	public void itSharesSpareBetweenClientsThenStreams () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(10 * 1000 * 1000);
+		final BandwidthScheduler.Stream audio = undertest.open("a", 100 * 1000); // Reserves 400k.
+		final BandwidthScheduler.Stream bulk1 = undertest.open("b", 0);
+		final BandwidthScheduler.Stream bulk2 = undertest.open("b", 0);
+
+		// Spare is 9.6M, 4.8M per client, b has two streams.
+		assertEquals(400 * 1000 + 4800 * 1000, audio.getAllowance());
+		assertEquals(2400 * 1000, bulk1.getAllowance());
+		assertEquals(2400 * 1000, bulk2.getAllowance());
+
+		bulk2.close();
+		assertEquals(4800 * 1000, bulk1.getAllowance());
+		assertEquals(2, undertest.getActiveStreams());
+	}
+
+	@Test
+	public void itKeepsReservationWhenLinkIsOversubscribed () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(1000 * 1000);
+		final BandwidthScheduler.Stream video = undertest.open("a", 1000 * 1000);
+		final BandwidthScheduler.Stream bulk = undertest.open("b", 0);
+		assertEquals(4 * 1000 * 1000, video.getAllowance());
+		assertEquals(64 * 1024, bulk.getAllowance());
+	}
+
+	@Test
+	public void itPacesAfterInitialBurst () throws Exception {
+		final BandwidthScheduler undertest = new BandwidthScheduler(0);
+		final long rate = 50 * 1000;
+		final BandwidthScheduler.Stream stream = undertest.open("a", rate / 4);
+		undertest.open("b", 0);
+		assertEquals(rate, stream.getAllowance());
+
+		final long start = System.nanoTime();
+		stream.acquire(rate * 5); // Initial burst.
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+		stream.acquire(rate / 5);
+		final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("elapsed=" + elapsedMillis, elapsedMillis >= 150);
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+	@Test
+	public void itIgnoresMissingOrInvalidHeaders () throws Exception {
+		assertNull(ByteRange.parse(null, 1000));
+		assertNull(ByteRange.parse("", 1000));
+		assertNull(ByteRange.parse("items=0-10", 1000));
+		assertNull(ByteRange.parse("bytes=abc-def", 1000));
+		assertNull(ByteRange.parse("bytes=10-5", 1000));
+		assertNull(ByteRange.parse("bytes=-", 1000));
+	}
+
+	@Test
+	public void itParsesASimpleRange () throws Exception {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(0, 499, ranges.get(0));
+		assertEquals(500, ranges.get(0).length());
+		assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+	}
+
+	@Test
+	public void itParsesAnOpenEndedRange () throws Exception {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=900-", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(900, 999, ranges.get(0));
+	}
+
+	@Test
+	public void itParsesASuffixRange () throws Exception {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=-100", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(900, 999, ranges.get(0));
+	}
+
+	@Test
+	public void itClampsRangesToTheEndOfTheFile () throws Exception {
+		assertRange(500, 999, ByteRange.parse("bytes=500-5000", 1000).get(0));
+		assertRange(0, 999, ByteRange.parse("bytes=-5000", 1000).get(0));
+	}
+
+	@Test
+	public void itParsesMultipleRanges () throws Exception {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=0-9, 20-29,-5", 1000);
+		assertEquals(3, ranges.size());
+		assertRange(0, 9, ranges.get(0));
+		assertRange(20, 29, ranges.get(1));
+		assertRange(995, 999, ranges.get(2));
+	}
+
+	@Test
+	public void itReturnsEmptyListWhenNothingIsSatisfiable () throws Exception {
+		assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+	}
+
+	@Test
+	public void itDropsUnsatisfiableRangesFromAList () throws Exception {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=2000-3000,0-9", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(0, 9, ranges.get(0));
+	}
+
+	private static void assertRange (final long first, final long last, final ByteRange actual) {
+		assertEquals(first, actual.getFirst());
+		assertEquals(last, actual.getLast());
+	}
+
+}
@@ -0,0 +1,327 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentHandlerTest {
+
+	private static final String ID = "some-id";
+	private static final int MP3_FRAME_LENGTH = 417; // MPEG-1 layer 3, 128 kbps, 44.1 kHz.
+
+	private File file;
+	private File seekIndexDir;
+	private File transcodeDir;
+	private File transcodeGate;
+	private final AtomicInteger transcodes = new AtomicInteger();
+	private volatile String fakeTranscoderScript;
+	private byte[] data;
+	private StreamPump streamPump;
+	private TranscodeCache transcodeCache;
+	private ContentHandler handler;
+	private Server server;
+	private String url;
+
+	@Before
+	public void before () throws Exception {
+		this.data = new byte[100 * 1024];
+		new Random(1).nextBytes(this.data);
+		for (int i = 0; i + MP3_FRAME_LENGTH <= this.data.length; i += MP3_FRAME_LENGTH) {
+			this.data[i] = (byte) 0xff;
+			this.data[i + 1] = (byte) 0xfb;
+			this.data[i + 2] = (byte) 0x90;
+			this.data[i + 3] = (byte) 0x00;
+		}
+		this.file = File.createTempFile("content-servlet", ".mp3");
+		final OutputStream os = new FileOutputStream(this.file);
+		try {
+			os.write(this.data);
+		}
+		finally {
+			os.close();
+		}
+
+		final FileLocator locator = new FileLocator() {
+			@Override
+			public File idToFile (final String id) {
+				return ID.equals(id) ? ContentHandlerTest.this.file : null;
+			}
+
+			@Override
+			public Validators idToValidators (final String id) {
+				return ID.equals(id) ? Validators.forContent("abc123", ContentHandlerTest.this.file) : null;
+			}
+
+			@Override
+			public long idToDurationMillis (final String id) {
+				return 0;
+			}
+		};
+
+		this.seekIndexDir = new File(this.file.getAbsolutePath() + "-seek");
+
+		this.transcodeDir = new File(this.file.getAbsolutePath() + "-transcode");
+		this.transcodeGate = new File(this.file.getAbsolutePath() + "-gate");
+		// Sends the first KB straight away then the rest once the gate file exists.
+		this.fakeTranscoderScript = "head -c 1024 \"$0\"; while [ ! -e \"$1\" ]; do sleep 0.01; done; tail -c +1025 \"$0\"";
+		final Transcoder transcoder = new Transcoder() {
+			@Override
+			public Process start (final File source, final TranscodeProfile profile) throws IOException {
+				ContentHandlerTest.this.transcodes.incrementAndGet();
+				return new ProcessBuilder("sh", "-c", ContentHandlerTest.this.fakeTranscoderScript,
+						source.getAbsolutePath(), ContentHandlerTest.this.transcodeGate.getAbsolutePath()).start();
+			}
+		};
+
+		this.streamPump = new StreamPump(0);
+		this.streamPump.start();
+		this.transcodeCache = new TranscodeCache(this.transcodeDir, 10L * 1024 * 1024);
+		this.handler = new ContentHandler(locator, new SeekIndexStore(this.seekIndexDir),
+				new AccessLog(), new BandwidthScheduler(0), new SharedSegmentCache(null), this.streamPump,
+				transcoder, this.transcodeCache);
+		final SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		this.server = new Server();
+		this.server.setHandler(this.handler);
+		this.server.addConnector(connector);
+		this.server.start();
+		this.url = "http://127.0.0.1:" + connector.getLocalPort() + "/" + ID;
+	}
+
+	@After
+	public void after () throws Exception {
+		this.server.stop();
+		this.streamPump.stop();
+		this.file.delete();
+		this.transcodeGate.delete();
+		deleteDir(this.seekIndexDir);
+		deleteDir(this.transcodeDir);
+	}
+
+	private static void deleteDir (final File dir) {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void itServesWholeFileWithValidators () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("bytes", conn.getHeaderField("Accept-Ranges"));
+		assertNotNull(conn.getHeaderField("ETag"));
+		assertNotNull(conn.getHeaderField("Last-Modified"));
+		assertArrayEquals(this.data, readBody(conn));
+	}
+
+	@Test
+	public void itServesARange () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("Range", "bytes=100-199");
+		assertEquals(206, conn.getResponseCode());
+		assertEquals("bytes 100-199/" + this.data.length, conn.getHeaderField("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(this.data, 100, 200), readBody(conn));
+	}
+
+	@Test
+	public void itReturns416ForUnsatisfiableRange () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("Range", "bytes=" + this.data.length + "-");
+		assertEquals(416, conn.getResponseCode());
+		assertEquals("bytes */" + this.data.length, conn.getHeaderField("Content-Range"));
+	}
+
+	@Test
+	public void itReturns404ForUnknownId () throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url + "-nope").openConnection();
+		assertEquals(404, conn.getResponseCode());
+	}
+
+	@Test
+	public void itReturns304ForMatchingEtag () throws Exception {
+		final String etag = open("HEAD").getHeaderField("ETag");
+
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("If-None-Match", etag);
+		assertEquals(304, conn.getResponseCode());
+		assertEquals(etag, conn.getHeaderField("ETag"));
+	}
+
+	@Test
+	public void itReturns304WhenNotModifiedSince () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setIfModifiedSince(this.file.lastModified() + 1000);
+		assertEquals(304, conn.getResponseCode());
+	}
+
+	@Test
+	public void itServesHeadWithoutBody () throws Exception {
+		final HttpURLConnection conn = open("HEAD");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals(String.valueOf(this.data.length), conn.getHeaderField("Content-Length"));
+		assertEquals(0, readBody(conn).length);
+	}
+
+	@Test
+	public void itIgnoresRangeWhenIfRangeDoesNotMatch () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("Range", "bytes=100-199");
+		conn.setRequestProperty("If-Range", "\"something-else\"");
+		assertEquals(200, conn.getResponseCode());
+		assertEquals(this.data.length, readBody(conn).length);
+	}
+
+	@Test
+	public void itServesTimeSeekFromFrameBoundary () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("TimeSeekRange.dlna.org", "npt=2.5-");
+		assertEquals(206, conn.getResponseCode());
+
+		final String timeSeek = conn.getHeaderField("TimeSeekRange.dlna.org");
+		assertTrue(timeSeek, timeSeek.startsWith("npt=2."));
+		final String contentRange = conn.getHeaderField("Content-Range");
+		final long first = Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+		assertTrue(contentRange, first > 0);
+		assertEquals(0, first % MP3_FRAME_LENGTH);
+		assertEquals("bytes " + first + "-" + (this.data.length - 1) + "/" + this.data.length, contentRange);
+		assertArrayEquals(Arrays.copyOfRange(this.data, (int) first, this.data.length), readBody(conn));
+	}
+
+	@Test
+	public void itReturns400ForInvalidTimeSeek () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("TimeSeekRange.dlna.org", "npt=banana-");
+		assertEquals(400, conn.getResponseCode());
+	}
+
+	@Test
+	public void itReturns416ForTimeSeekPastEnd () throws Exception {
+		final HttpURLConnection conn = open("GET");
+		conn.setRequestProperty("TimeSeekRange.dlna.org", "npt=1:00:00-");
+		assertEquals(416, conn.getResponseCode());
+	}
+
+	@Test
+	public void itRejectsOtherMethods () throws Exception {
+		final HttpURLConnection conn = open("DELETE");
+		assertEquals(405, conn.getResponseCode());
+		assertEquals("GET, HEAD", conn.getHeaderField("Allow"));
+	}
+
+	@Test(timeout = 10000)
+	public void itStreamsTranscodeAsItIsMadeThenServesItFromCache () throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url + "/MP3").openConnection();
+		assertEquals(200, conn.getResponseCode());
+		assertEquals("audio/mpeg", conn.getContentType());
+		assertNull(conn.getHeaderField("Content-Length"));
+
+		final InputStream is = conn.getInputStream();
+		final byte[] start = new byte[1024];
+		int read = 0;
+		while (read < start.length) {
+			final int n = is.read(start, read, start.length - read);
+			assertTrue(n > 0);
+			read += n;
+		}
+		assertArrayEquals(Arrays.copyOfRange(this.data, 0, 1024), start); // Before the transcoder has finished.
+		assertTrue(this.transcodeGate.createNewFile());
+		final byte[] rest = readBody(conn);
+		assertArrayEquals(Arrays.copyOfRange(this.data, 1024, this.data.length), rest);
+
+		HttpURLConnection cached = openTranscodeRange();
+		while (cached.getResponseCode() == 200) { // Served live until the transcode has been committed.
+			readBody(cached);
+			cached = openTranscodeRange();
+		}
+		assertEquals(206, cached.getResponseCode());
+		assertArrayEquals(Arrays.copyOfRange(this.data, 100, 200), readBody(cached));
+		assertEquals(1, this.transcodes.get());
+	}
+
+	@Test(timeout = 10000)
+	public void itPreTranscodesIntoCache () throws Exception {
+		assertTrue(this.transcodeGate.createNewFile());
+		this.handler.preTranscode(this.file, TranscodeProfile.MP3);
+		while (this.transcodeCache.get(TranscodeCache.keyFor(this.file, TranscodeProfile.MP3)) == null) {
+			Thread.sleep(10);
+		}
+
+		final HttpURLConnection conn = openTranscodeRange();
+		assertEquals(206, conn.getResponseCode());
+		assertArrayEquals(Arrays.copyOfRange(this.data, 100, 200), readBody(conn));
+		assertEquals(1, this.transcodes.get());
+	}
+
+	@Test
+	public void itReturns500WhenTranscoderFails () throws Exception {
+		this.fakeTranscoderScript = "exit 1";
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url + "/MP3").openConnection();
+		assertEquals(500, conn.getResponseCode());
+	}
+
+	@Test
+	public void itReturns404ForTranscodeOfUnknownId () throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url + "-nope/MP3").openConnection();
+		assertEquals(404, conn.getResponseCode());
+	}
+
+	@Test
+	public void itTakesIdFromRawUri () throws Exception {
+		assertEquals("a%2Fb c", ContentHandler.idFromUri("/a%2Fb c"));
+		assertEquals(null, ContentHandler.idFromUri("/thing.gz"));
+	}
+
+	private HttpURLConnection openTranscodeRange () throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url + "/MP3").openConnection();
+		conn.setRequestProperty("Range", "bytes=100-199");
+		return conn;
+	}
+
+	private HttpURLConnection open (final String method) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url).openConnection();
+		conn.setRequestMethod(method);
+		return conn;
+	}
+
+	private static byte[] readBody (final HttpURLConnection conn) throws IOException {
+		final InputStream is = conn.getInputStream();
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			is.close();
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.resource.Resource;
+
+/**
+ * Compares the old DefaultServlet based serving path with FileStreamer.
+ * Not a unit test, run main() by hand:
+ * args: [file size MB] [concurrent clients] [requests per client]
+ */
+public final class FileStreamerBenchmark {
+
+	private static final int DEFAULT_FILE_MB = 64;
+	private static final int DEFAULT_CLIENTS = 12;
+	private static final int DEFAULT_REQUESTS = 10;
+	private static final int RANGE_BYTES = 256 * 1024;
+
+	private FileStreamerBenchmark () {
+		throw new AssertionError();
+	}
+
+	public static void main (final String[] args) throws Exception {
+		final int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FILE_MB;
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+		final int requests = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+
+		final File file = makeTestFile(fileMb);
+		try {
+			final FileLocator locator = new FileLocator() {
+				@Override
+				public File idToFile (final String id) {
+					return file;
+				}
+
+				@Override
+				public Validators idToValidators (final String id) {
+					return null;
+				}
+
+				@Override
+				public long idToDurationMillis (final String id) {
+					return 0;
+				}
+			};
+			final HttpServlet oldServlet = new DefaultServlet() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Resource getResource (final String pathInContext) {
+					try {
+						return Resource.newResource(file.toURI());
+					}
+					catch (final IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			};
+
+			for (int round = 0; round < 2; round++) { // First round is warm up.
+				final boolean report = round > 0;
+				run("DefaultServlet", servletHandler(oldServlet), file, clients, requests, report);
+				final ContentHandler handler = new ContentHandler(locator, new SeekIndexStore(new File(file.getAbsolutePath() + "-seek")),
+						new AccessLog(), new BandwidthScheduler(0), new SharedSegmentCache(null), new StreamPump(0), new FfmpegTranscoder(), null);
+				run("FileStreamer", handler, file, clients, requests, report);
+			}
+		}
+		finally {
+			if (!file.delete()) System.err.println("Failed to delete: " + file.getAbsolutePath());
+		}
+	}
+
+	private static void run (final String name, final Handler handler, final File file,
+			final int clients, final int requests, final boolean report) throws Exception {
+		final Server server = startServer(handler);
+		final ExecutorService ex = Executors.newFixedThreadPool(clients);
+		try {
+			final String url = "http://127.0.0.1:" + server.getConnectors()[0].getLocalPort() + "/file.mp3";
+			final long gcCountBefore = gcCount();
+			final long gcMillisBefore = gcMillis();
+			final long startNanos = System.nanoTime();
+
+			final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (int c = 0; c < clients; c++) {
+				final long seed = c;
+				futures.add(ex.submit(new Callable<Long>() {
+					@Override
+					public Long call () throws Exception {
+						final Random rnd = new Random(seed);
+						long bytes = 0;
+						for (int r = 0; r < requests; r++) {
+							bytes += fetch(url, null);
+							final long start = (long) (rnd.nextDouble() * (file.length() - RANGE_BYTES));
+							bytes += fetch(url, "bytes=" + start + "-" + (start + RANGE_BYTES - 1));
+						}
+						return bytes;
+					}
+				}));
+			}
+			long totalBytes = 0;
+			for (final Future<Long> f : futures) {
+				totalBytes += f.get();
+			}
+
+			final long durationNanos = System.nanoTime() - startNanos;
+			if (report) {
+				final double seconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+				System.out.println(String.format("%-15s %8.1f MB/s  %6d ms  gc=%d (%d ms)",
+						name,
+						totalBytes / (1024d * 1024d) / seconds,
+						TimeUnit.NANOSECONDS.toMillis(durationNanos),
+						gcCount() - gcCountBefore,
+						gcMillis() - gcMillisBefore));
+			}
+		}
+		finally {
+			ex.shutdownNow();
+			server.stop();
+		}
+	}
+
+	static Handler servletHandler (final HttpServlet servlet) {
+		final ServletContextHandler handler = new ServletContextHandler();
+		handler.setContextPath("/");
+		handler.addServlet(new ServletHolder(servlet), "/");
+		return handler;
+	}
+
+	static Server startServer (final Handler handler) throws Exception {
+		final SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+
+		final Server server = new Server();
+		server.setHandler(handler);
+		server.addConnector(connector);
+		server.start();
+		return server;
+	}
+
+	protected static long fetch (final String url, final String range) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		if (range != null) conn.setRequestProperty("Range", range);
+		final InputStream is = conn.getInputStream();
+		try {
+			final byte[] buffer = new byte[64 * 1024];
+			long total = 0;
+			int n;
+			while ((n = is.read(buffer)) >= 0) {
+				total += n;
+			}
+			return total;
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private static File makeTestFile (final int sizeMb) throws IOException {
+		final File file = File.createTempFile("streamer-bench", ".mp3");
+		final OutputStream os = new FileOutputStream(file);
+		try {
+			final byte[] block = new byte[1024 * 1024];
+			new Random(1).nextBytes(block);
+			for (int i = 0; i < sizeMb; i++) {
+				os.write(block);
+			}
+		}
+		finally {
+			os.close();
+		}
+		return file;
+	}
+
+	private static long gcCount () {
+		long total = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(gc.getCollectionCount(), 0);
+		}
+		return total;
+	}
+
+	private static long gcMillis () {
+		long total = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(gc.getCollectionTime(), 0);
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileStreamerTest {
+
+	private static final int SEGMENT_BYTES = 16 * 1024;
+	private static final int CHUNK_BYTES = 4 * 1024;
+
+	private byte[] data;
+	private File file;
+
+	@Before
+	public void before () throws Exception {
+		this.data = new byte[SEGMENT_BYTES * 10 + 123];
+		new Random(1).nextBytes(this.data);
+		this.file = File.createTempFile("file-streamer", ".mp3");
+		final FileOutputStream out = new FileOutputStream(this.file);
+		try {
+			out.write(this.data);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void after () throws Exception {
+		this.file.delete();
+	}
+
+	@Test
+	public void itMovesFirstStreamToSharedSegmentsWhenSecondOpens () throws Exception {
+		final SharedSegmentCache cache = new SharedSegmentCache(SEGMENT_BYTES, this.data.length * 2);
+		final long last = this.data.length - 1;
+
+		final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+		final Transfer.Source first = new FileStreamer.MappedSource(raf,
+				raf.getChannel().map(MapMode.READ_ONLY, 0, this.data.length), 0, cache.open(this.file));
+		final ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+		long firstPosition = readTo(first, 0, SEGMENT_BYTES, last, firstOut);
+		assertEquals(0, cache.getLoads());
+
+		final Transfer.Source second = new FileStreamer.SegmentSource(cache.open(this.file));
+		final ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+		long secondPosition = 0;
+		while (firstPosition <= last || secondPosition <= last) {
+			if (firstPosition <= last) firstPosition = readTo(first, firstPosition, firstPosition + CHUNK_BYTES, last, firstOut);
+			if (secondPosition <= last) secondPosition = readTo(second, secondPosition, secondPosition + CHUNK_BYTES, last, secondOut);
+		}
+		first.close();
+		second.close();
+
+		assertArrayEquals(this.data, firstOut.toByteArray());
+		assertArrayEquals(this.data, secondOut.toByteArray());
+		assertEquals(11, cache.getLoads());
+	}
+
+	/**
+	 * Returns the position after the last byte read.
+	 */
+	private static long readTo (final Transfer.Source source, final long from, final long to, final long last, final ByteArrayOutputStream out) throws Exception {
+		long position = from;
+		while (position < to && position <= last) {
+			final ByteBuffer b = source.read(position, CHUNK_BYTES, last);
+			final byte[] bytes = new byte[b.remaining()];
+			b.get(bytes);
+			out.write(bytes);
+			position += bytes.length;
+		}
+		return position;
+	}
+
+}
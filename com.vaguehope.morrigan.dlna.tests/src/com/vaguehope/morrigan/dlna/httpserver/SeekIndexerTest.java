@@ -0,0 +1,219 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SeekIndexerTest {
+
+	private static final int MP3_FRAME_LENGTH = 417; // MPEG-1 layer 3, 128 kbps, 44.1 kHz.
+	private static final int PACK_SPACING = 32 * 1024;
+
+	private File tmpDir;
+
+	@Before
+	public void before () throws Exception {
+		this.tmpDir = File.createTempFile("seek-indexer", "");
+		if (!this.tmpDir.delete() || !this.tmpDir.mkdir()) throw new IOException("Failed to make dir: " + this.tmpDir);
+	}
+
+	@After
+	public void after () throws Exception {
+		deleteRecursive(this.tmpDir);
+	}
+
+	@Test
+	public void itIndexesMp3FramesAfterId3Tag () throws Exception {
+		final ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(new byte[] { 'I', 'D', '3', 4, 0, 0, 0, 0, 0, 100 });
+		b.write(new byte[100]);
+		for (int i = 0; i < 200; i++) {
+			final byte[] frame = new byte[MP3_FRAME_LENGTH];
+			frame[0] = (byte) 0xff;
+			frame[1] = (byte) 0xfb;
+			frame[2] = (byte) 0x90;
+			b.write(frame);
+		}
+
+		final SeekIndex index = SeekIndexer.build(write("a.mp3", b.toByteArray()));
+		assertEquals(200 * 1152 * 1000 / 44100, index.getDurationMillis());
+		assertEquals(0, index.getOffset(0));
+		assertEquals(1018, index.getTimeMillis(1)); // Frame 39 is the first at or after 1 second.
+		assertEquals(110 + 39 * MP3_FRAME_LENGTH, index.getOffset(1));
+		assertEquals(1, index.floor(1500));
+	}
+
+	@Test
+	public void itIndexesFlacFromSeekTable () throws Exception {
+		final ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(new byte[] { 'f', 'L', 'a', 'C' });
+		b.write(new byte[] { 0, 0, 0, 34 });
+		final byte[] streamInfo = new byte[34];
+		streamInfo[10] = 0x0a; // 44100 Hz.
+		streamInfo[11] = (byte) 0xc4;
+		streamInfo[12] = 0x42;
+		writeInt(streamInfo, 14, 441000); // 10 seconds.
+		b.write(streamInfo);
+		b.write(new byte[] { (byte) 0x83, 0, 0, 54 });
+		final byte[] seekTable = new byte[54];
+		writeInt(seekTable, 22, 220500);
+		writeInt(seekTable, 30, 5000);
+		for (int i = 36; i < 44; i++) {
+			seekTable[i] = (byte) 0xff; // Placeholder.
+		}
+		b.write(seekTable);
+		b.write(new byte[10000]);
+
+		final SeekIndex index = SeekIndexer.build(write("a.flac", b.toByteArray()));
+		assertEquals(10000, index.getDurationMillis());
+		assertEquals(2, index.size());
+		assertEquals(0, index.getOffset(0));
+		assertEquals(5000, index.getTimeMillis(1));
+		assertEquals(100 + 5000, index.getOffset(1));
+	}
+
+	@Test
+	public void itIndexesMpegProgramStreamPacks () throws Exception {
+		final byte[] data = new byte[100 * PACK_SPACING];
+		for (int i = 0; i < 100; i++) {
+			writePack(data, i * PACK_SPACING, i * 1000L * 90);
+		}
+
+		final SeekIndex index = SeekIndexer.build(write("a.mpg", data));
+		assertEquals(99000, index.getDurationMillis());
+		final int p = index.floor(15500);
+		final long time = index.getTimeMillis(p);
+		assertEquals(time / 1000 * PACK_SPACING, index.getOffset(p));
+		assertEquals(0, time % 1000);
+	}
+
+	@Test
+	public void itReturnsNullForUnsupportedFormats () throws Exception {
+		assertNull(SeekIndexer.build(write("a.mkv", new byte[1000])));
+		assertNull(SeekIndexer.build(write("a.mp3", new byte[1000])));
+	}
+
+	@Test
+	public void itRoundTripsIndexThroughStore () throws Exception {
+		final SeekIndex.Builder builder = new SeekIndex.Builder(0);
+		builder.add(0, 0);
+		builder.add(1000, 5000);
+		builder.add(500, 6000); // Goes backwards so dropped.
+		builder.add(2000, 9000);
+		final SeekIndex index = builder.build(3000);
+
+		final ByteArrayOutputStream b = new ByteArrayOutputStream();
+		index.write(new DataOutputStream(b));
+		final SeekIndex read = SeekIndex.read(new DataInputStream(new ByteArrayInputStream(b.toByteArray())));
+		assertEquals(3, read.size());
+		assertEquals(3000, read.getDurationMillis());
+		assertEquals(2000, read.getTimeMillis(2));
+		assertEquals(9000, read.getOffset(2));
+		assertEquals(2, read.ceiling(1500));
+		assertEquals(-1, read.ceiling(2500));
+
+		final SeekIndexStore store = new SeekIndexStore(new File(this.tmpDir, "store"));
+		final byte[] frame = new byte[MP3_FRAME_LENGTH];
+		frame[0] = (byte) 0xff;
+		frame[1] = (byte) 0xfb;
+		frame[2] = (byte) 0x90;
+		final File mp3 = write("b.mp3", frame);
+		final SeekIndex stored = store.get(mp3);
+		assertSame(stored, store.get(mp3));
+		assertEquals(1, new File(this.tmpDir, "store").list().length);
+	}
+
+	@Test
+	public void itRemembersFilesThatCouldNotBeIndexedUntilTheyChange () throws Exception {
+		final SeekIndexStore store = new SeekIndexStore(new File(this.tmpDir, "store"));
+		final File mp3 = write("c.mp3", new byte[MP3_FRAME_LENGTH]);
+		final long mtime = mp3.lastModified();
+		assertNull(store.get(mp3));
+
+		final byte[] frame = new byte[MP3_FRAME_LENGTH];
+		frame[0] = (byte) 0xff;
+		frame[1] = (byte) 0xfb;
+		frame[2] = (byte) 0x90;
+		write("c.mp3", frame);
+		mp3.setLastModified(mtime);
+		assertNull(store.get(mp3));
+
+		mp3.setLastModified(mtime - 10000);
+		assertNotNull(store.get(mp3));
+	}
+
+	@Test
+	public void itDeletesUnusedIndexFilesOnStart () throws Exception {
+		final File dir = new File(this.tmpDir, "store");
+		if (!dir.mkdir()) throw new IOException("Failed to make dir: " + dir);
+		final File old = write("store/old.idx", new byte[1]);
+		old.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(60));
+		final File recent = write("store/recent.idx", new byte[1]);
+		final File tmp = write("store/partial.idx.tmp", new byte[1]);
+
+		new SeekIndexStore(dir);
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		assertFalse(tmp.exists());
+	}
+
+	private File write (final String name, final byte[] data) throws IOException {
+		final File f = new File(this.tmpDir, name);
+		final OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(data);
+		}
+		finally {
+			os.close();
+		}
+		return f;
+	}
+
+	private static void writeInt (final byte[] b, final int off, final int v) {
+		b[off] = (byte) (v >>> 24);
+		b[off + 1] = (byte) (v >>> 16);
+		b[off + 2] = (byte) (v >>> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	/**
+	 * MPEG-2 pack header start code and SCR.
+	 */
+	private static void writePack (final byte[] b, final int off, final long scr) {
+		b[off + 2] = 1;
+		b[off + 3] = (byte) 0xba;
+		b[off + 4] = (byte) (0x44 | ((scr >> 27) & 0x38) | ((scr >> 28) & 0x03));
+		b[off + 5] = (byte) (scr >> 20);
+		b[off + 6] = (byte) (((scr >> 12) & 0xf8) | 0x04 | ((scr >> 13) & 0x03));
+		b[off + 7] = (byte) (scr >> 5);
+		b[off + 8] = (byte) (((scr << 3) & 0xf8) | 0x04);
+	}
+
+	private static void deleteRecursive (final File f) {
+		final File[] children = f.listFiles();
+		if (children != null) {
+			for (final File c : children) {
+				deleteRecursive(c);
+			}
+		}
+		f.delete();
+	}
+
+}
@@ -0,0 +1,172 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedSegmentCacheTest {
+
+	private static final int SEGMENT_BYTES = 16 * 1024;
+
+	private static final Executor INLINE = new Executor() {
+		@Override
+		public void execute (final Runnable command) {
+			command.run();
+		}
+	};
+
+	private byte[] data;
+	private File file;
+	private BandwidthScheduler.Stream stream;
+	private ExecutorService ex;
+
+	@Before
+	public void before () throws Exception {
+		this.data = new byte[SEGMENT_BYTES * 10 + 123];
+		new Random(1).nextBytes(this.data);
+		this.file = File.createTempFile("shared-segment", ".mp3");
+		final FileOutputStream out = new FileOutputStream(this.file);
+		try {
+			out.write(this.data);
+		}
+		finally {
+			out.close();
+		}
+		this.stream = new BandwidthScheduler(0).open("a", 0);
+		this.ex = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void after () throws Exception {
+		this.ex.shutdownNow();
+		this.file.delete();
+	}
+
+	@Test
+	public void itOnlySharesWhenAnotherReaderIsOpen () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, SEGMENT_BYTES * 4);
+		final SharedSegmentCache.Reader r1 = undertest.open(this.file);
+		assertFalse(r1.isShared());
+		final SharedSegmentCache.Reader r2 = undertest.open(this.file);
+		assertTrue(r1.isShared());
+		assertTrue(r2.isShared());
+		r1.close();
+		r2.close();
+		assertFalse(undertest.open(this.file).isShared());
+	}
+
+	@Test
+	public void itWritesRequestedRange () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, SEGMENT_BYTES * 4);
+		final SharedSegmentCache.Reader r = undertest.open(this.file);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.write(SEGMENT_BYTES - 10, SEGMENT_BYTES * 3, out, this.stream);
+		r.close();
+		assertArrayEquals(Arrays.copyOfRange(this.data, SEGMENT_BYTES - 10, SEGMENT_BYTES * 4 - 10), out.toByteArray());
+		assertEquals(4, undertest.getLoads());
+	}
+
+	@Test
+	public void itLoadsEachSegmentOnceForConcurrentReaders () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, this.data.length * 2);
+		final List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(this.ex.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call () throws Exception {
+					final SharedSegmentCache.Reader r = undertest.open(SharedSegmentCacheTest.this.file);
+					try {
+						final ByteArrayOutputStream out = new ByteArrayOutputStream();
+						r.write(0, SharedSegmentCacheTest.this.data.length, out, new BandwidthScheduler(0).open("b", 0));
+						return out.toByteArray();
+					}
+					finally {
+						r.close();
+					}
+				}
+			}));
+		}
+		for (final Future<byte[]> f : futures) {
+			assertArrayEquals(this.data, f.get());
+		}
+		assertEquals(11, undertest.getLoads());
+		assertEquals(5 * 11 - 11, undertest.getHits());
+	}
+
+	@Test
+	public void itEvictsUnreferencedSegmentsToStayWithinLimit () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, SEGMENT_BYTES * 3);
+		final SharedSegmentCache.Reader r = undertest.open(this.file);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.write(0, this.data.length, out, this.stream);
+		r.close();
+		assertArrayEquals(this.data, out.toByteArray());
+		assertTrue("total=" + undertest.getTotalBytes(), undertest.getTotalBytes() <= SEGMENT_BYTES * 3);
+
+		r.write(0, SEGMENT_BYTES, new ByteArrayOutputStream(), this.stream);
+		assertEquals(12, undertest.getLoads());
+	}
+
+	@Test
+	public void itPrefetchesStartOfFile () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, SEGMENT_BYTES * 16, INLINE);
+		undertest.prefetch(this.file, SEGMENT_BYTES * 3);
+		assertEquals(3, undertest.getLoads());
+		assertEquals(SEGMENT_BYTES * 3, undertest.getTotalBytes());
+
+		final SharedSegmentCache.Reader r = undertest.open(this.file);
+		assertTrue(r.isShared());
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.write(0, SEGMENT_BYTES * 2, out, this.stream);
+		r.close();
+		assertArrayEquals(Arrays.copyOfRange(this.data, 0, SEGMENT_BYTES * 2), out.toByteArray());
+		assertEquals(3, undertest.getLoads());
+	}
+
+	@Test
+	public void itCapsPrefetchToFractionOfTotal () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, SEGMENT_BYTES * 8, INLINE);
+		undertest.prefetch(this.file, this.data.length);
+		assertEquals(2, undertest.getLoads());
+	}
+
+	@Test
+	public void itReadsAheadOfStream () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, this.data.length * 2, INLINE);
+		final SharedSegmentCache.Reader r = undertest.open(this.file);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		r.write(0, this.data.length, out, this.stream);
+		r.close();
+		assertArrayEquals(this.data, out.toByteArray());
+		assertEquals(11, undertest.getLoads());
+		assertEquals(10, undertest.getHits());
+	}
+
+	@Test
+	public void itDoesNotReadAheadPastRequestedRange () throws Exception {
+		final SharedSegmentCache undertest = new SharedSegmentCache(SEGMENT_BYTES, this.data.length * 2, INLINE);
+		final SharedSegmentCache.Reader r = undertest.open(this.file);
+		r.write(0, SEGMENT_BYTES * 2, new ByteArrayOutputStream(), this.stream);
+		r.close();
+		assertEquals(2, undertest.getLoads());
+	}
+
+}
@@ -0,0 +1,210 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamPumpTest {
+
+	private static final String ID = "some-id";
+	private static final String BIG_ID = "big-id";
+	/**
+	 * More than the loopback socket buffers hold, so the client must read for it all to be sent.
+	 */
+	private static final int BIG_FILE_BYTES = 32 * 1024 * 1024;
+	/**
+	 * Paced at 4x this while competing, so after the 5 second initial burst the rest takes about a second.
+	 */
+	private static final int REQUIRED_BYTES_PER_SECOND = 25 * 1024;
+	private static final int FILE_BYTES = REQUIRED_BYTES_PER_SECOND * 4 * 6;
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private File file;
+	private byte[] data;
+	private File bigFile;
+	private StreamPump undertest;
+	private BandwidthScheduler scheduler;
+	private Server server;
+	private String url;
+	private String bigUrl;
+
+	@Before
+	public void before () throws Exception {
+		this.data = new byte[FILE_BYTES];
+		new Random(1).nextBytes(this.data);
+		this.file = File.createTempFile("stream-pump", ".mp3");
+		final OutputStream os = new FileOutputStream(this.file);
+		try {
+			os.write(this.data);
+		}
+		finally {
+			os.close();
+		}
+		this.bigFile = File.createTempFile("stream-pump-big", ".mp3");
+		final RandomAccessFile raf = new RandomAccessFile(this.bigFile, "rw");
+		try {
+			raf.setLength(BIG_FILE_BYTES);
+		}
+		finally {
+			raf.close();
+		}
+
+		final FileLocator locator = new FileLocator() {
+			@Override
+			public File idToFile (final String id) {
+				if (BIG_ID.equals(id)) return StreamPumpTest.this.bigFile;
+				return ID.equals(id) ? StreamPumpTest.this.file : null;
+			}
+
+			@Override
+			public Validators idToValidators (final String id) {
+				return ID.equals(id) ? Validators.forContent("abc123", StreamPumpTest.this.file) : null;
+			}
+
+			@Override
+			public long idToDurationMillis (final String id) {
+				return FILE_BYTES * 1000L / REQUIRED_BYTES_PER_SECOND;
+			}
+		};
+
+		this.undertest = new StreamPump(1);
+		this.scheduler = new BandwidthScheduler(0);
+		this.undertest.start();
+		final ContentHandler handler = new ContentHandler(locator, new SeekIndexStore(new File(this.file.getAbsolutePath() + "-seek")),
+				new AccessLog(), this.scheduler, new SharedSegmentCache(null), this.undertest, new FfmpegTranscoder(), null);
+		final SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		this.server = new Server();
+		this.server.setHandler(handler);
+		this.server.addConnector(connector);
+		this.server.start();
+		this.url = "http://127.0.0.1:" + connector.getLocalPort() + "/" + ID;
+		this.bigUrl = "http://127.0.0.1:" + connector.getLocalPort() + "/" + BIG_ID;
+	}
+
+	@After
+	public void after () throws Exception {
+		this.server.stop();
+		this.undertest.stop();
+		this.file.delete();
+		this.bigFile.delete();
+	}
+
+	@Test
+	public void itParksPacedStreamAndSendsItAll () throws Exception {
+		this.scheduler.open("other", 0);
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url).openConnection();
+		assertEquals(200, conn.getResponseCode());
+		waitFor(new Condition() {
+			@Override
+			public boolean test () {
+				return StreamPumpTest.this.undertest.getParkedStreams() > 0;
+			}
+		});
+		assertEquals(1, this.undertest.getOpenStreams());
+
+		assertArrayEquals(this.data, readBody(conn));
+		waitForNoOpenStreams();
+		assertEquals(0, this.undertest.getParkedStreams());
+	}
+
+	@Test
+	public void itRejectsStreamsOverTheLimit () throws Exception {
+		this.scheduler.open("other", 0);
+		final HttpURLConnection first = (HttpURLConnection) new URL(this.url).openConnection();
+		assertEquals(200, first.getResponseCode());
+
+		final HttpURLConnection second = (HttpURLConnection) new URL(this.url).openConnection();
+		assertEquals(503, second.getResponseCode());
+		assertEquals("10", second.getHeaderField("Retry-After"));
+		assertEquals(1, this.undertest.getRejected());
+
+		assertArrayEquals(this.data, readBody(first));
+		waitForNoOpenStreams();
+
+		final HttpURLConnection third = (HttpURLConnection) new URL(this.url).openConnection();
+		third.setRequestProperty("Range", "bytes=0-99");
+		assertEquals(206, third.getResponseCode());
+		assertEquals(100, readBody(third).length);
+	}
+
+	@Test
+	public void itHoldsUnpacedStreamUntilClientHasItAll () throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.bigUrl).openConnection();
+		assertEquals(200, conn.getResponseCode());
+		Thread.sleep(500);
+		assertEquals(1, this.undertest.getOpenStreams());
+
+		final HttpURLConnection second = (HttpURLConnection) new URL(this.url).openConnection();
+		assertEquals(503, second.getResponseCode());
+
+		assertEquals(BIG_FILE_BYTES, readBody(conn).length);
+		waitForNoOpenStreams();
+	}
+
+	@Test
+	public void itReleasesStreamWhenClientGoesAway () throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(this.url).openConnection();
+		assertEquals(200, conn.getResponseCode());
+		conn.getInputStream().close();
+		conn.disconnect();
+		waitForNoOpenStreams();
+	}
+
+	private void waitForNoOpenStreams () throws InterruptedException {
+		waitFor(new Condition() {
+			@Override
+			public boolean test () {
+				return StreamPumpTest.this.undertest.getOpenStreams() == 0;
+			}
+		});
+	}
+
+	private interface Condition {
+		boolean test ();
+	}
+
+	private static void waitFor (final Condition condition) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+		while (!condition.test()) {
+			assertTrue("Timed out.", System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static byte[] readBody (final HttpURLConnection conn) throws IOException {
+		final InputStream is = conn.getInputStream();
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			is.close();
+		}
+	}
+
+}
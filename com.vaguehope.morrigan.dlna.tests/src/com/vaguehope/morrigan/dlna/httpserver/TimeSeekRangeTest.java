@@ -0,0 +1,46 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimeSeekRangeTest {
+
+	@Test
+	public void itIgnoresMissingOrInvalidHeaders () throws Exception {
+		assertNull(TimeSeekRange.parse(null));
+		assertNull(TimeSeekRange.parse(""));
+		assertNull(TimeSeekRange.parse("bytes=0-10"));
+		assertNull(TimeSeekRange.parse("npt=-10"));
+		assertNull(TimeSeekRange.parse("npt=abc-"));
+		assertNull(TimeSeekRange.parse("npt=NaN-"));
+		assertNull(TimeSeekRange.parse("npt=20-10"));
+		assertNull(TimeSeekRange.parse("npt=1:60:00-"));
+		assertNull(TimeSeekRange.parse("npt=1:00-"));
+	}
+
+	@Test
+	public void itParsesSeconds () throws Exception {
+		final TimeSeekRange r = TimeSeekRange.parse("npt=5400.25-");
+		assertEquals(5400250, r.getStartMillis());
+		assertFalse(r.hasEnd());
+	}
+
+	@Test
+	public void itParsesClockTimes () throws Exception {
+		final TimeSeekRange r = TimeSeekRange.parse(" NPT=1:30:00-1:35:00.5 ");
+		assertEquals(5400000, r.getStartMillis());
+		assertTrue(r.hasEnd());
+		assertEquals(5700500, r.getEndMillis());
+	}
+
+	@Test
+	public void itFormatsResponseHeader () throws Exception {
+		assertEquals("npt=90.000-120.500/300.001 bytes=1000-1999/5000",
+				TimeSeekRange.toResponseHeader(90000, 120500, 300001, new ByteRange(1000, 1999), 5000));
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TranscodeCacheTest {
+
+	private static final int ENTRY_BYTES = 1000;
+
+	private File dir;
+	private TranscodeCache undertest;
+
+	@Before
+	public void before () throws Exception {
+		this.dir = File.createTempFile("transcode-cache", "");
+		assertTrue(this.dir.delete());
+		this.undertest = new TranscodeCache(this.dir, ENTRY_BYTES * 3);
+	}
+
+	@After
+	public void after () throws Exception {
+		final File[] files = this.dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		this.dir.delete();
+	}
+
+	@Test
+	public void itKeysOnSourceAndProfile () throws Exception {
+		final File source = File.createTempFile("transcode-source", ".flac");
+		try {
+			final String key = TranscodeCache.keyFor(source, TranscodeProfile.MP3);
+			assertTrue(key, key.endsWith("-mp3.mp3"));
+			assertEquals(key, TranscodeCache.keyFor(source, TranscodeProfile.MP3));
+			assertTrue(source.setLastModified(source.lastModified() - 10000));
+			assertFalse(key.equals(TranscodeCache.keyFor(source, TranscodeProfile.MP3)));
+		}
+		finally {
+			source.delete();
+		}
+	}
+
+	@Test
+	public void itOnlyReturnsCommittedEntries () throws Exception {
+		final File part = this.undertest.partFileFor("a");
+		write(part, ENTRY_BYTES);
+		assertNull(this.undertest.get("a"));
+		assertEquals(0, this.undertest.getTotalBytes());
+
+		this.undertest.commit(part, "a");
+		assertNotNull(this.undertest.get("a"));
+		assertFalse(part.exists());
+		assertEquals(ENTRY_BYTES, this.undertest.getTotalBytes());
+	}
+
+	@Test
+	public void itEvictsLeastRecentlyUsedToStayWithinBudget () throws Exception {
+		commit("a", System.currentTimeMillis() - 40000);
+		commit("b", System.currentTimeMillis() - 30000);
+		commit("c", System.currentTimeMillis() - 20000);
+		assertTrue(new File(this.dir, "a").setLastModified(System.currentTimeMillis() - 10000)); // As if a was just used.
+
+		commit("d", System.currentTimeMillis());
+		assertNotNull(this.undertest.get("a"));
+		assertNull(this.undertest.get("b"));
+		assertNotNull(this.undertest.get("c"));
+		assertNotNull(this.undertest.get("d"));
+		assertEquals(ENTRY_BYTES * 3, this.undertest.getTotalBytes());
+	}
+
+	@Test
+	public void itKeepsNewestEntryEvenIfOverBudget () throws Exception {
+		final File part = this.undertest.partFileFor("big");
+		write(part, ENTRY_BYTES * 4);
+		this.undertest.commit(part, "big");
+		assertNotNull(this.undertest.get("big"));
+	}
+
+	@Test
+	public void itDeletesPartsLeftByPreviousRunButKeepsEntries () throws Exception {
+		commit("a", System.currentTimeMillis());
+		final File stale = this.undertest.partFileFor("b");
+		write(stale, ENTRY_BYTES);
+
+		final TranscodeCache restarted = new TranscodeCache(this.dir, ENTRY_BYTES * 3);
+		assertFalse(stale.exists());
+		assertNotNull(restarted.get("a"));
+	}
+
+	@Test
+	public void itGivesEachTranscodeItsOwnPartFile () throws Exception {
+		assertFalse(this.undertest.partFileFor("a").equals(this.undertest.partFileFor("a")));
+	}
+
+	private void commit (final String key, final long lastUsed) throws IOException {
+		final File part = this.undertest.partFileFor(key);
+		write(part, ENTRY_BYTES);
+		final File committed = this.undertest.commit(part, key);
+		assertTrue(committed.setLastModified(lastUsed));
+	}
+
+	private static void write (final File f, final int length) throws IOException {
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(new byte[length]);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+}
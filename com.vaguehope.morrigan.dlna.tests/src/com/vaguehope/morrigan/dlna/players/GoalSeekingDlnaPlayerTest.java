@@ -92,7 +92,7 @@ public class GoalSeekingDlnaPlayerTest {
 		this.testDb = new TestMixedMediaDb();
 		this.undertest = new GoalSeekingDlnaPlayer(
 				this.playerRegister, this.controlPoint, this.avTransportSvc,
-				this.mediaServer, this.mediaFileLocator, this.scheduledExecutor,
+				this.mediaServer, this.mediaFileLocator, mock(RendererCapabilities.class), this.scheduledExecutor,
 				this.avTransport, this.renderingControl);
 	}
 
@@ -0,0 +1,59 @@
+package com.vaguehope.morrigan.dlna.players;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SinkProtocolsTest {
+
+	@Test
+	public void itAcceptsListedHttpGetFormats () throws Exception {
+		final SinkProtocols undertest = SinkProtocols.parse(
+				"http-get:*:audio/mpeg:*,http-get:*:audio/L16;rate=44100;channels=2:DLNA.ORG_PN=LPCM,rtsp-rtp-udp:*:audio/flac:*");
+		assertFalse(undertest.isEmpty());
+		assertTrue(undertest.accepts("audio/mpeg"));
+		assertTrue(undertest.accepts("AUDIO/MPEG"));
+		assertTrue(undertest.accepts("audio/L16"));
+		assertFalse(undertest.accepts("audio/flac"));
+		assertFalse(undertest.accepts("video/mp4"));
+	}
+
+	@Test
+	public void itAcceptsWildcards () throws Exception {
+		final SinkProtocols undertest = SinkProtocols.parse("http-get:*:audio/*:*");
+		assertTrue(undertest.accepts("audio/flac"));
+		assertFalse(undertest.accepts("video/mp4"));
+		assertTrue(SinkProtocols.parse("http-get:*:*:*").accepts("video/mp4"));
+	}
+
+	@Test
+	public void itAcceptsFormatsListedUnderAliases () throws Exception {
+		final SinkProtocols undertest = SinkProtocols.parse(
+				"http-get:*:audio/x-flac:*,http-get:*:audio/x-wav:*,http-get:*:audio/x-m4a:*");
+		assertTrue(undertest.accepts("audio/flac"));
+		assertTrue(undertest.accepts("audio/vnd.wave"));
+		assertTrue(undertest.accepts("audio/wav"));
+		assertTrue(undertest.accepts("audio/mp4"));
+		assertFalse(undertest.accepts("audio/mpeg"));
+
+		assertTrue(SinkProtocols.parse("http-get:*:audio/wav:*").accepts("audio/vnd.wave"));
+		assertTrue(SinkProtocols.parse("http-get:*:audio/flac:*").accepts("audio/x-flac"));
+		assertFalse(SinkProtocols.parse("http-get:*:audio/L16:*").accepts("audio/vnd.wave"));
+	}
+
+	@Test
+	public void itIsEmptyWithoutHttpGetEntries () throws Exception {
+		assertTrue(SinkProtocols.parse(null).isEmpty());
+		assertTrue(SinkProtocols.parse("").isEmpty());
+		assertTrue(SinkProtocols.parse("internal:*:audio/mpeg:*,garbage").isEmpty());
+	}
+
+	@Test
+	public void itRoundTripsThroughToString () throws Exception {
+		final String raw = "http-get:*:audio/mpeg:*,http-get:*:audio/flac:*";
+		assertEquals(raw, SinkProtocols.parse(raw).toString());
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.vaguehope.morrigan.dlna;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.HashMap;
@@ -21,12 +22,20 @@ import org.osgi.framework.BundleContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vaguehope.morrigan.config.Config;
+import com.vaguehope.morrigan.dlna.content.FallbackFileRegistry;
+import com.vaguehope.morrigan.dlna.content.ImageDerivatives;
 import com.vaguehope.morrigan.dlna.content.MediaFileLocator;
 import com.vaguehope.morrigan.dlna.content.MediaServerDeviceFactory;
 import com.vaguehope.morrigan.dlna.extcd.ContentDirectoryHolder;
+import com.vaguehope.morrigan.dlna.httpserver.BandwidthScheduler;
 import com.vaguehope.morrigan.dlna.httpserver.MediaServer;
+import com.vaguehope.morrigan.dlna.httpserver.SeekIndexStore;
+import com.vaguehope.morrigan.dlna.httpserver.StreamPump;
+import com.vaguehope.morrigan.dlna.httpserver.TranscodeCache;
 import com.vaguehope.morrigan.dlna.players.PlayerHolder;
 import com.vaguehope.morrigan.dlna.players.PlayerRegisterListener;
+import com.vaguehope.morrigan.dlna.players.RendererCapabilities;
 import com.vaguehope.morrigan.dlna.util.LogHelper;
 import com.vaguehope.morrigan.dlna.util.NetHelper;
 import com.vaguehope.morrigan.model.media.MediaFactoryTracker;
@@ -38,6 +47,22 @@ import com.vaguehope.morrigan.util.StringHelper;
 public class Activator implements BundleActivator {
 
 	private static final int BG_THREADS = 3;
+	private static final String FALLBACK_IDS_FILE_NAME = "dlna-fallback-ids";
+	private static final int MAX_FALLBACK_IDS = 10000;
+	private static final String IMAGE_CACHE_DIR_NAME = "dlna-image-cache";
+	private static final String SEEK_INDEX_DIR_NAME = "dlna-seek-index";
+	private static final String TRANSCODE_CACHE_DIR_NAME = "dlna-transcode-cache";
+	private static final String PREF_HTTP_SERVER = "httpserver";
+	private static final String PREF_LINK_MBPS = "linkMbps";
+	/**
+	 * Typical of wired and good wifi home networks, so streams of unknown bitrate are paced too unless set to 0.
+	 */
+	private static final int DEFAULT_LINK_MBPS = 100;
+	private static final String PREF_MAX_STREAMS = "maxStreams";
+	private static final int DEFAULT_MAX_STREAMS = 64;
+	private static final String PREF_TRANSCODE_CACHE_MB = "transcodeCacheMb";
+	private static final int DEFAULT_TRANSCODE_CACHE_MB = 2048;
+	private static final long BYTES_PER_SECOND_PER_MBPS = 1000L * 1000L / 8L;
 
 	private static final Logger LOG = LoggerFactory.getLogger(Activator.class);
 
@@ -59,21 +84,32 @@ public class Activator implements BundleActivator {
 		this.scheduledExecutor = Executors.newScheduledThreadPool(BG_THREADS, new DaemonThreadFactory("dlna"));
 
 		this.mediaFactoryTracker = new MediaFactoryTracker(context);
-		final MediaFileLocator mediaFileLocator = new MediaFileLocator(this.mediaFactoryTracker);
-
-		this.mediaServer = new MediaServer(mediaFileLocator, bindAddress);
+		final FallbackFileRegistry fallbackFiles = new FallbackFileRegistry(new File(Config.getConfigDir(), FALLBACK_IDS_FILE_NAME), MAX_FALLBACK_IDS);
+		final ImageDerivatives imageDerivatives = new ImageDerivatives(new File(Config.getConfigDir(), IMAGE_CACHE_DIR_NAME));
+		final MediaFileLocator mediaFileLocator = new MediaFileLocator(this.mediaFactoryTracker, fallbackFiles, imageDerivatives);
+
+		final SeekIndexStore seekIndexStore = new SeekIndexStore(new File(Config.getConfigDir(), SEEK_INDEX_DIR_NAME));
+		final BandwidthScheduler bandwidthScheduler = new BandwidthScheduler(
+				UserPrefs.INSTANCE.getIntValue(PREF_HTTP_SERVER, PREF_LINK_MBPS, DEFAULT_LINK_MBPS) * BYTES_PER_SECOND_PER_MBPS);
+		final StreamPump streamPump = new StreamPump(
+				UserPrefs.INSTANCE.getIntValue(PREF_HTTP_SERVER, PREF_MAX_STREAMS, DEFAULT_MAX_STREAMS));
+		final TranscodeCache transcodeCache = new TranscodeCache(new File(Config.getConfigDir(), TRANSCODE_CACHE_DIR_NAME),
+				UserPrefs.INSTANCE.getIntValue(PREF_HTTP_SERVER, PREF_TRANSCODE_CACHE_MB, DEFAULT_TRANSCODE_CACHE_MB) * 1024L * 1024L);
+		this.mediaServer = new MediaServer(mediaFileLocator, seekIndexStore, bandwidthScheduler, streamPump, transcodeCache, bindAddress);
 		this.mediaServer.start();
 
 		this.upnpService = makeUpnpServer();
+		final RendererCapabilities rendererCapabilities = new RendererCapabilities(this.upnpService.getControlPoint(), this.scheduledExecutor);
 		this.playerHolder = new PlayerHolder(this.upnpService.getControlPoint(), this.mediaServer, mediaFileLocator,
-				new PlayerStateStorage(this.mediaFactoryTracker, this.scheduledExecutor), this.scheduledExecutor);
+				new PlayerStateStorage(this.mediaFactoryTracker, this.scheduledExecutor), rendererCapabilities, this.scheduledExecutor);
 		this.playerRegisterListener = new PlayerRegisterListener(context, this.playerHolder);
 
 		this.upnpService.getRegistry().addDevice(new MediaServerDeviceFactory(
 				InetAddress.getLocalHost().getHostName(),
 				this.mediaFactoryTracker,
 				this.mediaServer,
-				mediaFileLocator
+				mediaFileLocator,
+				rendererCapabilities
 				).getDevice());
 
 		this.contentDirectoryHolder = new ContentDirectoryHolder(this.upnpService.getControlPoint(), this.mediaFactoryTracker);
@@ -9,6 +9,7 @@ import org.fourthline.cling.model.meta.RemoteService;
 public final class UpnpHelper {
 
 	public static final String SERVICE_AVTRANSPORT = "AVTransport";
+	public static final String SERVICE_CONNECTIONMANAGER = "ConnectionManager";
 	public static final String SERVICE_CONTENTDIRECTORY = "ContentDirectory";
 	public static final String SERVICE_RENDERINGCONTROL = "RenderingControl";
 
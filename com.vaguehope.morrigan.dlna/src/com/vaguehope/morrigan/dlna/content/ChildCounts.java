@@ -0,0 +1,98 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.util.Cache;
+import com.vaguehope.morrigan.util.DaemonThreadFactory;
+
+/**
+ * childCount for containers listed inside another, without making a node for each.
+ * Making a node records its count.  Containers that are cheap to count, i.e. from a list the DB already keeps,
+ * are otherwise counted in the background the first time they are listed, and the next listing shows it.
+ * Until then childCount is left off, which renderers treat as unknown, rather than claiming 0.
+ * Those that would cost a full query to count only ever show what making their node recorded.
+ */
+final class ChildCounts {
+
+	interface Counter {
+		int count () throws Exception;
+	}
+
+	private static final int MAX_COUNTS = 10000;
+	/**
+	 * Older counts are still shown, but counted again.
+	 */
+	private static final int MAX_COUNT_AGE_MINUTES = 10;
+	private static final int QUEUE_LENGTH = 1000;
+
+	private static final Logger LOG = LoggerFactory.getLogger(ChildCounts.class);
+
+	private final Cache<String, Integer> counts = new Cache<String, Integer>(1000, MAX_COUNTS);
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ExecutorService executor;
+
+	ChildCounts () {
+		final ThreadPoolExecutor tpe = new ThreadPoolExecutor(1, 1,
+				1L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(QUEUE_LENGTH),
+				new DaemonThreadFactory("dlna-counts"));
+		tpe.allowCoreThreadTimeOut(true); // ContentAdaptor has no dispose, so do not hold a thread when idle.
+		this.executor = tpe;
+	}
+
+	void put (final String objectId, final int count) {
+		this.counts.put(objectId, Integer.valueOf(count));
+	}
+
+	/**
+	 * Returns null if not known yet.
+	 * Never counts, for containers where counting costs as much as making the node.
+	 */
+	Integer getKnown (final String objectId) {
+		return this.counts.getFresh(objectId, MAX_COUNT_AGE_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Returns null if not known yet.
+	 */
+	Integer get (final String objectId, final Counter counter) {
+		final Integer fresh = this.counts.getFresh(objectId, MAX_COUNT_AGE_MINUTES, TimeUnit.MINUTES);
+		if (fresh != null) return fresh;
+		schedule(objectId, counter);
+		return this.counts.getEvenIfExpired(objectId);
+	}
+
+	private void schedule (final String objectId, final Counter counter) {
+		if (!this.pending.add(objectId)) return;
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run () {
+					try {
+						put(objectId, counter.count());
+					}
+					catch (final Exception e) {
+						LOG.warn("Failed to count children of: " + objectId, e);
+					}
+					finally {
+						ChildCounts.this.pending.remove(objectId);
+					}
+				}
+			});
+		}
+		catch (final RejectedExecutionException e) {
+			this.pending.remove(objectId);
+			LOG.debug("Count queue full, skipping: {}", objectId);
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.item.Item;
+
+import com.vaguehope.morrigan.dlna.players.SinkProtocols;
+import com.vaguehope.morrigan.dlna.util.HashHelper;
+
+/**
+ * Items list the original first, then any transcodes, then art.
+ * Clients are meant to pick the first res they can play but many just take the first,
+ * so for a client known not to accept the original the first it does accept is moved to the front.
+ * Image derivatives (JPEG_TN, JPEG_SM) are never moved, a thumbnail is not a stand in for a photo.
+ */
+final class ClientResources {
+
+	static final ClientResources ANY = new ClientResources(null);
+
+	private final SinkProtocols sink;
+	private final String key;
+
+	private ClientResources (final SinkProtocols sink) {
+		this.sink = sink;
+		this.key = sink != null ? HashHelper.sha1(sink.toString()) + "|" : "";
+	}
+
+	static ClientResources forSink (final SinkProtocols sink) {
+		return sink != null ? new ClientResources(sink) : ANY;
+	}
+
+	/**
+	 * Clients with the same key get the same DIDL.
+	 * Short enough to prefix cache keys with.
+	 */
+	String key () {
+		return this.key;
+	}
+
+	List<Item> apply (final List<Item> items) {
+		if (this.sink == null) return items;
+		List<Item> ret = null;
+		for (int i = 0; i < items.size(); i++) {
+			final Item item = items.get(i);
+			final Item reordered = apply(item);
+			if (reordered != item && ret == null) ret = new ArrayList<Item>(items.subList(0, i));
+			if (ret != null) ret.add(reordered);
+		}
+		return ret != null ? ret : items;
+	}
+
+	/**
+	 * Returns the item unchanged if nothing needs moving, otherwise a copy.
+	 * Items are shared between clients so are never modified.
+	 */
+	Item apply (final Item item) {
+		if (this.sink == null) return item;
+		final List<Res> resources = item.getResources();
+		if (resources.size() < 2) return item;
+
+		final String originalMime = mimeOf(resources.get(0));
+		if (originalMime == null || this.sink.accepts(originalMime)) return item;
+
+		final String originalType = originalMime.substring(0, originalMime.indexOf('/') + 1);
+		for (int i = 1; i < resources.size(); i++) {
+			final String mime = mimeOf(resources.get(i));
+			if (mime == null || !mime.startsWith(originalType) || isDerivative(resources.get(i)) || !this.sink.accepts(mime)) continue;
+
+			final List<Res> reordered = new ArrayList<Res>(resources);
+			reordered.add(0, reordered.remove(i));
+			final Item copy = new Item(item);
+			copy.setResources(reordered);
+			return copy;
+		}
+		return item;
+	}
+
+	/**
+	 * Thumbnails share the original's type but are not a substitute for it.
+	 */
+	private static boolean isDerivative (final Res res) {
+		final String info = res.getProtocolInfo().getAdditionalInfo();
+		if (info == null) return false;
+		for (final DlnaImageProfile p : DlnaImageProfile.values()) {
+			if (info.contains("DLNA.ORG_PN=" + p.name())) return true;
+		}
+		return false;
+	}
+
+	private static String mimeOf (final Res res) {
+		if (res.getProtocolInfo() == null) return null;
+		final String mime = res.getProtocolInfo().getContentFormat();
+		return mime != null && mime.indexOf('/') > 0 ? mime : null;
+	}
+
+}
@@ -5,14 +5,16 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.fourthline.cling.model.ModelUtil;
 import org.fourthline.cling.support.model.DIDLObject;
 import org.fourthline.cling.support.model.DIDLObject.Property.DC;
+import org.fourthline.cling.support.model.Protocol;
+import org.fourthline.cling.support.model.ProtocolInfo;
 import org.fourthline.cling.support.model.Res;
 import org.fourthline.cling.support.model.WriteStatus;
 import org.fourthline.cling.support.model.container.Container;
@@ -26,7 +28,11 @@ import org.slf4j.LoggerFactory;
 
 import com.vaguehope.morrigan.dlna.MediaFormat;
 import com.vaguehope.morrigan.dlna.UpnpHelper;
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Decoded;
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Kind;
 import com.vaguehope.morrigan.dlna.httpserver.MediaServer;
+import com.vaguehope.morrigan.dlna.httpserver.SeekIndexer;
+import com.vaguehope.morrigan.dlna.httpserver.TranscodeProfile;
 import com.vaguehope.morrigan.dlna.util.Cache;
 import com.vaguehope.morrigan.dlna.util.HashHelper;
 import com.vaguehope.morrigan.dlna.util.LruMap;
@@ -48,7 +54,29 @@ public class ContentAdaptor {
 
 	private static final int MAX_CACHE_AGE_SECONDS = 60;
 	private static final int MAX_TAGS = 250;
-	private static final int MAX_ITEMS = 1000;
+	/**
+	 * Paged containers hold one key per item, across all cached nodes and their sorted views.
+	 * Least recently used nodes are dropped to stay within it, though the most recent is always kept.
+	 */
+	private static final int MAX_CACHED_KEYS = 200000;
+	private static final int MAX_SHARED_ITEMS = 10000;
+	private static final int MAX_LEGACY_IDS = 1000;
+	private static final int MAX_UNKNOWN_LEGACY_IDS = 500;
+	/**
+	 * Long enough that a renderer retrying a stale ID does not list every tag or album each time,
+	 * short enough that a tag or album just added is soon found.
+	 */
+	private static final int UNKNOWN_LEGACY_ID_MAX_AGE_SECONDS = 10;
+	/**
+	 * Bounds how long tag and cover art changes take to show, as neither changes the fingerprint.
+	 */
+	private static final int MAX_SHARED_ITEM_AGE_MINUTES = 10;
+	private static final String DLNA_OP_BYTE_SEEK = "DLNA.ORG_OP=01";
+	private static final String DLNA_OP_TIME_AND_BYTE_SEEK = "DLNA.ORG_OP=11";
+	/**
+	 * Transcodes are streamed as they are made so can not seek, and CI=1 marks them as converted.
+	 */
+	private static final String DLNA_TRANSCODED_MP3 = "DLNA.ORG_PN=MP3;DLNA.ORG_OP=00;DLNA.ORG_CI=1";
 
 	private static final Logger LOG = LoggerFactory.getLogger(ContentAdaptor.class);
 
@@ -58,11 +86,18 @@ public class ContentAdaptor {
 	private final DbHelper dbHelper;
 
 	private final Map<String, ContentNode> cache = Collections.synchronizedMap(new LruMap<String, ContentNode>(100, 100));
-
-	private final Map<String, MediaListReference> objectIdToMediaListReference = new ConcurrentHashMap<String, MediaListReference>();
-	private final Map<String, MlrAnd<DbSubNodeType>> objectIdToDbSubNodeType = new ConcurrentHashMap<String, MlrAnd<DbSubNodeType>>();
-	private final Map<String, MlrAnd<MediaTag>> objectIdToTag = new ConcurrentHashMap<String, MlrAnd<MediaTag>>();
-	private final Map<String, MlrAnd<MediaAlbum>> objectIdToAlbum = new ConcurrentHashMap<String, MlrAnd<MediaAlbum>>();
+	/**
+	 * The same track is listed under tags, albums, recently added, most played and in search results,
+	 * so each Item is made once and shared.  Shared items keep the parentID of whichever container
+	 * made them, ContentDirectoryService writes the right one for each page.
+	 */
+	private final Cache<String, SharedItem> sharedItems = new Cache<String, SharedItem>(1000, MAX_SHARED_ITEMS);
+	private final ChildCounts childCounts = new ChildCounts();
+	/**
+	 * Legacy tag and album IDs to what they were made from.
+	 */
+	private final Map<String, LegacyTarget> legacyIds = Collections.synchronizedMap(new LruMap<String, LegacyTarget>(100, MAX_LEGACY_IDS));
+	private final Cache<String, Boolean> unknownLegacyIds = new Cache<String, Boolean>(10, MAX_UNKNOWN_LEGACY_IDS);
 
 	public ContentAdaptor (final MediaFactory mediaFactory, final MediaServer mediaServer, final MediaFileLocator mediaFileLocator) {
 		this.mediaFactory = mediaFactory;
@@ -80,50 +115,158 @@ public class ContentAdaptor {
 
 		final ContentNode made = makeNode(objectId);
 		this.cache.put(objectId, made);
+		trimCache();
+		if (made != null && !made.isItem() && made.getContainer().getChildCount() != null) {
+			this.childCounts.put(objectId, made.getContainer().getChildCount().intValue());
+		}
 		return made;
 	}
 
+	private void trimCache () {
+		synchronized (this.cache) {
+			int total = 0;
+			for (final ContentNode node : this.cache.values()) {
+				if (node != null) total += node.keysHeld();
+			}
+			final Iterator<ContentNode> it = this.cache.values().iterator(); // Eldest first.
+			int olderThanNewest = this.cache.size() - 1;
+			while (total > MAX_CACHED_KEYS && olderThanNewest-- > 0) {
+				final ContentNode node = it.next();
+				if (node == null) continue;
+				final int keys = node.keysHeld();
+				if (keys < 1) continue;
+				it.remove();
+				total -= keys;
+			}
+		}
+	}
+
 	private ContentNode makeNode (final String objectId) throws DbException, MorriganException {
 		if (ContentGroup.ROOT.getId().equals(objectId)) {
 			return makeRootNode();
 		}
 
-		// TODO make more efficient by checking id prefixes?
+		try {
+			final Decoded decoded = ObjectIdCodec.decode(objectId);
+			final ContentNode node = decoded != null ? decodedToNode(objectId, decoded) : legacyIdToNode(objectId);
+			if (node != null) return node;
+		}
+		catch (final IllegalArgumentException e) {
+			LOG.info("Invalid ID: {} ({})", objectId, e.getMessage());
+			return null;
+		}
+
+		LOG.info("Not found: {}", objectId);
+		return null;
+	}
+
+	private ContentNode decodedToNode (final String objectId, final Decoded decoded) throws DbException, MorriganException {
+		final MediaListReference mlr = this.dbHelper.dbShortIdToMlr(decoded.getDb());
+		if (mlr == null) return null;
 
-		{
-			final MediaListReference mlr = this.objectIdToMediaListReference.get(objectId);
-			if (mlr != null) {
+		switch (decoded.getKind()) {
+			case DB:
 				return makeMediaListNode(objectId, mlr);
-			}
+			case DB_SUB_NODE:
+				return makeDbSubNode(objectId, mlr, DbSubNodeType.valueOf(decoded.getPayload()));
+			case TAG:
+				return makeTagNode(objectId, mlr, ObjectIdCodec.decodeName(decoded.getPayload()));
+			case ALBUM:
+				return makeAlbumNode(objectId, mlr, ObjectIdCodec.decodeName(decoded.getPayload()));
+			default:
+				return null;
 		}
+	}
 
-		{
-			final MlrAnd<DbSubNodeType> mlrAndDbSubNodeType = this.objectIdToDbSubNodeType.get(objectId);
-			if (mlrAndDbSubNodeType != null) {
-				return makeDbSubNode(objectId, mlrAndDbSubNodeType.getMlr(), mlrAndDbSubNodeType.getObj());
-			}
+	/**
+	 * IDs from before ObjectIdCodec are hashes, so find them by regenerating candidates.
+	 * The prefix says which kind to regenerate.  Only hit by renderers that remembered an old ID.
+	 */
+	private ContentNode legacyIdToNode (final String objectId) throws DbException, MorriganException {
+		if (objectId.startsWith("ldb-")) return legacyDbIdToNode(objectId);
+		if (objectId.startsWith("dsn-")) return legacyDbSubNodeIdToNode(objectId);
+		if (objectId.startsWith("tag-") || objectId.startsWith("alb-")) return legacyTagOrAlbumIdToNode(objectId);
+		return null;
+	}
+
+	private ContentNode legacyDbIdToNode (final String objectId) {
+		for (final MediaListReference mlr : this.mediaFactory.getAllLocalMixedMediaDbs()) {
+			if (objectId.equals(makeLegacyLocalMmdbObjectId(mlr))) return makeMediaListNode(objectId, mlr);
 		}
+		return null;
+	}
 
-		{
-			final MlrAnd<MediaTag> mlrAndTag = this.objectIdToTag.get(objectId);
-			if (mlrAndTag != null) {
-				return makeTagNode(objectId, mlrAndTag.getMlr(), mlrAndTag.getObj());
-			}
+	/**
+	 * The type is the last part of the ID, so only the DB needs finding.
+	 */
+	private ContentNode legacyDbSubNodeIdToNode (final String objectId) throws DbException, MorriganException {
+		final DbSubNodeType t = DbSubNodeType.valueOf(objectId.substring(objectId.lastIndexOf('-') + 1));
+		for (final MediaListReference mlr : this.mediaFactory.getAllLocalMixedMediaDbs()) {
+			if (objectId.equals(makeLegacyDbSubNodeObjectId(mlr, t))) return makeDbSubNode(objectId, mlr, t);
 		}
+		return null;
+	}
 
-		{
-			final MlrAnd<MediaAlbum> mlrAndAlbum = this.objectIdToAlbum.get(objectId);
-			if (mlrAndAlbum != null) {
-				return makeAlbumNode(objectId, mlrAndAlbum.getMlr(), mlrAndAlbum.getObj());
+	/**
+	 * Finding one means listing every tag or album, so every ID made while looking is remembered,
+	 * as a renderer with one old ID usually has its siblings too.
+	 */
+	private ContentNode legacyTagOrAlbumIdToNode (final String objectId) throws DbException, MorriganException {
+		LegacyTarget target = this.legacyIds.get(objectId);
+		if (target == null) {
+			if (this.unknownLegacyIds.getFresh(objectId, UNKNOWN_LEGACY_ID_MAX_AGE_SECONDS, TimeUnit.SECONDS) != null) return null;
+			final boolean isTag = objectId.startsWith("tag-");
+			for (final MediaListReference mlr : this.mediaFactory.getAllLocalMixedMediaDbs()) {
+				final IMixedMediaDb db = this.dbHelper.mediaListReferenceToDb(mlr);
+				if (db == null) continue;
+				if (isTag) {
+					for (final MediaTag tag : db.getTopTags(MAX_TAGS)) {
+						target = rememberLegacyId(objectId, makeLegacyTagObjectId(mlr, tag), new LegacyTarget(mlr, Kind.TAG, tag.getTag()), target);
+					}
+				}
+				else {
+					for (final MediaAlbum album : db.getAlbums()) {
+						target = rememberLegacyId(objectId, makeLegacyAlbumObjectId(mlr, album), new LegacyTarget(mlr, Kind.ALBUM, album.getName()), target);
+					}
+				}
+				if (target != null) break;
+			}
+			if (target == null) {
+				this.unknownLegacyIds.put(objectId, Boolean.TRUE);
+				return null;
 			}
 		}
+		return target.kind == Kind.TAG
+				? makeTagNode(objectId, target.mlr, target.name)
+				: makeAlbumNode(objectId, target.mlr, target.name);
+	}
+
+	/**
+	 * Returns the target for wantedId if this is it, otherwise found, which is null until it has been.
+	 */
+	private LegacyTarget rememberLegacyId (final String wantedId, final String legacyId, final LegacyTarget target, final LegacyTarget found) {
+		this.legacyIds.put(legacyId, target);
+		return wantedId.equals(legacyId) ? target : found;
+	}
+
+	private static final class LegacyTarget {
+
+		final MediaListReference mlr;
+		final Kind kind;
+		final String name;
+
+		LegacyTarget (final MediaListReference mlr, final Kind kind, final String name) {
+			this.mlr = mlr;
+			this.kind = kind;
+			this.name = name;
+		}
 
-		LOG.info("Not found: {}", objectId);
-		return null;
 	}
 
 	public IMixedMediaDb objectIdToDb (final String objectId) throws DbException, MorriganException {
-		final MediaListReference mlr = this.objectIdToMediaListReference.get(objectId);
+		final Decoded decoded = ObjectIdCodec.decode(objectId);
+		if (decoded == null || decoded.getKind() != Kind.DB) return null;
+		final MediaListReference mlr = this.dbHelper.dbShortIdToMlr(decoded.getDb());
 		if (mlr == null) return null;
 		return this.dbHelper.mediaListReferenceToDb(mlr);
 	}
@@ -142,6 +285,7 @@ public class ContentAdaptor {
 		for (final MediaListReference mlr : this.mediaFactory.getAllLocalMixedMediaDbs()) {
 			final Container mlc = makeContainer(ContentGroup.ROOT.getId(), localMmdbObjectId(mlr), mlr.getTitle());
 			mlc.setSearchable(true); // Each DB is searchable.
+			mlc.setChildCount(Integer.valueOf(DbSubNodeType.values().length));
 			c.addContainer(mlc);
 		}
 		updateContainer(c);
@@ -153,27 +297,63 @@ public class ContentAdaptor {
 		final Container c = makeContainer(ContentGroup.ROOT.getId(), objectId, mlr.getTitle());
 
 		for (final DbSubNodeType t : DbSubNodeType.values()) {
-			c.addContainer(makeContainer(objectId, dbSubNodeObjectId(mlr, t), t.getTitle()));
+			final String subId = dbSubNodeObjectId(mlr, t);
+			final Container subC = makeContainer(objectId, subId, t.getTitle());
+			if (t.isCheapToCount()) {
+				subC.setChildCount(this.childCounts.get(subId, new ChildCounts.Counter() {
+					@Override
+					public int count () throws Exception {
+						return countDbSubNode(mlr, t);
+					}
+				}));
+			}
+			else {
+				subC.setChildCount(this.childCounts.getKnown(subId));
+			}
+			c.addContainer(subC);
 		}
+		updateContainer(c);
 
 		return new ContentNode(c);
 	}
 
 	private static enum DbSubNodeType {
-		TAGS("Tags"),
-		ALBUMS("Albums"),
-		RECENTLY_ADDED("Recently Added"),
-		MOST_PLAYED("Most Played");
+		TAGS("Tags", true),
+		ALBUMS("Albums", true),
+		RECENTLY_ADDED("Recently Added", false),
+		MOST_PLAYED("Most Played", false);
 
 		private final String title;
+		private final boolean cheapToCount;
 
-		private DbSubNodeType (final String title) {
+		private DbSubNodeType (final String title, final boolean cheapToCount) {
 			this.title = title;
+			this.cheapToCount = cheapToCount;
 		}
 
 		public String getTitle () {
 			return this.title;
 		}
+
+		/**
+		 * False if counting would cost the same query as making the node.
+		 */
+		public boolean isCheapToCount () {
+			return this.cheapToCount;
+		}
+	}
+
+	private int countDbSubNode (final MediaListReference mlr, final DbSubNodeType type) throws DbException, MorriganException {
+		final IMixedMediaDb db = this.dbHelper.mediaListReferenceToDb(mlr);
+		if (db == null) throw new IllegalArgumentException("Unknown DB type: " + mlr);
+		switch (type) {
+			case TAGS:
+				return db.getTopTags(MAX_TAGS).size();
+			case ALBUMS:
+				return db.getAlbums().size();
+			default:
+				throw new IllegalArgumentException("Not cheap to count: " + type);
+		}
 	}
 
 	private ContentNode makeDbSubNode (final String objectId, final MediaListReference mlr, final DbSubNodeType type) throws DbException, MorriganException {
@@ -199,22 +379,26 @@ public class ContentAdaptor {
 		final Container c = makeContainer(localMmdbObjectId(mlr), objectId, mlr.getTitle());
 
 		for (final MediaTag tag : db.getTopTags(MAX_TAGS)) {
-			c.addContainer(makeContainer(objectId, tagObjectId(mlr, tag), tag.getTag()));
+			final String tagId = tagObjectId(mlr, tag);
+			final Container tagC = makeContainer(objectId, tagId, tag.getTag());
+			// Tags carry no count and the DB has no count query, so counting would be a full search per tag.
+			tagC.setChildCount(this.childCounts.getKnown(tagId));
+			c.addContainer(tagC);
 		}
 		updateContainer(c);
 
 		return new ContentNode(c);
 	}
 
-	private ContentNode makeTagNode (final String objectId, final MediaListReference mlr, final MediaTag tag) throws DbException, MorriganException {
+	private ContentNode makeTagNode (final String objectId, final MediaListReference mlr, final String tag) throws DbException, MorriganException {
 		final IMixedMediaDb db = this.dbHelper.mediaListReferenceToDb(mlr);
 		if (db != null) return makeDbTagNode(objectId, mlr, db, tag);
 		throw new IllegalArgumentException("Unknown DB type: " + mlr);
 	}
 
-	private ContentNode makeDbTagNode (final String objectId, final MediaListReference mlr, final IMixedMediaDb db, final MediaTag tag) throws DbException, MorriganException {
+	private ContentNode makeDbTagNode (final String objectId, final MediaListReference mlr, final IMixedMediaDb db, final String tag) throws DbException, MorriganException {
 		return queryToContentNode(dbSubNodeObjectId(mlr, DbSubNodeType.TAGS), objectId, mlr, db,
-				String.format("t=\"%s\"", tag.getTag()),
+				tagSearchTerm(tag),
 				new IDbColumn[] {
 						IMixedMediaItemStorageLayer.SQL_TBL_MEDIAFILES_COL_ENDCNT,
 						IMixedMediaItemStorageLayer.SQL_TBL_MEDIAFILES_COL_DADDED,
@@ -223,16 +407,23 @@ public class ContentAdaptor {
 				new SortDirection[] { SortDirection.DESC, SortDirection.ASC, SortDirection.ASC });
 	}
 
+	private static String tagSearchTerm (final String tag) {
+		return String.format("t=\"%s\"", tag);
+	}
+
 	private ContentNode makeDbAlbumsNode (final String objectId, final MediaListReference mlr, final IMixedMediaDb db) throws MorriganException {
 		final Container c = makeContainer(localMmdbObjectId(mlr), objectId, mlr.getTitle());
 
 		for (final MediaAlbum album : db.getAlbums()) {
-			final Container albumC = makeContainer(objectId, albumObjectId(mlr, album), album.getName());
+			final String albumId = albumObjectId(mlr, album);
+			final Container albumC = makeContainer(objectId, albumId, album.getName());
+			albumC.setChildCount(albumChildCount(albumId, album));
 
 			final File artFile = db.findAlbumCoverArt(album);
-			if (artFile != null) {
-				final Res artRes = makeArtRes(artFile, this.mediaFileLocator.albumArtId(mlr, album));
-				if (artRes != null) albumC.addProperty(new DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create(artRes.getValue())));
+			if (artFile != null && isImage(artFile)) {
+				final String artId = this.mediaFileLocator.albumArtId(mlr, album);
+				albumC.addProperty(new DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create(
+						this.mediaServer.uriForId(DlnaImageProfile.JPEG_TN.idFor(artId)))));
 			}
 
 			c.addContainer(albumC);
@@ -242,16 +433,31 @@ public class ContentAdaptor {
 		return new ContentNode(c);
 	}
 
-	private ContentNode makeAlbumNode (final String objectId, final MediaListReference mlr, final MediaAlbum album) throws DbException, MorriganException {
+	/**
+	 * What making the album's node counted if known, as that leaves out files that can not be listed,
+	 * otherwise the track count the DB keeps with the album, which costs nothing to read.
+	 */
+	private Integer albumChildCount (final String albumId, final MediaAlbum album) {
+		final Integer known = this.childCounts.getKnown(albumId);
+		return known != null ? known : Integer.valueOf(album.getTrackCount());
+	}
+
+	private ContentNode makeAlbumNode (final String objectId, final MediaListReference mlr, final String albumName) throws DbException, MorriganException {
 		final IMixedMediaDb db = this.dbHelper.mediaListReferenceToDb(mlr);
-		if (db != null) return makeDbAlbumNode(objectId, mlr, db, album);
-		throw new IllegalArgumentException("Unknown DB type: " + mlr);
+		if (db == null) throw new IllegalArgumentException("Unknown DB type: " + mlr);
+		final MediaAlbum album = db.getAlbum(albumName);
+		if (album == null) return null;
+		return makeDbAlbumNode(objectId, mlr, db, album);
 	}
 
-	private ContentNode makeDbAlbumNode (final String objectId, final MediaListReference mlr, final IMixedMediaDb db, final MediaAlbum album) throws MorriganException {
+	private ContentNode makeDbAlbumNode (final String objectId, final MediaListReference mlr, final IMixedMediaDb db, final MediaAlbum album) throws DbException, MorriganException {
 		final Container c = makeContainer(dbSubNodeObjectId(mlr, DbSubNodeType.ALBUMS), objectId, mlr.getTitle());
-		addItemsToContainer(mlr, c, db, db.getAlbumItems(MediaType.TRACK, album));
-		return new ContentNode(c);
+		return pagedNode(mlr, c, db, new RowQuery() {
+			@Override
+			public Collection<IMixedMediaItem> run () throws DbException, MorriganException {
+				return db.getAlbumItems(MediaType.TRACK, album);
+			}
+		});
 	}
 
 	private ContentNode makeDbRecentlyAddedNode (final String objectId, final MediaListReference mlr, final IMixedMediaDb db) throws DbException, MorriganException {
@@ -277,43 +483,130 @@ public class ContentAdaptor {
 	private ContentNode queryToContentNode (final String parentObjectId, final String objectId, final MediaListReference mlr,
 			final IMixedMediaDb db, final String term, final IDbColumn[] sortColumns, final SortDirection[] sortDirections) throws DbException, MorriganException {
 		final Container c = makeContainer(parentObjectId, objectId, mlr.getTitle());
-		addItemsToContainer(mlr, c, db, db.simpleSearchMedia(MediaType.TRACK, term, MAX_ITEMS, sortColumns, sortDirections, false));
-		return new ContentNode(c);
+		return pagedNode(mlr, c, db, new RowQuery() {
+			@Override
+			public Collection<IMixedMediaItem> run () throws DbException, MorriganException {
+				return db.simpleSearchMedia(MediaType.TRACK, term, Integer.MAX_VALUE, sortColumns, sortDirections, false);
+			}
+		});
+	}
+
+	private interface RowQuery {
+		Collection<IMixedMediaItem> run () throws DbException, MorriganException;
+	}
+
+	/**
+	 * Not truncated, as only a key is kept for each row.
+	 * The query is run again for other sort orders, and each row is looked up again by its key when a page lists it.
+	 */
+	private ContentNode pagedNode (final MediaListReference mlr, final Container c, final IMixedMediaDb db, final RowQuery query) throws DbException, MorriganException {
+		final List<IMixedMediaItem> listable = listable(query.run(), true);
+		c.setChildCount(Integer.valueOf(listable.size()));
+		return new ContentNode(c, new PagedItems(listable, new PagedItems.ItemSource() {
+			@Override
+			public Collection<IMixedMediaItem> rows () throws DbException, MorriganException {
+				return listable(query.run(), false);
+			}
+
+			@Override
+			public Item make (final String key, final boolean detailed) throws DbException, MorriganException {
+				final IMixedMediaItem row = db.hasFile(key).isKnown() ? db.getByFile(key) : null;
+				final Item item;
+				if (row == null) {
+					item = null;
+				}
+				else {
+					item = detailed ? sharedItem(c, mlr, db, row) : bareItem(c, mlr, row);
+				}
+				return item != null ? item : goneItem(c, key);
+			}
+		}));
 	}
 
-	private void addItemsToContainer (final MediaListReference mlr, final Container c, final IMixedMediaDb db, final Collection<IMixedMediaItem> items) throws MorriganException {
-		for (final IMixedMediaItem item : items) {
-			final Item i = makeItem(c, mlr, item);
-			if (i != null) {
-				tagsToDescription(db, item, i);
-				c.addItem(i);
+	/**
+	 * Rows that can not be listed are dropped so the child count matches what the pages will hold.
+	 */
+	private static List<IMixedMediaItem> listable (final Collection<IMixedMediaItem> rows, final boolean warn) {
+		final List<IMixedMediaItem> listable = new ArrayList<IMixedMediaItem>(rows.size());
+		for (final IMixedMediaItem row : rows) {
+			if (isListable(row)) {
+				listable.add(row);
+			}
+			else if (warn) {
+				LOG.warn("Unknown media format: {}", row.getFilepath());
 			}
 		}
-		updateContainer(c);
+		return listable;
+	}
+
+	private static boolean isListable (final IMixedMediaItem row) {
+		return MediaFormat.identify(new File(row.getFilepath())) != null;
 	}
 
 	private final Cache<String, List<IMixedMediaItem>> queryCache = new Cache<String, List<IMixedMediaItem>>(50);
 
-	public List<Item> queryToItems(final MediaListReference mlr, final IMixedMediaDb db, final String term, final Container parentContainer, final int maxResults) throws DbException, MorriganException {
+	/**
+	 * Returns the rows a search term matches, unsorted.
+	 */
+	public List<IMixedMediaItem> queryToRows (final MediaListReference mlr, final IMixedMediaDb db, final String term, final int maxResults) throws DbException, MorriganException {
 		final String cacheKey = String.format("%s|%s|%s", term, maxResults, mlr.getIdentifier());
 		List<IMixedMediaItem> results = this.queryCache.getFresh(cacheKey, 1, TimeUnit.MINUTES);
 		if (results == null) {
 			results = db.simpleSearchMedia(MediaType.TRACK, term, maxResults);
 			this.queryCache.put(cacheKey, results);
 		}
+		return results;
+	}
 
-		final List<Item> ret = new ArrayList<Item>();
-		for (final IMixedMediaItem item : results) {
-			final Item i = makeItem(parentContainer, mlr, item);
-			if (i != null) {
-				tagsToDescription(db, item, i);
-				ret.add(i);
-			}
+	/**
+	 * Returns null if the item can not be listed.
+	 * Items returned are shared and must not be modified.
+	 */
+	public Item rowToItem (final Container parentContainer, final MediaListReference mlr, final IMixedMediaDb db, final IMixedMediaItem row) throws MorriganException {
+		return sharedItem(parentContainer, mlr, db, row);
+	}
+
+	/**
+	 * Returns null if the item can not be listed.
+	 * Items returned are shared and must not be modified.
+	 */
+	private Item sharedItem (final Container parentContainer, final MediaListReference mlr, final IMixedMediaDb db, final IMixedMediaItem mediaItem) throws MorriganException {
+		final String objectId = this.mediaFileLocator.mediaItemId(mlr, mediaItem);
+		final int fingerprint = fingerprint(mediaItem);
+		final SharedItem cached = this.sharedItems.getFresh(objectId, MAX_SHARED_ITEM_AGE_MINUTES, TimeUnit.MINUTES);
+		if (cached != null && cached.fingerprint == fingerprint) return cached.item;
+
+		final Item item = makeItem(parentContainer, mlr, objectId, mediaItem);
+		if (item != null) tagsToDescription(db, mediaItem, item);
+		this.sharedItems.put(objectId, new SharedItem(item, fingerprint));
+		return item;
+	}
+
+	/**
+	 * What makeItem() shows that can change while the ID, which includes the content hash, stays the same.
+	 */
+	private static int fingerprint (final IMixedMediaItem mediaItem) {
+		int h = mediaItem.getFilepath().hashCode();
+		h = 31 * h + (mediaItem.getTitle() != null ? mediaItem.getTitle().hashCode() : 0);
+		h = 31 * h + mediaItem.getDuration();
+		h = 31 * h + mediaItem.getWidth();
+		h = 31 * h + mediaItem.getHeight();
+		return h;
+	}
+
+	private static final class SharedItem {
+
+		final Item item;
+		final int fingerprint;
+
+		SharedItem (final Item item, final int fingerprint) {
+			this.item = item;
+			this.fingerprint = fingerprint;
 		}
-		return ret;
+
 	}
 
-	private Item makeItem (final Container parentContainer, final MediaListReference mlr, final IMixedMediaItem mediaItem) {
+	private Item makeItem (final Container parentContainer, final MediaListReference mlr, final String objectId, final IMixedMediaItem mediaItem) {
 		final File file = new File(mediaItem.getFilepath());
 		final MediaFormat format = MediaFormat.identify(file);
 		if (format == null) {
@@ -321,9 +614,8 @@ public class ContentAdaptor {
 			return null;
 		}
 
-		final String objectId = this.mediaFileLocator.mediaItemId(mlr, mediaItem);
 		final String uri = this.mediaServer.uriForId(objectId);
-		final Res res = new Res(format.toMimeType(), Long.valueOf(file.length()), uri);
+		final Res res = new Res(seekableProtocolInfo(format), Long.valueOf(file.length()), uri);
 		res.setSize(file.length());
 
 		final int durationSeconds = mediaItem.getDuration();
@@ -333,28 +625,76 @@ public class ContentAdaptor {
 			res.setResolution(mediaItem.getWidth(), mediaItem.getHeight());
 		}
 
-		final Item item;
+		final Item item = newItem(format, objectId, parentContainer, mediaItem);
+		item.addResource(res);
+//		if (format.getContentGroup() == ContentGroup.VIDEO) findSubtitles(file, format, item); // TODO
+
+		if (format.getContentGroup() == ContentGroup.AUDIO && !TranscodeProfile.MP3.getMimeType().equals(format.getMime())) {
+			item.addResource(makeTranscodeRes(objectId, TranscodeProfile.MP3, DLNA_TRANSCODED_MP3, durationSeconds));
+		}
+
+		if (format.getContentGroup() == ContentGroup.IMAGE) {
+			addDerivativeResources(item, objectId);
+		}
+
+		final String artId = this.mediaFileLocator.mediaItemArtId(mlr, mediaItem);
+		final Res artRes = makeArtRes(mediaItem.findCoverArt(), artId);
+		if (artRes != null) {
+			item.addResource(artRes);
+			addDerivativeResources(item, artId);
+			item.addProperty(new DIDLObject.Property.UPNP.ALBUM_ART_URI(URI.create(
+					this.mediaServer.uriForId(DlnaImageProfile.JPEG_TN.idFor(artId)))));
+		}
+
+		return item;
+	}
+
+	/**
+	 * For clients that did not ask for res, art or tags: no file stat, cover art lookup or tags query.
+	 * Uses the shared item if there is one, otherwise is not shared as it is missing most of what clients usually want.
+	 * Returns null if the item can not be listed.
+	 */
+	private Item bareItem (final Container parentContainer, final MediaListReference mlr, final IMixedMediaItem mediaItem) {
+		final String objectId = this.mediaFileLocator.mediaItemId(mlr, mediaItem);
+		final SharedItem cached = this.sharedItems.getFresh(objectId, MAX_SHARED_ITEM_AGE_MINUTES, TimeUnit.MINUTES);
+		if (cached != null && cached.item != null && cached.fingerprint == fingerprint(mediaItem)) return cached.item;
+
+		final MediaFormat format = MediaFormat.identify(new File(mediaItem.getFilepath()));
+		if (format == null) return null;
+		return newItem(format, objectId, parentContainer, mediaItem);
+	}
+
+	/**
+	 * For a row removed from the DB since its container was listed, so pages still hold as many items as the child count said.
+	 * Has only the file name, as there is nothing left to play.
+	 */
+	private Item goneItem (final Container parentContainer, final String filepath) {
+		final File file = new File(filepath);
+		final MediaFormat format = MediaFormat.identify(file);
+		if (format == null) throw new IllegalArgumentException("Unknown media format: " + filepath);
+		return newItem(format, this.mediaFileLocator.fileId(file), parentContainer, file.getName());
+	}
+
+	/**
+	 * Title, class and date, which come from the DB row.
+	 */
+	private static Item newItem (final MediaFormat format, final String objectId, final Container parentContainer, final IMixedMediaItem mediaItem) {
+		final Item item = newItem(format, objectId, parentContainer, mediaItem.getTitle());
+		item.addProperty(new DIDLObject.Property.DC.DATE(UpnpHelper.DC_DATE_FORMAT.get().format(mediaItem.getDateAdded())));
+		return item;
+	}
+
+	private static Item newItem (final MediaFormat format, final String objectId, final Container parentContainer, final String title) {
 		switch (format.getContentGroup()) {
 			case VIDEO:
-				item = new VideoItem(objectId, parentContainer, mediaItem.getTitle(), "", res);
-//				findSubtitles(file, format, item); // TODO
-				break;
+				return new VideoItem(objectId, parentContainer, title, "");
 			case IMAGE:
-				item = new ImageItem(objectId, parentContainer, mediaItem.getTitle(), "", res);
-				break;
+				return new ImageItem(objectId, parentContainer, title, "");
 			case AUDIO:
-				item = new AudioItem(objectId, parentContainer, mediaItem.getTitle(), "", res);
-				break;
+				return new AudioItem(objectId, parentContainer, title, "");
 			default:
 				throw new IllegalArgumentException();
 		}
-
-		item.addProperty(new DIDLObject.Property.DC.DATE(UpnpHelper.DC_DATE_FORMAT.get().format(mediaItem.getDateAdded())));
-
-		final Res artRes = makeArtRes(mediaItem.findCoverArt(), this.mediaFileLocator.mediaItemArtId(mlr, mediaItem));
-		if (artRes != null) item.addResource(artRes);
-
-		return item;
 	}
 
 	private static void tagsToDescription (final IMixedMediaDb db, final IMixedMediaItem mediaItem, final Item item) throws MorriganException {
@@ -375,6 +715,39 @@ public class ContentAdaptor {
 		}
 	}
 
+	/**
+	 * Tells renderers they may send TimeSeekRange.dlna.org as well as byte ranges where we can index the file.
+	 */
+	private static ProtocolInfo seekableProtocolInfo (final MediaFormat format) {
+		return new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, format.getMime(),
+				SeekIndexer.isSupported(format) ? DLNA_OP_TIME_AND_BYTE_SEEK : DLNA_OP_BYTE_SEEK);
+	}
+
+	/**
+	 * Made by the media server on first request.
+	 * No size as it is not known until the transcode finishes.
+	 */
+	private Res makeTranscodeRes (final String id, final TranscodeProfile profile, final String dlnaFlags, final int durationSeconds) {
+		final Res res = new Res(new ProtocolInfo(Protocol.HTTP_GET, ProtocolInfo.WILDCARD, profile.getMimeType(), dlnaFlags),
+				null, this.mediaServer.uriForId(profile.idFor(id)));
+		if (durationSeconds > 0) res.setDuration(ModelUtil.toTimeString(durationSeconds));
+		return res;
+	}
+
+	/**
+	 * Resized copies are generated on first request.
+	 */
+	private void addDerivativeResources (final Item item, final String id) {
+		for (final DlnaImageProfile profile : DlnaImageProfile.values()) {
+			item.addResource(new Res(new ProtocolInfo(profile.getProtocolInfo()), null, this.mediaServer.uriForId(profile.idFor(id))));
+		}
+	}
+
+	private static boolean isImage (final File file) {
+		final MediaFormat format = MediaFormat.identify(file);
+		return format != null && format.getContentGroup() == ContentGroup.IMAGE;
+	}
+
 	private Res makeArtRes (final File artFile, final String id) {
 		if (artFile == null) return null;
 
@@ -389,48 +762,40 @@ public class ContentAdaptor {
 		return new Res(artMimeType, Long.valueOf(artFile.length()), artUri);
 	}
 
-	private String localMmdbObjectId (final MediaListReference mlr) {
-		final String id = makeLocalMmdbObjectId(mlr);
-		this.objectIdToMediaListReference.put(id, mlr);
-		return id;
+	private static String localMmdbObjectId (final MediaListReference mlr) {
+		return ObjectIdCodec.encode(Kind.DB, ObjectIdCodec.dbShortId(mlr), null);
 	}
 
-	private String dbSubNodeObjectId (final MediaListReference mlr, final DbSubNodeType t) {
-		final String id = makeDbSubNodeObjectId(mlr, t);
-		this.objectIdToDbSubNodeType.put(id, new MlrAnd<DbSubNodeType>(mlr, t));
-		return id;
+	private static String dbSubNodeObjectId (final MediaListReference mlr, final DbSubNodeType t) {
+		return ObjectIdCodec.encode(Kind.DB_SUB_NODE, ObjectIdCodec.dbShortId(mlr), t.name());
 	}
 
-	private String tagObjectId (final MediaListReference mlr, final MediaTag tag) {
-		final String id = makeTagObjectId(mlr, tag);
-		this.objectIdToTag.put(id, new MlrAnd<MediaTag>(mlr, tag));
-		return id;
+	private static String tagObjectId (final MediaListReference mlr, final MediaTag tag) {
+		return ObjectIdCodec.encode(Kind.TAG, ObjectIdCodec.dbShortId(mlr), ObjectIdCodec.encodeName(tag.getTag()));
 	}
 
-	private String albumObjectId (final MediaListReference mlr, final MediaAlbum album) {
-		final String id = makeAlbumObjectId(mlr, album);
-		this.objectIdToAlbum.put(id, new MlrAnd<MediaAlbum>(mlr, album));
-		return id;
+	private static String albumObjectId (final MediaListReference mlr, final MediaAlbum album) {
+		return ObjectIdCodec.encode(Kind.ALBUM, ObjectIdCodec.dbShortId(mlr), ObjectIdCodec.encodeName(album.getName()));
 	}
 
 	private static String safeName (final String s) {
 		return s.replaceAll("[^a-zA-Z0-9]", "_");
 	}
 
-	private static String makeLocalMmdbObjectId (final MediaListReference mlr) {
+	private static String makeLegacyLocalMmdbObjectId (final MediaListReference mlr) {
 		return String.format("ldb-%s-%s", safeName(mlr.getIdentifier()), HashHelper.sha1(mlr.getIdentifier()));
 	}
 
-	private static String makeDbSubNodeObjectId (final MediaListReference mlr, final DbSubNodeType t) {
+	private static String makeLegacyDbSubNodeObjectId (final MediaListReference mlr, final DbSubNodeType t) {
 		return String.format("dsn-%s-%s", safeName(mlr.getIdentifier()), safeName(t.name()));
 	}
 
-	private static String makeTagObjectId (final MediaListReference mlr, final MediaTag tag) {
+	private static String makeLegacyTagObjectId (final MediaListReference mlr, final MediaTag tag) {
 		return String.format("tag-%s-%s", safeName(tag.getTag()),
 				HashHelper.sha1(String.format("%s-%s-%s", mlr.getIdentifier(), tag.getClassification(), tag.getTag())));
 	}
 
-	private static String makeAlbumObjectId (final MediaListReference mlr, final MediaAlbum album) {
+	private static String makeLegacyAlbumObjectId (final MediaListReference mlr, final MediaAlbum album) {
 		return String.format("alb-%s-%s", safeName(album.getName()),
 				HashHelper.sha1(String.format("%s-%s", mlr.getIdentifier(), album.getName())));
 	}
@@ -1,77 +1,79 @@
 package com.vaguehope.morrigan.dlna.content;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import org.fourthline.cling.model.profile.RemoteClientInfo;
 import org.fourthline.cling.model.types.ErrorCode;
 import org.fourthline.cling.support.contentdirectory.AbstractContentDirectoryService;
 import org.fourthline.cling.support.contentdirectory.ContentDirectoryErrorCode;
 import org.fourthline.cling.support.contentdirectory.ContentDirectoryException;
-import org.fourthline.cling.support.contentdirectory.DIDLParser;
 import org.fourthline.cling.support.model.BrowseFlag;
 import org.fourthline.cling.support.model.BrowseResult;
-import org.fourthline.cling.support.model.DIDLContent;
 import org.fourthline.cling.support.model.SortCriterion;
 import org.fourthline.cling.support.model.container.Container;
 import org.fourthline.cling.support.model.item.Item;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vaguehope.morrigan.dlna.players.RendererCapabilities;
+
 /**
  * Based on a class from WireMe and used under Apache 2 License. See
  * https://code.google.com/p/wireme/ for more details.
  */
 public class ContentDirectoryService extends AbstractContentDirectoryService {
 
+	/**
+	 * Containers can hold far more items than is sensible to send at once,
+	 * so clients asking for everything (maxResults=0) or a huge page get this many and page on from there.
+	 */
+	private static final int MAX_PAGE_SIZE = 1000;
+
 	private static final Logger LOG = LoggerFactory.getLogger(ContentDirectoryService.class);
 
 	private final ContentAdaptor contentAdaptor;
 	private final SearchEngine searchEngine;
+	private final RendererCapabilities rendererCapabilities;
+	private final ItemFragments itemFragments = new ItemFragments();
 
-	public ContentDirectoryService (final ContentAdaptor contentAdaptor, final SearchEngine queryEngine) {
+	public ContentDirectoryService (final ContentAdaptor contentAdaptor, final SearchEngine queryEngine, final RendererCapabilities rendererCapabilities) {
 		super(
 				Arrays.asList("dc:title", "upnp:class"), // also "dc:creator", "dc:date", "res@size"
-				Arrays.asList("dc:title")); // also "dc:creator", "dc:date", "res@size"
+				SortOrder.capabilities());
 		this.contentAdaptor = contentAdaptor;
 		this.searchEngine = queryEngine;
+		this.rendererCapabilities = rendererCapabilities;
+	}
+
+	@Override
+	public BrowseResult browse (final String objectId, final BrowseFlag browseFlag, final String filter, final long firstResult, final long maxResults, final SortCriterion[] orderby) throws ContentDirectoryException {
+		return browse(objectId, browseFlag, filter, firstResult, maxResults, orderby, null);
 	}
 
 	/**
 	 * Root is requested with objectID="0".
 	 */
 	@Override
-	public BrowseResult browse (final String objectId, final BrowseFlag browseFlag, final String filter, final long firstResult, final long maxResults, final SortCriterion[] orderby) throws ContentDirectoryException {
+	public BrowseResult browse (final String objectId, final BrowseFlag browseFlag, final String filter, final long firstResult, final long maxResults, final SortCriterion[] orderby,
+			final RemoteClientInfo remoteClientInfo) throws ContentDirectoryException {
 		final long startTime = System.nanoTime();
 		try {
+			final SortOrder order = SortOrder.parse(orderby);
+			final DidlFilter didlFilter = DidlFilter.parse(filter);
 			final ContentNode contentNode = this.contentAdaptor.getNode(objectId, firstResult <= 0);
 			if (contentNode == null) return new BrowseResult("", 0, 0);
 
-			if (contentNode.isItem()) {
-				final DIDLContent didl = new DIDLContent();
-				didl.addItem(contentNode.getItem());
-				return new BrowseResult(new DIDLParser().generate(didl), 1, 1);
-			}
-
-			final Container contentContainer = contentNode.getContainer();
-
-			if (browseFlag == BrowseFlag.METADATA) {
-				final DIDLContent didl = new DIDLContent();
-				didl.addContainer(contentContainer);
-				return new BrowseResult(new DIDLParser().generate(didl), 1, 1);
-			}
+			final ClientResources client = clientResources(remoteClientInfo);
+			final String resultKey = String.format("%s|%s|%s|%s|%s%s", browseFlag, firstResult, maxResults, order.key(), didlFilter.key(), client.key());
+			final BrowseResult cached = contentNode.getResult(resultKey);
+			if (cached != null) return cached;
 
-			// toRangedResult() uses List.sublist(),
-			// so make local copies.
-			final List<Container> containers;
-			final List<Item> items;
-			synchronized (contentContainer) {
-				containers = new ArrayList<Container>(contentContainer.getContainers());
-				items = new ArrayList<Item>(contentContainer.getItems());
-			}
-			return toRangedResult(containers, items, firstResult, maxResults);
+			final BrowseResult result = browseNode(contentNode, browseFlag, firstResult, maxResults, order, didlFilter, client);
+			if (!hasUnknownChildCounts(contentNode)) contentNode.putResult(resultKey, result);
+			return result;
 		}
 		catch (final Exception e) {
 			LOG.warn(String.format("Failed to generate directory listing" +
@@ -86,16 +88,64 @@ public class ContentDirectoryService extends AbstractContentDirectoryService {
 		}
 	}
 
+	private BrowseResult browseNode (final ContentNode contentNode, final BrowseFlag browseFlag, final long firstResult, final long maxResults,
+			final SortOrder order, final DidlFilter filter, final ClientResources client) throws Exception {
+		if (contentNode.isItem()) {
+			return new BrowseResult(DidlWriter.write(client.apply(contentNode.getItem()), filter), 1, 1);
+		}
+
+		final Container contentContainer = contentNode.getContainer();
+
+		if (browseFlag == BrowseFlag.METADATA) {
+			return new BrowseResult(DidlWriter.write(contentContainer, filter), 1, 1);
+		}
+
+		// toRangedResult() uses List.sublist(),
+		// so make local copies.
+		final List<Container> containers;
+		synchronized (contentContainer) {
+			containers = order.sortObjects(contentContainer.getContainers());
+		}
+		return toRangedResult(contentContainer.getId(), containers, contentNode.getItems(order, filter.needsItemDetail()),
+				firstResult, maxResults, filter, client);
+	}
+
+	/**
+	 * Counts still being worked out arrive with the next node made,
+	 * so a result without them is not kept where it would hide them.
+	 */
+	private static boolean hasUnknownChildCounts (final ContentNode contentNode) {
+		if (contentNode.isItem()) return false;
+		final Container contentContainer = contentNode.getContainer();
+		synchronized (contentContainer) {
+			if (contentContainer.getChildCount() == null) return true;
+			for (final Container c : contentContainer.getContainers()) {
+				if (c.getChildCount() == null) return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public BrowseResult search (final String containerId, final String searchCriteria,
 			final String filter, final long firstResult, final long maxResults,
 			final SortCriterion[] orderBy) throws ContentDirectoryException {
+		return search(containerId, searchCriteria, filter, firstResult, maxResults, orderBy, null);
+	}
+
+	@Override
+	public BrowseResult search (final String containerId, final String searchCriteria,
+			final String filter, final long firstResult, final long maxResults,
+			final SortCriterion[] orderBy, final RemoteClientInfo remoteClientInfo) throws ContentDirectoryException {
 		final long startTime = System.nanoTime();
 		try {
+			final SortOrder order = SortOrder.parse(orderBy);
 			final ContentNode contentNode = this.contentAdaptor.getNode(containerId, firstResult <= 0);
 			if (contentNode == null) return new BrowseResult("", 0, 0);
 			if (contentNode.isItem()) throw new ContentDirectoryException(ContentDirectoryErrorCodes.UNSUPPORTED_SEARCH_CONTAINER, "Can not seach inside in an item.");
-			return toRangedResult(Collections.<Container> emptyList(), this.searchEngine.search(contentNode, searchCriteria), firstResult, maxResults);
+			return toRangedResult(contentNode.getContainer().getId(), Collections.<Container> emptyList(),
+					this.searchEngine.search(contentNode, searchCriteria, order), firstResult, maxResults,
+					DidlFilter.parse(filter), clientResources(remoteClientInfo));
 		}
 		catch (final ContentDirectoryException e) {
 			LOG.warn(String.format("Failed to parse search request" +
@@ -116,22 +166,36 @@ public class ContentDirectoryService extends AbstractContentDirectoryService {
 		}
 	}
 
-	private static BrowseResult toRangedResult (final List<Container> containers, final List<Item> items, final long firstResult, final long maxResultsParam) throws Exception {
-		final long maxResults = maxResultsParam == 0 ? containers.size() + items.size() : maxResultsParam;
+	/**
+	 * What the client is known to accept decides which res each item lists first.
+	 */
+	private ClientResources clientResources (final RemoteClientInfo remoteClientInfo) {
+		if (remoteClientInfo == null || this.rendererCapabilities == null) return ClientResources.ANY;
+		return ClientResources.forSink(this.rendererCapabilities.forClient(
+				remoteClientInfo.getRemoteAddress(), remoteClientInfo.getRequestUserAgent()));
+	}
+
+	/**
+	 * Items are listed as children of parentId, whichever container they were made for.
+	 */
+	private BrowseResult toRangedResult (final String parentId, final List<Container> containers, final List<Item> items,
+			final long firstResult, final long maxResultsParam, final DidlFilter filter, final ClientResources client) throws Exception {
+		final long maxResults = maxResultsParam <= 0 || maxResultsParam > MAX_PAGE_SIZE ? MAX_PAGE_SIZE : maxResultsParam;
 
-		final DIDLContent didl = new DIDLContent();
+		List<Container> pageContainers = Collections.emptyList();
 		if (containers.size() > firstResult) {
 			final int from = (int) firstResult;
 			final int to = Math.min((int) (firstResult + maxResults), containers.size());
-			didl.setContainers(containers.subList(from, to));
+			pageContainers = containers.subList(from, to);
 		}
-		if (didl.getContainers().size() < maxResults) {
+		List<Item> pageItems = Collections.emptyList();
+		if (pageContainers.size() < maxResults) {
 			final int from = (int) Math.max(firstResult - containers.size(), 0);
-			final int to = Math.min(items.size(), from + (int) (maxResults - didl.getContainers().size()));
-			didl.setItems(items.subList(from, to));
+			final int to = Math.min(items.size(), from + (int) (maxResults - pageContainers.size()));
+			pageItems = items.subList(from, to);
 		}
-		return new BrowseResult(new DIDLParser().generate(didl),
-				didl.getContainers().size() + didl.getItems().size(),
+		return new BrowseResult(DidlWriter.write(pageContainers, pageItems, parentId, this.itemFragments, client, filter),
+				pageContainers.size() + pageItems.size(),
 				containers.size() + items.size());
 	}
 
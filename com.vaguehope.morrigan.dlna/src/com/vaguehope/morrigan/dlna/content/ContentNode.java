@@ -1,28 +1,53 @@
 package com.vaguehope.morrigan.dlna.content;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import org.fourthline.cling.support.model.BrowseResult;
 import org.fourthline.cling.support.model.container.Container;
 import org.fourthline.cling.support.model.item.Item;
 
+import com.vaguehope.morrigan.dlna.util.LruMap;
+import com.vaguehope.morrigan.model.exceptions.MorriganException;
+import com.vaguehope.sqlitewrapper.DbException;
+
 /**
  * Either a Container or an Item.
  */
 public class ContentNode {
 
+	private static final int MAX_RESULTS = 10;
+
 	private final Container container;
 	private final Item item;
+	/**
+	 * Set for containers too big to make all items up front, in which case the Container has no items of its own.
+	 */
+	private final PagedItems pagedItems;
 	private final long created;
+	/**
+	 * Generated DIDL, per page and per client variant.
+	 * Lives as long as this node so is dropped when the node is regenerated.
+	 */
+	private final Map<String, BrowseResult> results = Collections.synchronizedMap(new LruMap<String, BrowseResult>(MAX_RESULTS, MAX_RESULTS));
 
 	public ContentNode (final Container container) {
+		this(container, null);
+	}
+
+	ContentNode (final Container container, final PagedItems pagedItems) {
 		this.container = container;
 		this.item = null;
+		this.pagedItems = pagedItems;
 		this.created = now();
 	}
 
 	public ContentNode (final Item item) {
 		this.container = null;
 		this.item = item;
+		this.pagedItems = null;
 		this.created = now();
 	}
 
@@ -38,6 +63,33 @@ public class ContentNode {
 		return this.container;
 	}
 
+	/**
+	 * The container's items in the order given, safe to take a subList() of.
+	 * Paged items are made as they are read, so only read the page needed.
+	 * If not detailed, paged items may only have what the DB row has.
+	 */
+	List<Item> getItems (final SortOrder order, final boolean detailed) throws DbException, MorriganException {
+		if (this.pagedItems != null) return this.pagedItems.view(order, detailed);
+		synchronized (this.container) {
+			return order.sortObjects(this.container.getItems());
+		}
+	}
+
+	/**
+	 * What the node cache weighs this node by.
+	 */
+	int keysHeld () {
+		return this.pagedItems != null ? this.pagedItems.keysHeld() : 0;
+	}
+
+	public BrowseResult getResult (final String key) {
+		return this.results.get(key);
+	}
+
+	public void putResult (final String key, final BrowseResult result) {
+		this.results.put(key, result);
+	}
+
 	public long age(final TimeUnit unit) {
 		return unit.convert(now() - this.created, TimeUnit.NANOSECONDS);
 	}
@@ -32,4 +32,22 @@ public class DbHelper {
 		return null;
 	}
 
+	private final Cache<String, MediaListReference> shortIdCache = new Cache<String, MediaListReference>(10);
+
+	/**
+	 * Returns null if not found.
+	 */
+	public MediaListReference dbShortIdToMlr (final String shortId) {
+		final MediaListReference cached = this.shortIdCache.getFresh(shortId, 60, TimeUnit.SECONDS);
+		if (cached != null) return cached;
+
+		for (final MediaListReference mlr : this.mediaFactory.getAllLocalMixedMediaDbs()) {
+			if (shortId.equals(ObjectIdCodec.dbShortId(mlr))) {
+				this.shortIdCache.put(shortId, mlr);
+				return mlr;
+			}
+		}
+		return null;
+	}
+
 }
@@ -0,0 +1,100 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A Browse or Search Filter: which optional properties to write.
+ * id, parentID, restricted, dc:title and upnp:class are always written, as is protocolInfo on any res written.
+ * Empty is taken to mean everything, as most control points that send it expect that.
+ */
+final class DidlFilter {
+
+	static final DidlFilter ALL = new DidlFilter(null);
+
+	private final Set<String> properties;
+	private final String key;
+
+	private DidlFilter (final Set<String> properties) {
+		this.properties = properties;
+		if (properties == null) {
+			this.key = "";
+		}
+		else {
+			final StringBuilder s = new StringBuilder();
+			for (final String p : properties) {
+				s.append(p).append(',');
+			}
+			this.key = s.append('|').toString();
+		}
+	}
+
+	static DidlFilter parse (final String filter) {
+		if (filter == null || filter.trim().length() < 1) return ALL;
+		final Set<String> properties = new TreeSet<String>();
+		for (final String part : filter.split(",")) {
+			final String p = part.trim();
+			if ("*".equals(p)) return ALL;
+			if (p.length() > 0) properties.add(p);
+		}
+		return new DidlFilter(Collections.unmodifiableSet(properties));
+	}
+
+	boolean isAll () {
+		return this.properties == null;
+	}
+
+	/**
+	 * Clients with the same filter get the same DIDL.
+	 * Short enough to prefix cache keys with, and empty for ALL.
+	 */
+	String key () {
+		return this.key;
+	}
+
+	/**
+	 * For elements, e.g. "dc:date" or "upnp:albumArtURI".
+	 */
+	boolean includes (final String property) {
+		return this.properties == null || this.properties.contains(property);
+	}
+
+	/**
+	 * For attributes of container and item, e.g. "childCount".
+	 * Accepted with or without the element name.
+	 */
+	boolean includesAttribute (final String element, final String attribute) {
+		return this.properties == null
+				|| this.properties.contains("@" + attribute)
+				|| this.properties.contains(element + "@" + attribute);
+	}
+
+	/**
+	 * Asking for any res attribute implies res.
+	 */
+	boolean includesRes () {
+		if (this.properties == null || this.properties.contains("res")) return true;
+		for (final String p : this.properties) {
+			if (p.startsWith("res@")) return true;
+		}
+		return false;
+	}
+
+	boolean includesResAttribute (final String attribute) {
+		return this.properties == null || this.properties.contains("res@" + attribute);
+	}
+
+	/**
+	 * False if nothing that costs a file stat, a cover art lookup or a tags query to make will be written.
+	 */
+	boolean needsItemDetail () {
+		return includesRes() || includes("upnp:albumArtURI") || includes("dc:description");
+	}
+
+	@Override
+	public String toString () {
+		return this.properties == null ? "*" : this.properties.toString();
+	}
+
+}
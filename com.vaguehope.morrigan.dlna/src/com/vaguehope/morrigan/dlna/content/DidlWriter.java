@@ -0,0 +1,274 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.DIDLObject.Property;
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.container.Container;
+import org.fourthline.cling.support.model.item.Item;
+
+/**
+ * Writes DIDL-Lite straight to text, in place of DIDLParser.generate() which builds a whole DOM first.
+ * Output matches DIDLParser for the parts of the model ContentAdaptor uses:
+ * upnp and dc properties and res attributes.  desc elements and property attributes
+ * (e.g. dlna:profileID) are not written as nothing here sets them.
+ * A DidlFilter leaves out optional properties the client did not ask for.
+ */
+public final class DidlWriter {
+
+	private static final String UPNP_PREFIX = "upnp";
+	private static final String DC_PREFIX = "dc";
+	private static final String UNKNOWN_TITLE = "Unknown Title";
+	private static final String DIDL_OPEN = "<DIDL-Lite"
+			+ " xmlns=\"" + DIDLContent.NAMESPACE_URI + "\""
+			+ " xmlns:" + UPNP_PREFIX + "=\"" + DIDLObject.Property.UPNP.NAMESPACE.URI + "\""
+			+ " xmlns:" + DC_PREFIX + "=\"" + DIDLObject.Property.DC.NAMESPACE.URI + "\">";
+	private static final String DIDL_CLOSE = "</DIDL-Lite>";
+	private static final String ITEM_OPEN = "<item";
+	/**
+	 * Buffers that grew bigger than this for an unusually large page are not kept for reuse.
+	 */
+	private static final int MAX_RETAINED_BUFFER_CHARS = 1024 * 1024;
+
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+	private static final ThreadLocal<StringWriter> BUFFER = new ThreadLocal<StringWriter>() {
+		@Override
+		protected StringWriter initialValue () {
+			return new StringWriter(16 * 1024);
+		}
+	};
+
+	private DidlWriter () {
+		throw new AssertionError();
+	}
+
+	public static String write (final Container container) throws XMLStreamException {
+		return write(container, DidlFilter.ALL);
+	}
+
+	public static String write (final Item item) throws XMLStreamException {
+		return write(item, DidlFilter.ALL);
+	}
+
+	public static String write (final List<Container> containers, final List<Item> items) throws XMLStreamException {
+		return write(containers, items, DidlFilter.ALL);
+	}
+
+	static String write (final Container container, final DidlFilter filter) throws XMLStreamException {
+		return write(Collections.singletonList(container), Collections.<Item> emptyList(), filter);
+	}
+
+	static String write (final Item item, final DidlFilter filter) throws XMLStreamException {
+		return write(Collections.<Container> emptyList(), Collections.singletonList(item), filter);
+	}
+
+	static String write (final List<Container> containers, final List<Item> items, final DidlFilter filter) throws XMLStreamException {
+		final StringWriter buffer = BUFFER.get();
+		buffer.getBuffer().setLength(0);
+		try {
+			buffer.write(DIDL_OPEN);
+			final XMLStreamWriter w = newWriter(buffer);
+			for (final Container container : containers) {
+				writeContainer(w, container, filter);
+			}
+			for (final Item item : items) {
+				writeItem(w, item, true, filter);
+			}
+			w.flush();
+			buffer.write(DIDL_CLOSE);
+			return buffer.toString();
+		}
+		finally {
+			if (buffer.getBuffer().capacity() > MAX_RETAINED_BUFFER_CHARS) BUFFER.remove();
+		}
+	}
+
+	/**
+	 * For a page of one container's children.
+	 * Items come ready serialised from fragments and all get parentID set to itemParentId.
+	 */
+	static String write (final List<Container> containers, final List<Item> items, final String itemParentId,
+			final ItemFragments fragments, final ClientResources client, final DidlFilter filter) throws XMLStreamException {
+		final StringWriter buffer = BUFFER.get();
+		buffer.getBuffer().setLength(0);
+		try {
+			buffer.write(DIDL_OPEN);
+			if (containers.size() > 0) {
+				final XMLStreamWriter w = newWriter(buffer);
+				for (final Container container : containers) {
+					writeContainer(w, container, filter);
+				}
+				w.flush();
+			}
+			final String parentIdAttribute = " parentID=\"" + escapeAttribute(itemParentId) + "\"";
+			final StringBuffer b = buffer.getBuffer();
+			for (final Item item : items) {
+				final String fragment = fragments.get(item, client, filter);
+				b.append(fragment, 0, ITEM_OPEN.length()).append(parentIdAttribute).append(fragment, ITEM_OPEN.length(), fragment.length());
+			}
+			buffer.write(DIDL_CLOSE);
+			return buffer.toString();
+		}
+		finally {
+			if (buffer.getBuffer().capacity() > MAX_RETAINED_BUFFER_CHARS) BUFFER.remove();
+		}
+	}
+
+	/**
+	 * The item without its parentID, which varies with the container it is listed in.
+	 * Always starts with ITEM_OPEN, so parentID can go straight after.
+	 */
+	static String itemFragment (final Item item, final DidlFilter filter) throws XMLStreamException {
+		final StringWriter buffer = new StringWriter(1024);
+		final XMLStreamWriter w = newWriter(buffer);
+		writeItem(w, item, false, filter);
+		w.flush();
+		return buffer.toString();
+	}
+
+	/**
+	 * Namespaces are declared once on DIDL_OPEN, so everything inside is written with prefixes bound but not declared.
+	 */
+	private static XMLStreamWriter newWriter (final StringWriter buffer) throws XMLStreamException {
+		final XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(buffer);
+		w.setDefaultNamespace(DIDLContent.NAMESPACE_URI);
+		w.setPrefix(UPNP_PREFIX, DIDLObject.Property.UPNP.NAMESPACE.URI);
+		w.setPrefix(DC_PREFIX, DIDLObject.Property.DC.NAMESPACE.URI);
+		return w;
+	}
+
+	private static void writeContainer (final XMLStreamWriter w, final Container container, final DidlFilter filter) throws XMLStreamException {
+		if (container.getClazz() == null) throw new IllegalArgumentException("Missing 'upnp:class' element for container: " + container.getId());
+		if (container.getId() == null) throw new IllegalArgumentException("Missing id attribute for container: " + container.getTitle());
+		if (container.getParentID() == null) throw new IllegalArgumentException("Missing parentID attribute for container: " + container.getId());
+
+		w.writeStartElement(DIDLContent.NAMESPACE_URI, "container");
+		w.writeAttribute("id", container.getId());
+		w.writeAttribute("parentID", container.getParentID());
+		if (container.getChildCount() != null && filter.includesAttribute("container", "childCount")) {
+			w.writeAttribute("childCount", container.getChildCount().toString());
+		}
+		w.writeAttribute("restricted", booleanToInt(container.isRestricted()));
+		if (filter.includesAttribute("container", "searchable")) w.writeAttribute("searchable", booleanToInt(container.isSearchable()));
+
+		writeCommon(w, container, filter);
+		if (filter.includes(UPNP_PREFIX + ":searchClass")) {
+			for (final DIDLObject.Class searchClass : container.getSearchClasses()) {
+				writeClass(w, "searchClass", searchClass, true);
+			}
+		}
+		if (filter.includes(UPNP_PREFIX + ":createClass")) {
+			for (final DIDLObject.Class createClass : container.getCreateClasses()) {
+				writeClass(w, "createClass", createClass, true);
+			}
+		}
+		writeProperties(w, container, filter);
+		writeResources(w, container, filter);
+
+		w.writeEndElement();
+	}
+
+	private static void writeItem (final XMLStreamWriter w, final Item item, final boolean withParentId, final DidlFilter filter) throws XMLStreamException {
+		if (item.getClazz() == null) throw new IllegalArgumentException("Missing 'upnp:class' element for item: " + item.getId());
+		if (item.getId() == null) throw new IllegalArgumentException("Missing id attribute for item: " + item.getTitle());
+		if (withParentId && item.getParentID() == null) throw new IllegalArgumentException("Missing parentID attribute for item: " + item.getId());
+
+		w.writeStartElement(DIDLContent.NAMESPACE_URI, "item");
+		w.writeAttribute("id", item.getId());
+		if (withParentId) w.writeAttribute("parentID", item.getParentID());
+		if (item.getRefID() != null && filter.includesAttribute("item", "refID")) w.writeAttribute("refID", item.getRefID());
+		w.writeAttribute("restricted", booleanToInt(item.isRestricted()));
+
+		writeCommon(w, item, filter);
+		writeProperties(w, item, filter);
+		writeResources(w, item, filter);
+
+		w.writeEndElement();
+	}
+
+	/**
+	 * Title, creator, write status and class, in that order, same as DIDLParser.
+	 */
+	private static void writeCommon (final XMLStreamWriter w, final DIDLObject obj, final DidlFilter filter) throws XMLStreamException {
+		writeElement(w, DIDLObject.Property.DC.NAMESPACE.URI, "title", obj.getTitle() != null ? obj.getTitle() : UNKNOWN_TITLE);
+		if (filter.includes(DC_PREFIX + ":creator")) writeElement(w, DIDLObject.Property.DC.NAMESPACE.URI, "creator", obj.getCreator());
+		if (filter.includes(UPNP_PREFIX + ":writeStatus")) writeElement(w, DIDLObject.Property.UPNP.NAMESPACE.URI, "writeStatus", obj.getWriteStatus());
+		writeClass(w, "class", obj.getClazz(), false);
+	}
+
+	private static void writeClass (final XMLStreamWriter w, final String name, final DIDLObject.Class clazz, final boolean withDerivation) throws XMLStreamException {
+		if (clazz == null || clazz.getValue() == null) return;
+		w.writeStartElement(DIDLObject.Property.UPNP.NAMESPACE.URI, name);
+		if (clazz.getFriendlyName() != null && clazz.getFriendlyName().length() > 0) w.writeAttribute("name", clazz.getFriendlyName());
+		if (withDerivation) w.writeAttribute("includeDerived", Boolean.toString(clazz.isIncludeDerived()));
+		w.writeCharacters(clazz.getValue());
+		w.writeEndElement();
+	}
+
+	private static void writeProperties (final XMLStreamWriter w, final DIDLObject obj, final DidlFilter filter) throws XMLStreamException {
+		for (final Property<?> p : obj.getPropertiesByNamespace(DIDLObject.Property.UPNP.NAMESPACE.class)) {
+			if (!filter.includes(UPNP_PREFIX + ":" + p.getDescriptorName())) continue;
+			writeElement(w, DIDLObject.Property.UPNP.NAMESPACE.URI, p.getDescriptorName(), p.getValue());
+		}
+		for (final Property<?> p : obj.getPropertiesByNamespace(DIDLObject.Property.DC.NAMESPACE.class)) {
+			if (!filter.includes(DC_PREFIX + ":" + p.getDescriptorName())) continue;
+			writeElement(w, DIDLObject.Property.DC.NAMESPACE.URI, p.getDescriptorName(), p.getValue());
+		}
+	}
+
+	private static void writeResources (final XMLStreamWriter w, final DIDLObject obj, final DidlFilter filter) throws XMLStreamException {
+		if (!filter.includesRes()) return;
+		for (final Res res : obj.getResources()) {
+			if (res == null) continue;
+			if (res.getValue() == null) throw new IllegalArgumentException("Missing resource URI value: " + obj.getId());
+			if (res.getProtocolInfo() == null) throw new IllegalArgumentException("Missing resource protocol info: " + obj.getId());
+
+			w.writeStartElement(DIDLContent.NAMESPACE_URI, "res");
+			w.writeAttribute("protocolInfo", res.getProtocolInfo().toString());
+			writeResAttribute(w, filter, "importUri", res.getImportUri());
+			writeResAttribute(w, filter, "size", res.getSize());
+			writeResAttribute(w, filter, "duration", res.getDuration());
+			writeResAttribute(w, filter, "bitrate", res.getBitrate());
+			writeResAttribute(w, filter, "sampleFrequency", res.getSampleFrequency());
+			writeResAttribute(w, filter, "bitsPerSample", res.getBitsPerSample());
+			writeResAttribute(w, filter, "nrAudioChannels", res.getNrAudioChannels());
+			writeResAttribute(w, filter, "colorDepth", res.getColorDepth());
+			writeResAttribute(w, filter, "protection", res.getProtection());
+			writeResAttribute(w, filter, "resolution", res.getResolution());
+			w.writeCharacters(res.getValue());
+			w.writeEndElement();
+		}
+	}
+
+	private static void writeElement (final XMLStreamWriter w, final String namespaceUri, final String name, final Object value) throws XMLStreamException {
+		if (value == null) return;
+		w.writeStartElement(namespaceUri, name);
+		w.writeCharacters(value.toString());
+		w.writeEndElement();
+	}
+
+	private static void writeResAttribute (final XMLStreamWriter w, final DidlFilter filter, final String name, final Object value) throws XMLStreamException {
+		if (value == null || !filter.includesResAttribute(name)) return;
+		w.writeAttribute(name, value.toString());
+	}
+
+	/**
+	 * Only used once per page, for the parentID put into item fragments.
+	 */
+	private static String escapeAttribute (final String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String booleanToInt (final boolean b) {
+		return b ? "1" : "0";
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.vaguehope.morrigan.dlna.content;
+
+/**
+ * DLNA image profiles that derivatives are generated for.
+ */
+public enum DlnaImageProfile {
+
+	JPEG_TN(160, 160),
+	JPEG_SM(640, 480);
+
+	private static final String MIME_TYPE = "image/jpeg";
+
+	private final int maxWidth;
+	private final int maxHeight;
+	private final String idSuffix;
+
+	private DlnaImageProfile (final int maxWidth, final int maxHeight) {
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.idSuffix = "/" + name();
+	}
+
+	public int getMaxWidth () {
+		return this.maxWidth;
+	}
+
+	public int getMaxHeight () {
+		return this.maxHeight;
+	}
+
+	public String getMimeType () {
+		return MIME_TYPE;
+	}
+
+	public String getProtocolInfo () {
+		return String.format("http-get:*:%s:DLNA.ORG_PN=%s", MIME_TYPE, name());
+	}
+
+	public String idFor (final String baseId) {
+		return baseId + this.idSuffix;
+	}
+
+	public String baseIdOf (final String id) {
+		return id.substring(0, id.length() - this.idSuffix.length());
+	}
+
+	/**
+	 * Returns null if ID is not for a derivative.
+	 */
+	public static DlnaImageProfile forId (final String id) {
+		for (final DlnaImageProfile p : values()) {
+			if (id.endsWith(p.idSuffix) && id.length() > p.idSuffix.length()) return p;
+		}
+		return null;
+	}
+
+}
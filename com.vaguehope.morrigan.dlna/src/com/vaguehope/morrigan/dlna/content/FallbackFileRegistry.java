@@ -0,0 +1,157 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.util.LruMap;
+import com.vaguehope.morrigan.dlna.util.Quietly;
+
+/**
+ * Bounded map of fall-back IDs to files that survives restarts.
+ * New entries are appended to a journal file, which is rewritten
+ * from the in-memory LRU when it has grown much larger than it.
+ */
+public class FallbackFileRegistry {
+
+	private static final String SEP = "\t";
+	private static final int COMPACT_FACTOR = 2;
+
+	private static final Logger LOG = LoggerFactory.getLogger(FallbackFileRegistry.class);
+
+	private final File journal;
+	private final int maxEntries;
+	private final Map<String, File> files;
+	private final Object[] lock = new Object[] {};
+	private int journalLines = 0;
+
+	public FallbackFileRegistry (final File journal, final int maxEntries) {
+		this.journal = journal;
+		this.maxEntries = maxEntries;
+		this.files = new LruMap<String, File>(Math.min(maxEntries, 100), maxEntries + 1);
+		synchronized (this.lock) {
+			load();
+		}
+	}
+
+	/**
+	 * Returns null if not found.
+	 */
+	public File get (final String id) {
+		synchronized (this.lock) {
+			return this.files.get(id);
+		}
+	}
+
+	public void put (final String id, final File file) {
+		if (id.contains(SEP) || id.contains("\n") || file.getAbsolutePath().contains("\n")) {
+			throw new IllegalArgumentException("Can not store: " + id + " " + file.getAbsolutePath());
+		}
+		synchronized (this.lock) {
+			final File prev = this.files.put(id, file);
+			if (file.equals(prev)) return;
+			try {
+				if (this.journalLines >= this.maxEntries * COMPACT_FACTOR) {
+					compact();
+				}
+				else {
+					append(id, file);
+				}
+			}
+			catch (final IOException e) {
+				LOG.warn("Failed to write {}: {}", this.journal.getAbsolutePath(), e.toString());
+			}
+		}
+	}
+
+	public int size () {
+		synchronized (this.lock) {
+			return this.files.size();
+		}
+	}
+
+	private void load () {
+		if (!this.journal.exists()) return;
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.journal), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					this.journalLines += 1;
+					final int x = line.indexOf(SEP);
+					if (x < 1 || x >= line.length() - 1) continue;
+					this.files.put(line.substring(0, x), new File(line.substring(x + 1)));
+				}
+			}
+			finally {
+				Quietly.close(reader);
+			}
+			if (this.journalLines > this.files.size()) compact();
+			LOG.info("Loaded {} fall-back IDs.", this.files.size());
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to read {}: {}", this.journal.getAbsolutePath(), e.toString());
+		}
+	}
+
+	private void append (final String id, final File file) throws IOException {
+		final Writer w = openWriter(this.journal, true);
+		try {
+			writeLine(w, id, file);
+			w.flush();
+		}
+		finally {
+			Quietly.close(w);
+		}
+		this.journalLines += 1;
+	}
+
+	/**
+	 * Writes entries oldest first so the LRU order survives the next load.
+	 */
+	private void compact () throws IOException {
+		final List<Entry<String, File>> entries = new ArrayList<Entry<String, File>>(this.files.entrySet());
+		final File tmp = new File(this.journal.getAbsolutePath() + ".tmp");
+		final Writer w = openWriter(tmp, false);
+		try {
+			for (final Entry<String, File> e : entries) {
+				writeLine(w, e.getKey(), e.getValue());
+			}
+			w.flush();
+		}
+		finally {
+			Quietly.close(w);
+		}
+		if (!tmp.renameTo(this.journal)) {
+			if (!this.journal.delete() || !tmp.renameTo(this.journal)) {
+				throw new IOException("Failed to replace " + this.journal.getAbsolutePath() + " with " + tmp.getAbsolutePath());
+			}
+		}
+		this.journalLines = entries.size();
+	}
+
+	private static Writer openWriter (final File f, final boolean append) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f, append), "UTF-8"));
+	}
+
+	private static void writeLine (final Writer w, final String id, final File file) throws IOException {
+		w.write(id);
+		w.write(SEP);
+		w.write(file.getAbsolutePath());
+		w.write("\n");
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.util.HashHelper;
+
+/**
+ * Generates resized JPEG copies of images to fit DLNA image profiles.
+ * Results are kept on disk keyed by source path, mtime and size,
+ * so a changed source gets a new derivative.
+ * Derivatives are touched when used, and those unused for a while are deleted on start,
+ * which is what clears out derivatives of images since changed or removed.
+ */
+public class ImageDerivatives {
+
+	private static final float JPEG_QUALITY = 0.85f;
+	private static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(30);
+	/**
+	 * Touching on every request would be a metadata write per thumbnail listed.
+	 */
+	private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final Logger LOG = LoggerFactory.getLogger(ImageDerivatives.class);
+
+	private final File cacheDir;
+	private final ConcurrentMap<String, Object> inProgress = new ConcurrentHashMap<String, Object>();
+
+	public ImageDerivatives (final File cacheDir) {
+		this.cacheDir = cacheDir;
+		deleteUnused();
+	}
+
+	/**
+	 * Returns null if source can not be read as an image.
+	 */
+	public File derive (final File source, final DlnaImageProfile profile) throws IOException {
+		final String key = String.format("%s-%s.jpg",
+				HashHelper.sha1(String.format("%s|%s|%s", source.getAbsolutePath(), source.lastModified(), source.length())),
+				profile.name().toLowerCase(Locale.ENGLISH));
+		final File derivative = new File(this.cacheDir, key);
+		if (derivative.exists()) return touched(derivative);
+
+		final Object lock = new Object();
+		final Object existingLock = this.inProgress.putIfAbsent(key, lock);
+		synchronized (existingLock != null ? existingLock : lock) {
+			try {
+				if (derivative.exists()) return derivative;
+				return generate(source, profile, derivative) ? derivative : null;
+			}
+			finally {
+				this.inProgress.remove(key, lock);
+			}
+		}
+	}
+
+	private boolean generate (final File source, final DlnaImageProfile profile, final File derivative) throws IOException {
+		final long startTime = System.nanoTime();
+		final BufferedImage src = ImageIO.read(source);
+		if (src == null) {
+			LOG.info("Not a readable image: {}", source.getAbsolutePath());
+			return false;
+		}
+
+		final BufferedImage scaled = scaleToFit(src, profile.getMaxWidth(), profile.getMaxHeight());
+
+		if (!this.cacheDir.exists() && !this.cacheDir.mkdirs()) throw new IOException("Failed to create: " + this.cacheDir.getAbsolutePath());
+		final File tmp = File.createTempFile(derivative.getName() + ".", TMP_SUFFIX, this.cacheDir);
+		writeJpeg(scaled, tmp);
+		if (!tmp.renameTo(derivative)) {
+			tmp.delete();
+			throw new IOException("Failed to rename " + tmp.getAbsolutePath() + " to " + derivative.getAbsolutePath());
+		}
+
+		LOG.info("Generated {} {}x{} ({} bytes) in {}ms: {}", profile, scaled.getWidth(), scaled.getHeight(),
+				derivative.length(), (System.nanoTime() - startTime) / 1000000L, source.getAbsolutePath());
+		return true;
+	}
+
+	private static File touched (final File derivative) {
+		final long now = System.currentTimeMillis();
+		if (now - derivative.lastModified() > TOUCH_INTERVAL_MILLIS) derivative.setLastModified(now);
+		return derivative;
+	}
+
+	private void deleteUnused () {
+		final long cutoff = System.currentTimeMillis() - MAX_UNUSED_MILLIS;
+		final File[] files = this.cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept (final File f) {
+				if (!f.isFile()) return false;
+				if (f.getName().endsWith(TMP_SUFFIX)) return true; // Left by a crash, nothing writes them before start.
+				return f.lastModified() < cutoff;
+			}
+		});
+		if (files == null) return;
+		for (final File f : files) {
+			if (!f.delete()) LOG.warn("Failed to delete: {}", f.getAbsolutePath());
+		}
+		if (files.length > 0) LOG.info("Deleted {} unused image derivatives.", files.length);
+	}
+
+	/**
+	 * Halves the image until close to target size to keep quality reasonable with bilinear.
+	 */
+	private static BufferedImage scaleToFit (final BufferedImage src, final int maxWidth, final int maxHeight) {
+		final double scale = Math.min(1d, Math.min(maxWidth / (double) src.getWidth(), maxHeight / (double) src.getHeight()));
+		final int targetWidth = Math.max(1, (int) Math.round(src.getWidth() * scale));
+		final int targetHeight = Math.max(1, (int) Math.round(src.getHeight() * scale));
+
+		BufferedImage img = src;
+		int w = src.getWidth();
+		int h = src.getHeight();
+		do {
+			w = Math.max(targetWidth, w / 2);
+			h = Math.max(targetHeight, h / 2);
+			img = draw(img, w, h);
+		}
+		while (w > targetWidth || h > targetHeight);
+		return img;
+	}
+
+	/**
+	 * Always produces TYPE_INT_RGB as JPEG has no alpha.
+	 */
+	private static BufferedImage draw (final BufferedImage src, final int width, final int height) {
+		final BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = dst.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(src, 0, 0, width, height, Color.WHITE, null);
+		}
+		finally {
+			g.dispose();
+		}
+		return dst;
+	}
+
+	private static void writeJpeg (final BufferedImage img, final File f) throws IOException {
+		final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext()) throw new IOException("No JPEG writer available.");
+		final ImageWriter writer = writers.next();
+		try {
+			final ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(JPEG_QUALITY);
+			if (f.exists() && !f.delete()) throw new IOException("Failed to delete: " + f.getAbsolutePath());
+			final ImageOutputStream out = ImageIO.createImageOutputStream(f);
+			if (out == null) throw new IOException("Failed to open: " + f.getAbsolutePath());
+			try {
+				writer.setOutput(out);
+				writer.write(null, new IIOImage(img, null, null), param);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			writer.dispose();
+		}
+	}
+
+}
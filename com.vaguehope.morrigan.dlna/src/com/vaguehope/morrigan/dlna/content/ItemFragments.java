@@ -0,0 +1,45 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.fourthline.cling.support.model.item.Item;
+
+import com.vaguehope.morrigan.dlna.util.LruMap;
+
+/**
+ * Items serialised once and reused for every page they appear on.
+ * ContentAdaptor hands out the same Item instance until it remakes it,
+ * so a fragment is only used while it was made from that same instance.
+ */
+final class ItemFragments {
+
+	private static final int MAX_FRAGMENTS = 10000;
+
+	private final Map<String, Fragment> fragments = Collections.synchronizedMap(new LruMap<String, Fragment>(1000, MAX_FRAGMENTS));
+
+	String get (final Item item, final ClientResources client, final DidlFilter filter) throws XMLStreamException {
+		final String key = filter.key() + client.key() + item.getId();
+		final Fragment cached = this.fragments.get(key);
+		if (cached != null && cached.source == item) return cached.xml;
+
+		final String xml = DidlWriter.itemFragment(client.apply(item), filter);
+		this.fragments.put(key, new Fragment(item, xml));
+		return xml;
+	}
+
+	private static final class Fragment {
+
+		final Item source;
+		final String xml;
+
+		Fragment (final Item source, final String xml) {
+			this.source = source;
+			this.xml = xml;
+		}
+
+	}
+
+}
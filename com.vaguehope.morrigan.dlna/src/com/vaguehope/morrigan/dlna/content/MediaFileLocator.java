@@ -6,30 +6,61 @@ import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Decoded;
+import com.vaguehope.morrigan.dlna.content.ObjectIdCodec.Kind;
 import com.vaguehope.morrigan.dlna.httpserver.FileLocator;
+import com.vaguehope.morrigan.dlna.httpserver.Validators;
 import com.vaguehope.morrigan.dlna.util.Cache;
 import com.vaguehope.morrigan.dlna.util.HashHelper;
 import com.vaguehope.morrigan.model.exceptions.MorriganException;
+import com.vaguehope.morrigan.model.media.DirtyState;
+import com.vaguehope.morrigan.model.media.IMediaItem;
 import com.vaguehope.morrigan.model.media.IMixedMediaDb;
 import com.vaguehope.morrigan.model.media.IMixedMediaItem;
 import com.vaguehope.morrigan.model.media.MediaAlbum;
 import com.vaguehope.morrigan.model.media.MediaFactory;
+import com.vaguehope.morrigan.model.media.MediaItemListChangeListener;
 import com.vaguehope.morrigan.model.media.MediaListReference;
 import com.vaguehope.sqlitewrapper.DbException;
 
 public class MediaFileLocator implements FileLocator {
 
+	private static final int RESOLVED_CACHE_SIZE = 5000;
+	private static final int RESOLVED_MAX_AGE_MINUTES = 10;
+	private static final int UNKNOWN_CACHE_SIZE = 500;
+	private static final int UNKNOWN_MAX_AGE_SECONDS = 10;
+	private static final int MAX_ITEM_PATHS = 10000;
+
 	private final MediaFactory mediaFactory;
 	private final DbHelper dbHelper;
 
-	private final Map<String, File> files = new ConcurrentHashMap<String, File>();
+	private final FallbackFileRegistry fallbackFiles;
+	private final ImageDerivatives imageDerivatives;
 
-	public MediaFileLocator (final MediaFactory mediaFactory) {
+	/**
+	 * Renderers make many range requests per track, so remember what each ID resolved to.
+	 * Entries are tagged with the generation of their DB and ignored once that DB reports a change.
+	 */
+	private final Cache<String, Resolved> resolved = new Cache<String, Resolved>(100, RESOLVED_CACHE_SIZE);
+	private final Cache<String, Resolved> unknown = new Cache<String, Resolved>(10, UNKNOWN_CACHE_SIZE);
+	/**
+	 * Item IDs listed recently to their file, for when looking up by content hash finds a different copy.
+	 */
+	private final Cache<String, String> itemPaths = new Cache<String, String>(100, MAX_ITEM_PATHS);
+	private final ConcurrentMap<String, AtomicLong> dbGenerations = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, IMixedMediaDb> watchedDbs = new ConcurrentHashMap<String, IMixedMediaDb>();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	public MediaFileLocator (final MediaFactory mediaFactory, final FallbackFileRegistry fallbackFiles, final ImageDerivatives imageDerivatives) {
 		this.mediaFactory = mediaFactory;
+		this.fallbackFiles = fallbackFiles;
+		this.imageDerivatives = imageDerivatives;
 		this.dbHelper = new DbHelper(mediaFactory);
 	}
 
@@ -38,31 +69,87 @@ public class MediaFileLocator implements FileLocator {
 	 */
 	public String fileId (final File file) {
 		final String id = HashHelper.sha1(file.getAbsolutePath()) + "-" + file.getName().replaceAll("[^a-zA-Z0-9]", "_");
-		this.files.put(id, file);
+		this.fallbackFiles.put(id, file);
 		return id;
 	}
 
 	public String mediaItemId (final MediaListReference mlr, final IMixedMediaItem mi) {
-		return String.format("%s/item/%s/%s", mlrRef(mlr), encodeFilepath(mi), mi.getHashcode().toString(16));
+		if (mi.getHashcode() == null) return legacyMediaItemId(mlr, mi);
+		return ObjectIdCodec.encode(Kind.ITEM, ObjectIdCodec.dbShortId(mlr), itemPayload(mlr, mi));
 	}
 
 	public String mediaItemArtId (final MediaListReference mlr, final IMixedMediaItem mi) {
-		return String.format("%s/item/%s/%s/art", mlrRef(mlr), encodeFilepath(mi), mi.getHashcode().toString(16));
+		if (mi.getHashcode() == null) return legacyMediaItemId(mlr, mi) + "/art";
+		return ObjectIdCodec.encode(Kind.ITEM_ART, ObjectIdCodec.dbShortId(mlr), itemPayload(mlr, mi));
+	}
+
+	private String itemPayload (final MediaListReference mlr, final IMixedMediaItem mi) {
+		final String dbShortId = ObjectIdCodec.dbShortId(mlr);
+		final String payload = ObjectIdCodec.encodeItem(mi.getHashcode(), mi.getDbRowId());
+		this.itemPaths.put(dbShortId + "." + payload, mi.getFilepath());
+		return payload;
 	}
 
 	public String albumArtId (final MediaListReference mlr, final MediaAlbum album) {
-		return String.format("%s/album/%s/art", mlrRef(mlr), encodeName(album));
+		return ObjectIdCodec.encode(Kind.ALBUM_ART, ObjectIdCodec.dbShortId(mlr), ObjectIdCodec.encodeName(album.getName()));
+	}
+
+	/**
+	 * Only used for items that have not been hashed yet.
+	 */
+	private static String legacyMediaItemId (final MediaListReference mlr, final IMixedMediaItem mi) {
+		final BigInteger hash = mi.getHashcode() != null ? mi.getHashcode() : BigInteger.ZERO;
+		return String.format("%s/item/%s/%s", mlrRef(mlr), encodeFilepath(mi), hash.toString(16));
 	}
 
 	@Override
 	public File idToFile (final String id) throws IOException {
-		final File mapFile = this.files.get(id);
-		if (mapFile != null) return mapFile;
+		final Resolved r = resolve(id);
+		return r != null ? r.getFile() : null;
+	}
+
+	@Override
+	public Validators idToValidators (final String id) throws IOException {
+		final Resolved r = resolve(id);
+		return r != null ? r.getValidators() : null;
+	}
+
+	@Override
+	public long idToDurationMillis (final String id) throws IOException {
+		final Resolved r = resolve(id);
+		return r != null ? r.getDurationMillis() : 0;
+	}
+
+	/**
+	 * Returns null if not found.
+	 */
+	private Resolved resolve (final String id) throws IOException {
+		final File mapFile = this.fallbackFiles.get(id);
+		if (mapFile != null) return new Resolved(mapFile, Validators.forFile(mapFile), 0, 0);
+
+		// Read generation before resolving so a change during resolution leaves the new entry already stale.
+		// No generation means the DB is not watched yet, so nothing would invalidate an entry: do not cache.
+		final AtomicLong dbGeneration = watchedDbGeneration(id);
+		final long generation = dbGeneration != null ? dbGeneration.get() : 0;
+		if (dbGeneration != null) {
+			final Resolved cached = getCached(id, generation);
+			if (cached != null) {
+				this.cacheHits.incrementAndGet();
+				return cached.getFile() != null ? cached : null;
+			}
+		}
+		this.cacheMisses.incrementAndGet();
 
 		try {
-			final File file = idToFileUnsafe(id);
-			if (file == null || !file.exists()) return null;
-			return file;
+			final Target target = idToTargetUnsafe(id);
+			final File file = target != null ? target.getFile() : null;
+			if (file == null || !file.exists()) {
+				if (dbGeneration != null) this.unknown.put(id, new Resolved(null, null, 0, generation));
+				return null;
+			}
+			final Resolved r = new Resolved(file, Validators.forContent(contentHashOf(id), file), target.getDurationMillis(), generation);
+			if (dbGeneration != null) this.resolved.put(id, r);
+			return r;
 		}
 		catch (final IllegalArgumentException e) {
 			throw new IllegalArgumentException("Failed to parse ID: " + id, e);
@@ -75,25 +162,99 @@ public class MediaFileLocator implements FileLocator {
 		}
 	}
 
-	public File idToFileUnsafe (final String id) throws DbException, MorriganException {
+	/**
+	 * Item IDs carry the DB hashcode of the content, so use it.
+	 * Returns null for everything else.
+	 */
+	private static String contentHashOf (final String id) {
+		final Decoded decoded = ObjectIdCodec.decode(id);
+		if (decoded != null) return decoded.getKind() == Kind.ITEM ? ObjectIdCodec.encodeHash(ObjectIdCodec.decodeItemHash(decoded.getPayload())) : null;
+		final String[] parts = id.split("/");
+		if (parts.length == 4 && "item".equals(parts[1]) && !"0".equals(parts[3])) return parts[3];
+		return null;
+	}
+
+	public File idToFileUnsafe (final String id) throws DbException, MorriganException, IOException {
+		final Target target = idToTargetUnsafe(id);
+		return target != null ? target.getFile() : null;
+	}
+
+	private Target idToTargetUnsafe (final String id) throws DbException, MorriganException, IOException {
+		final DlnaImageProfile profile = DlnaImageProfile.forId(id);
+		if (profile != null) {
+			final File source = idToFileUnsafe(profile.baseIdOf(id));
+			if (source == null || !source.exists()) return null;
+			return Target.of(this.imageDerivatives.derive(source, profile));
+		}
+
+		final Decoded decoded = ObjectIdCodec.decode(id);
+		if (decoded != null) return decodedToTarget(id, decoded);
+		return legacyIdToTarget(id);
+	}
+
+	private Target decodedToTarget (final String id, final Decoded decoded) throws DbException, MorriganException {
+		final MediaListReference mlr = this.dbHelper.dbShortIdToMlr(decoded.getDb());
+		if (mlr == null) throw new IllegalArgumentException("Invalid DB in ID: " + id);
+		final IMixedMediaDb db = this.dbHelper.mediaListReferenceToDb(mlr);
+		watchDb(decoded.getDb(), db);
+
+		switch (decoded.getKind()) {
+			case ITEM: {
+				return Target.ofItem(findItem(db, decoded));
+			}
+			case ITEM_ART: {
+				final IMixedMediaItem item = findItem(db, decoded);
+				return item != null ? Target.of(item.findCoverArt()) : null;
+			}
+			case ALBUM_ART: {
+				final MediaAlbum album = db.getAlbum(ObjectIdCodec.decodeName(decoded.getPayload()));
+				return album != null ? Target.of(db.findAlbumCoverArt(album)) : null;
+			}
+			default:
+				throw new IllegalArgumentException("Not a file ID: " + id);
+		}
+	}
+
+	/**
+	 * Several rows can share a content hash, e.g. the same file in two folders, and the DB returns any one of them.
+	 * Media served is the same whichever it is, but art found next to the file may not be,
+	 * so if it is not the row the ID was made for, that row is found by the path it was listed with.
+	 * If that is no longer known, e.g. after a restart, the row found by hash is used.
+	 */
+	private IMixedMediaItem findItem (final IMixedMediaDb db, final Decoded decoded) throws DbException, MorriganException {
+		final IMixedMediaItem byHash = db.getByHashcode(ObjectIdCodec.decodeItemHash(decoded.getPayload()));
+		final long rowId = ObjectIdCodec.decodeItemRowId(decoded.getPayload());
+		if (byHash == null || rowId < 0 || byHash.getDbRowId() == rowId) return byHash;
+
+		final String path = this.itemPaths.getEvenIfExpired(decoded.getDb() + "." + decoded.getPayload());
+		if (path != null && db.hasFile(path).isKnown()) {
+			final IMixedMediaItem byPath = db.getByFile(path);
+			if (byPath != null && byPath.getDbRowId() == rowId) return byPath;
+		}
+		return byHash;
+	}
+
+	private Target legacyIdToTarget (final String id) throws DbException, MorriganException {
 		final String[] parts = id.split("/");
 		if (parts.length < 3) throw new IllegalArgumentException("Need at least 3 parts: " + id);
 
 		final MediaListReference mlr = derefMlr(parts[0]);
 		if (mlr == null) throw new IllegalArgumentException("Invalid ref in ID: " + id);
 		final IMixedMediaDb db = this.dbHelper.mediaListReferenceToDb(mlr);
+		watchDb(parts[0], db);
 
 		if ("item".equals(parts[1])) {
 			if (parts.length < 4) throw new IllegalArgumentException("Need at least 4 parts: " + id);
 
 			final String filepath = decodeString(parts[2]);
 			final IMixedMediaItem item = db.hasFile(filepath).isKnown() ? db.getByFile(filepath) : db.getByHashcode(new BigInteger(parts[3], 16));
+			if (item == null) return null;
 
 			if (parts.length == 4) {
-				return new File(item.getFilepath());
+				return Target.ofItem(item);
 			}
 			else if ("art".equals(parts[4])) {
-				return item.findCoverArt();
+				return Target.of(item.findCoverArt());
 			}
 
 			throw new IllegalArgumentException("Invalid item ID: " + id);
@@ -102,7 +263,7 @@ public class MediaFileLocator implements FileLocator {
 			if (parts.length < 4) throw new IllegalArgumentException("Need at least 4 parts: " + id);
 
 			if ("art".equals(parts[3])) {
-				return db.findAlbumCoverArt(db.getAlbum(decodeString(parts[2])));
+				return Target.of(db.findAlbumCoverArt(db.getAlbum(decodeString(parts[2]))));
 			}
 
 			throw new IllegalArgumentException("Invalid album ID: " + id);
@@ -112,6 +273,180 @@ public class MediaFileLocator implements FileLocator {
 		}
 	}
 
+	public long getCacheHits () {
+		return this.cacheHits.get();
+	}
+
+	public long getCacheMisses () {
+		return this.cacheMisses.get();
+	}
+
+	private Resolved getCached (final String id, final long generation) {
+		Resolved r = this.resolved.getFresh(id, RESOLVED_MAX_AGE_MINUTES, TimeUnit.MINUTES);
+		if (r == null) r = this.unknown.getFresh(id, UNKNOWN_MAX_AGE_SECONDS, TimeUnit.SECONDS);
+		if (r == null || r.getGeneration() != generation) return null;
+		return r;
+	}
+
+	/**
+	 * Null if the ID's DB is not watched yet, or the ID is not valid.
+	 * Never adds to dbGenerations, so IDs sent by clients can not grow it.
+	 */
+	private AtomicLong watchedDbGeneration (final String id) {
+		final String dbRef = dbRefOf(id);
+		return dbRef != null ? this.dbGenerations.get(dbRef) : null;
+	}
+
+	/**
+	 * The same ref watchDb() is called with: the DB short ID for current IDs, the first part for legacy IDs.
+	 * Suffixes such as image profiles and transcodes are ignored.
+	 * Returns null if the ID is not valid.
+	 */
+	static String dbRefOf (final String id) {
+		final int x = id.indexOf('/');
+		final String head = x > 0 ? id.substring(0, x) : id;
+		try {
+			final Decoded decoded = ObjectIdCodec.decode(head);
+			if (decoded != null) return decoded.getDb();
+		}
+		catch (final IllegalArgumentException e) {
+			return null;
+		}
+		return x > 0 ? head : null;
+	}
+
+	/**
+	 * Legacy and current IDs for the same DB have different refs, so track per ref.
+	 * The only place generations are made.
+	 */
+	private void watchDb (final String dbRef, final IMixedMediaDb db) {
+		if (db == null || this.watchedDbs.put(dbRef, db) == db) return;
+		AtomicLong generation = this.dbGenerations.get(dbRef);
+		if (generation == null) {
+			final AtomicLong created = new AtomicLong();
+			final AtomicLong prev = this.dbGenerations.putIfAbsent(dbRef, created);
+			generation = prev != null ? prev : created;
+		}
+		db.addChangeEventListener(new InvalidatingListener(generation));
+	}
+
+	/**
+	 * What an ID points at, duration is 0 if not known or not an item.
+	 */
+	private static class Target {
+
+		private final File file;
+		private final long durationMillis;
+
+		private Target (final File file, final long durationMillis) {
+			this.file = file;
+			this.durationMillis = durationMillis;
+		}
+
+		static Target of (final File file) {
+			return file != null ? new Target(file, 0) : null;
+		}
+
+		static Target ofItem (final IMixedMediaItem item) {
+			if (item == null) return null;
+			final long durationMillis = item.getDuration() > 0 ? TimeUnit.SECONDS.toMillis(item.getDuration()) : 0;
+			return new Target(new File(item.getFilepath()), durationMillis);
+		}
+
+		public File getFile () {
+			return this.file;
+		}
+
+		public long getDurationMillis () {
+			return this.durationMillis;
+		}
+
+	}
+
+	private static class Resolved {
+
+		private final File file;
+		private final Validators validators;
+		private final long durationMillis;
+		private final long generation;
+
+		public Resolved (final File file, final Validators validators, final long durationMillis, final long generation) {
+			this.file = file;
+			this.validators = validators;
+			this.durationMillis = durationMillis;
+			this.generation = generation;
+		}
+
+		/**
+		 * Null for IDs that are known not to resolve.
+		 */
+		public File getFile () {
+			return this.file;
+		}
+
+		public Validators getValidators () {
+			return this.validators;
+		}
+
+		public long getDurationMillis () {
+			return this.durationMillis;
+		}
+
+		public long getGeneration () {
+			return this.generation;
+		}
+
+	}
+
+	private static class InvalidatingListener implements MediaItemListChangeListener {
+
+		private final AtomicLong generation;
+
+		public InvalidatingListener (final AtomicLong generation) {
+			this.generation = generation;
+		}
+
+		private void invalidate () {
+			this.generation.incrementAndGet();
+		}
+
+		@Override
+		public void mediaListRead () {
+			invalidate();
+		}
+
+		@Override
+		public void mediaItemsAdded (final IMediaItem... items) {
+			invalidate();
+		}
+
+		@Override
+		public void mediaItemsRemoved (final IMediaItem... items) {
+			invalidate();
+		}
+
+		@Override
+		public void mediaItemsUpdated (final IMediaItem... items) {
+			invalidate();
+		}
+
+		@Override
+		public void mediaItemsForceReadRequired (final IMediaItem... items) {
+			invalidate();
+		}
+
+		@Override
+		public void eventMessage (final String msg) {
+			// Unused.
+		}
+
+		@Override
+		public void dirtyStateChanged (final DirtyState oldState, final DirtyState newState) {
+			// Unused.
+		}
+
+	}
+
 	private static String mlrRef (final MediaListReference mlr) {
 		try {
 			return URLEncoder.encode(filenameFromPath(mlr.getIdentifier()), "UTF-8");
@@ -145,15 +480,6 @@ public class MediaFileLocator implements FileLocator {
 		}
 	}
 
-	private static String encodeName (final MediaAlbum album) {
-		try {
-			return URLEncoder.encode(album.getName(), "UTF-8");
-		}
-		catch (final UnsupportedEncodingException e) {
-			throw new IllegalStateException(e);
-		}
-	}
-
 	private static String decodeString (final String path) {
 		try {
 			return URLDecoder.decode(path, "UTF-8");
@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vaguehope.morrigan.dlna.httpserver.MediaServer;
+import com.vaguehope.morrigan.dlna.players.RendererCapabilities;
 import com.vaguehope.morrigan.model.media.MediaFactory;
 
 /**
@@ -52,7 +53,8 @@ public class MediaServerDeviceFactory {
 
 	private final LocalDevice localDevice;
 
-	public MediaServerDeviceFactory (final String hostName, final MediaFactory mediaFactory, final MediaServer mediaServer, final MediaFileLocator mediaFileLocator) throws ValidationException, IOException {
+	public MediaServerDeviceFactory (final String hostName, final MediaFactory mediaFactory, final MediaServer mediaServer, final MediaFileLocator mediaFileLocator,
+			final RendererCapabilities rendererCapabilities) throws ValidationException, IOException {
 		final UDN usi = UDN.uniqueSystemIdentifier(IDENTIFIER_STEM);
 		LOG.info("uniqueSystemIdentifier: {}", usi);
 		final DeviceType type = new UDADeviceType(DEVICE_TYPE, VERSION);
@@ -66,7 +68,7 @@ public class MediaServerDeviceFactory {
 			@Override
 			protected ContentDirectoryService createServiceInstance () {
 				final ContentAdaptor contentAdaptor = new ContentAdaptor(mediaFactory, mediaServer, mediaFileLocator);
-				return new ContentDirectoryService(contentAdaptor, new SearchEngine(contentAdaptor, mediaFactory));
+				return new ContentDirectoryService(contentAdaptor, new SearchEngine(contentAdaptor, mediaFactory), rendererCapabilities);
 			}
 
 			@Override
@@ -0,0 +1,246 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.zip.CRC32;
+
+import com.vaguehope.morrigan.model.media.MediaListReference;
+
+/**
+ * Compact, versioned object IDs that carry everything needed to find their target.
+ * Format: <kind><version>.<db>.<payload>.<check>
+ * e.g. i1.1hx9k2a.5z1wq0lm3k2j0d8z7wq0p1rb3-2n9.2kd
+ * db is a short hash of the DB identifier, check guards against truncated or mangled IDs.
+ * IDs in other formats are not touched and decode() returns null for them.
+ */
+public final class ObjectIdCodec {
+
+	private static final String VERSION = "1";
+	private static final char SEP = '.';
+	private static final int CHECK_MASK = 0xFFFFF;
+	private static final int RADIX = 36;
+	private static final char ITEM_ROW_SEP = '-';
+
+	private static final char[] B64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final int[] B64_REVERSE = new int[128];
+	static {
+		for (int i = 0; i < B64_REVERSE.length; i++) {
+			B64_REVERSE[i] = -1;
+		}
+		for (int i = 0; i < B64.length; i++) {
+			B64_REVERSE[B64[i]] = i;
+		}
+	}
+
+	public static enum Kind {
+		DB("d"),
+		DB_SUB_NODE("n"),
+		TAG("t"),
+		ALBUM("l"),
+		ITEM("i"),
+		ITEM_ART("ia"),
+		ALBUM_ART("la");
+
+		private final String prefix;
+
+		private Kind (final String prefix) {
+			this.prefix = prefix;
+		}
+
+		public String getPrefix () {
+			return this.prefix;
+		}
+
+		static Kind forPrefix (final String prefix) {
+			for (final Kind k : values()) {
+				if (k.prefix.equals(prefix)) return k;
+			}
+			return null;
+		}
+	}
+
+	private ObjectIdCodec () {
+		throw new AssertionError();
+	}
+
+	public static String dbShortId (final MediaListReference mlr) {
+		return dbShortId(mlr.getIdentifier());
+	}
+
+	public static String dbShortId (final String dbIdentifier) {
+		return Long.toString(crc32(dbIdentifier), RADIX);
+	}
+
+	public static String encode (final Kind kind, final String dbShortId, final String payload) {
+		final StringBuilder s = new StringBuilder(kind.getPrefix()).append(VERSION).append(SEP).append(dbShortId);
+		if (payload != null && payload.length() > 0) s.append(SEP).append(payload);
+		final String body = s.toString();
+		return s.append(SEP).append(check(body)).toString();
+	}
+
+	/**
+	 * Returns null if the ID is not in this format.
+	 * Throws IllegalArgumentException if it is in this format but is invalid.
+	 */
+	public static Decoded decode (final String id) {
+		if (id == null || id.indexOf('/') >= 0) return null;
+		final int firstSep = id.indexOf(SEP);
+		if (firstSep < 2 || !id.regionMatches(firstSep - VERSION.length(), VERSION, 0, VERSION.length())) return null;
+		final Kind kind = Kind.forPrefix(id.substring(0, firstSep - VERSION.length()));
+		if (kind == null) return null;
+
+		final int lastSep = id.lastIndexOf(SEP);
+		if (lastSep <= firstSep) throw new IllegalArgumentException("Missing check: " + id);
+		final String body = id.substring(0, lastSep);
+		if (!check(body).equals(id.substring(lastSep + 1))) throw new IllegalArgumentException("Check failed: " + id);
+
+		final int dbEnd = body.indexOf(SEP, firstSep + 1);
+		final String db = dbEnd > 0 ? body.substring(firstSep + 1, dbEnd) : body.substring(firstSep + 1);
+		if (db.length() < 1) throw new IllegalArgumentException("Missing DB: " + id);
+		final String payload = dbEnd > 0 ? body.substring(dbEnd + 1) : "";
+		return new Decoded(kind, db, payload);
+	}
+
+	public static String encodeHash (final BigInteger hash) {
+		return hash.toString(RADIX);
+	}
+
+	/**
+	 * Content hash then DB row ID, as identical files in different places share a hash.
+	 */
+	public static String encodeItem (final BigInteger hash, final long rowId) {
+		return encodeHash(hash) + ITEM_ROW_SEP + Long.toString(rowId, RADIX);
+	}
+
+	/**
+	 * Also accepts payloads of IDs made before the row ID was added.
+	 */
+	public static BigInteger decodeItemHash (final String payload) {
+		final int x = payload.indexOf(ITEM_ROW_SEP);
+		return decodeHash(x >= 0 ? payload.substring(0, x) : payload);
+	}
+
+	/**
+	 * Returns -1 for IDs made before the row ID was added.
+	 */
+	public static long decodeItemRowId (final String payload) {
+		final int x = payload.indexOf(ITEM_ROW_SEP);
+		if (x < 0) return -1;
+		try {
+			return Long.parseLong(payload.substring(x + 1), RADIX);
+		}
+		catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid row ID: " + payload, e);
+		}
+	}
+
+	public static BigInteger decodeHash (final String payload) {
+		try {
+			return new BigInteger(payload, RADIX);
+		}
+		catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid hash: " + payload, e);
+		}
+	}
+
+	/**
+	 * URL safe base64 of UTF-8 bytes, without padding.
+	 */
+	public static String encodeName (final String name) {
+		final byte[] b = utf8Bytes(name);
+		final StringBuilder s = new StringBuilder((b.length * 4 + 2) / 3);
+		for (int i = 0; i < b.length; i += 3) {
+			final int n = Math.min(3, b.length - i);
+			int v = (b[i] & 0xff) << 16;
+			if (n > 1) v |= (b[i + 1] & 0xff) << 8;
+			if (n > 2) v |= b[i + 2] & 0xff;
+			s.append(B64[(v >>> 18) & 0x3f]).append(B64[(v >>> 12) & 0x3f]);
+			if (n > 1) s.append(B64[(v >>> 6) & 0x3f]);
+			if (n > 2) s.append(B64[v & 0x3f]);
+		}
+		return s.toString();
+	}
+
+	public static String decodeName (final String payload) {
+		if (payload.length() % 4 == 1) throw new IllegalArgumentException("Invalid name length: " + payload);
+		final byte[] b = new byte[payload.length() * 3 / 4];
+		int o = 0;
+		for (int i = 0; i < payload.length(); i += 4) {
+			final int n = Math.min(4, payload.length() - i);
+			int v = 0;
+			for (int j = 0; j < 4; j++) {
+				v <<= 6;
+				if (j < n) v |= b64Value(payload.charAt(i + j));
+			}
+			b[o++] = (byte) (v >>> 16);
+			if (n > 2) b[o++] = (byte) (v >>> 8);
+			if (n > 3) b[o++] = (byte) v;
+		}
+		try {
+			return new String(b, 0, o, "UTF-8");
+		}
+		catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("JVM should always know about UTF-8.", e);
+		}
+	}
+
+	private static int b64Value (final char c) {
+		final int v = c < B64_REVERSE.length ? B64_REVERSE[c] : -1;
+		if (v < 0) throw new IllegalArgumentException("Invalid character: " + c);
+		return v;
+	}
+
+	private static String check (final String body) {
+		return Long.toString(crc32(body) & CHECK_MASK, RADIX);
+	}
+
+	private static long crc32 (final String s) {
+		final CRC32 crc = new CRC32();
+		crc.update(utf8Bytes(s));
+		return crc.getValue();
+	}
+
+	private static byte[] utf8Bytes (final String s) {
+		try {
+			return s.getBytes("UTF-8");
+		}
+		catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("JVM should always know about UTF-8.", e);
+		}
+	}
+
+	public static final class Decoded {
+
+		private final Kind kind;
+		private final String db;
+		private final String payload;
+
+		Decoded (final Kind kind, final String db, final String payload) {
+			this.kind = kind;
+			this.db = db;
+			this.payload = payload;
+		}
+
+		public Kind getKind () {
+			return this.kind;
+		}
+
+		public String getDb () {
+			return this.db;
+		}
+
+		/**
+		 * Empty string if there is no payload.
+		 */
+		public String getPayload () {
+			return this.payload;
+		}
+
+		@Override
+		public String toString () {
+			return String.format("Decoded{%s, %s, %s}", this.kind, this.db, this.payload);
+		}
+
+	}
+
+}
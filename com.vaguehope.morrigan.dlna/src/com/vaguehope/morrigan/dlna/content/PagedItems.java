@@ -0,0 +1,126 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.fourthline.cling.support.model.item.Item;
+
+import com.vaguehope.morrigan.dlna.util.LruMap;
+import com.vaguehope.morrigan.model.exceptions.MorriganException;
+import com.vaguehope.morrigan.model.media.IMixedMediaItem;
+import com.vaguehope.sqlitewrapper.DbException;
+
+/**
+ * A container's items, made only when a page that lists them is asked for.
+ * Only each row's file path is held, so a container of any size costs one query up front,
+ * then a row lookup and an Item for each item on the pages that are actually browsed.
+ * Items for the most recently read pages are kept.
+ * Other orders query the rows again to sort them, so still no Items are made until a page is read.
+ * Views that are not detailed get Items with only what the DB row has, for clients that filter out the rest.
+ */
+final class PagedItems extends AbstractList<Item> implements RandomAccess {
+
+	interface ItemSource {
+		/**
+		 * The container's rows again, for sorting.
+		 */
+		Collection<IMixedMediaItem> rows () throws DbException, MorriganException;
+
+		/**
+		 * Must not return null for any key given to PagedItems, even if its row has since gone.
+		 */
+		Item make (String key, boolean detailed) throws DbException, MorriganException;
+	}
+
+	private static final int MAX_VIEWS = 2;
+	private static final int MAX_MADE_ITEMS = 1000;
+
+	private final String[] keys;
+	private final ItemSource source;
+	private final boolean detailed;
+	private final Map<Integer, Item> made = new LruMap<Integer, Item>(100, MAX_MADE_ITEMS);
+	private final Map<String, PagedItems> views = Collections.synchronizedMap(new LruMap<String, PagedItems>(MAX_VIEWS, MAX_VIEWS));
+
+	PagedItems (final Collection<IMixedMediaItem> rows, final ItemSource source) {
+		this(keysOf(rows), source, true);
+	}
+
+	private PagedItems (final String[] keys, final ItemSource source, final boolean detailed) {
+		this.keys = keys;
+		this.source = source;
+		this.detailed = detailed;
+	}
+
+	static String keyOf (final IMixedMediaItem row) {
+		return row.getFilepath();
+	}
+
+	private static String[] keysOf (final Collection<IMixedMediaItem> rows) {
+		final String[] keys = new String[rows.size()];
+		int i = 0;
+		for (final IMixedMediaItem row : rows) {
+			keys[i++] = keyOf(row);
+		}
+		return keys;
+	}
+
+	/**
+	 * Views are kept, so a renderer paging through a sorted container only sorts once.
+	 */
+	PagedItems view (final SortOrder order, final boolean viewDetailed) throws DbException, MorriganException {
+		if (order.isNone() && viewDetailed == this.detailed) return this;
+		final String key = order.key() + (viewDetailed ? "" : "|bare");
+		final PagedItems cached = this.views.get(key);
+		if (cached != null) return cached;
+		final String[] viewKeys = order.isNone() ? this.keys : keysOf(order.sortRows(this.source.rows()));
+		final PagedItems view = new PagedItems(viewKeys, this.source, viewDetailed);
+		this.views.put(key, view);
+		return view;
+	}
+
+	/**
+	 * Keys held by this list and its views.
+	 */
+	int keysHeld () {
+		int n = this.keys.length;
+		synchronized (this.views) {
+			for (final PagedItems view : this.views.values()) {
+				if (view.keys != this.keys) n += view.size();
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public int size () {
+		return this.keys.length;
+	}
+
+	@Override
+	public Item get (final int index) {
+		synchronized (this.made) {
+			final Integer i = Integer.valueOf(index);
+			Item item = this.made.get(i);
+			if (item == null) {
+				final String key = this.keys[index];
+				try {
+					item = this.source.make(key, this.detailed);
+				}
+				catch (final DbException e) {
+					throw new IllegalStateException("Failed to make item: " + key, e);
+				}
+				catch (final MorriganException e) {
+					throw new IllegalStateException("Failed to make item: " + key, e);
+				}
+				if (item == null) throw new IllegalStateException("No item made for: " + key);
+				this.made.put(i, item);
+			}
+			return item;
+		}
+	}
+
+}
@@ -4,10 +4,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -29,6 +32,7 @@ import com.vaguehope.morrigan.dlna.util.Objects;
 import com.vaguehope.morrigan.dlna.util.StringHelper;
 import com.vaguehope.morrigan.model.exceptions.MorriganException;
 import com.vaguehope.morrigan.model.media.IMixedMediaDb;
+import com.vaguehope.morrigan.model.media.IMixedMediaItem;
 import com.vaguehope.morrigan.model.media.MediaFactory;
 import com.vaguehope.morrigan.model.media.MediaListReference;
 import com.vaguehope.sqlitewrapper.DbException;
@@ -48,26 +52,42 @@ public class SearchEngine {
 
 	private final Cache<String, List<Item>> queryCache = new Cache<String, List<Item>>(50);
 
-	public List<Item> search (final ContentNode contentNode, final String searchCriteria) throws ContentDirectoryException, DbException, MorriganException {
+	/**
+	 * Results from all DBs are sorted together as rows, before any Items are made,
+	 * so they can be sorted by what only rows know, e.g. play count.
+	 */
+	public List<Item> search (final ContentNode contentNode, final String searchCriteria, final SortOrder order) throws ContentDirectoryException, DbException, MorriganException {
 		if (searchCriteria == null) throw new ContentDirectoryException(ContentDirectoryErrorCodes.UNSUPPORTED_SEARCH_CRITERIA, "Do not know how to parse: " + searchCriteria);
 
 		final String term = criteriaToMnTerm(searchCriteria);
 		if (term == null) throw new ContentDirectoryException(ContentDirectoryErrorCodes.UNSUPPORTED_SEARCH_CRITERIA, "Do not know how to parse: " + searchCriteria);
 
-		final List<Item> ret = new ArrayList<Item>();
+		final String cacheKey = String.format("%s|%s|%s", term, contentNode.getContainer().getId(), order.key());
+		final List<Item> cached = this.queryCache.getFresh(cacheKey, 1, TimeUnit.MINUTES);
+		if (cached != null) return cached;
+
+		final List<IMixedMediaItem> rows = new ArrayList<IMixedMediaItem>();
+		final Map<IMixedMediaItem, MediaListReference> mlrOfRow = new IdentityHashMap<IMixedMediaItem, MediaListReference>();
+		final Map<MediaListReference, IMixedMediaDb> dbs = new HashMap<MediaListReference, IMixedMediaDb>();
 		for (final MediaListReference mlr : this.mediaFactory.getAllLocalMixedMediaDbs()) {
 			final IMixedMediaDb db = this.mediaFactory.getLocalMixedMediaDb(mlr.getIdentifier());
 			if (db.getCount() > 0) { // Only search loaded DBs.
-				final String cacheKey = String.format("%s|%s|%s", term, contentNode.getContainer().getId(), mlr.getIdentifier());
-				List<Item> results = this.queryCache.getFresh(cacheKey, 1, TimeUnit.MINUTES);
-				if (results == null) {
-					results = this.contentAdaptor.queryToItems(mlr, db, term, contentNode.getContainer(), MAX_RESULTS);
-					this.queryCache.put(cacheKey, results);
+				dbs.put(mlr, db);
+				for (final IMixedMediaItem row : this.contentAdaptor.queryToRows(mlr, db, term, MAX_RESULTS)) {
+					rows.add(row);
+					mlrOfRow.put(row, mlr);
 				}
-				ret.addAll(results);
 			}
 		}
 
+		final List<Item> ret = new ArrayList<Item>();
+		for (final IMixedMediaItem row : order.sortRows(rows)) {
+			final MediaListReference mlr = mlrOfRow.get(row);
+			final Item item = this.contentAdaptor.rowToItem(contentNode.getContainer(), mlr, dbs.get(mlr), row);
+			if (item != null) ret.add(item);
+		}
+		this.queryCache.put(cacheKey, ret);
+
 		LOG.info("se: {} --> {} ({} results).", searchCriteria, term, ret.size());
 		return ret;
 	}
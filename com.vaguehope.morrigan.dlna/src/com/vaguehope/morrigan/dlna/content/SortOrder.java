@@ -0,0 +1,243 @@
+package com.vaguehope.morrigan.dlna.content;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fourthline.cling.support.model.DIDLObject;
+import org.fourthline.cling.support.model.DIDLObject.Property.DC;
+import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.SortCriterion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.model.media.IMixedMediaItem;
+
+/**
+ * A Browse or Search SortCriteria, applied to DB rows before any Items are made,
+ * or to objects already made, e.g. containers and search results.
+ * Sorts are stable, so anything equal on every key stays in the order it was listed.
+ * Items, in containers and search results alike, are always sorted as rows, so only containers are sorted as objects.
+ * Properties not supported are skipped rather than failing the request, as many control points
+ * send a default SortCriteria whatever SortCapabilities says.
+ */
+final class SortOrder {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SortOrder.class);
+
+	static final SortOrder NONE = new SortOrder(Collections.<Key> emptyList(), Collections.<Boolean> emptyList());
+
+	private enum Key {
+		TITLE("dc:title") {
+			@Override
+			int compareRows (final IMixedMediaItem a, final IMixedMediaItem b, final Map<IMixedMediaItem, Long> sizes) {
+				return compareStrings(a.getTitle(), b.getTitle());
+			}
+
+			@Override
+			int compareObjects (final DIDLObject a, final DIDLObject b) {
+				return compareStrings(a.getTitle(), b.getTitle());
+			}
+		},
+		DATE("dc:date") {
+			@Override
+			int compareRows (final IMixedMediaItem a, final IMixedMediaItem b, final Map<IMixedMediaItem, Long> sizes) {
+				return compareDates(a.getDateAdded(), b.getDateAdded());
+			}
+
+			/**
+			 * dc:date is ISO 8601 so sorts as text.
+			 */
+			@Override
+			int compareObjects (final DIDLObject a, final DIDLObject b) {
+				return compareStrings(a.getFirstPropertyValue(DC.DATE.class), b.getFirstPropertyValue(DC.DATE.class));
+			}
+		},
+		SIZE("res@size") {
+			@Override
+			int compareRows (final IMixedMediaItem a, final IMixedMediaItem b, final Map<IMixedMediaItem, Long> sizes) {
+				return compareLongs(fileSize(a, sizes), fileSize(b, sizes));
+			}
+
+			@Override
+			int compareObjects (final DIDLObject a, final DIDLObject b) {
+				return compareLongs(resSize(a), resSize(b));
+			}
+		},
+		PLAYBACK_COUNT("upnp:playbackCount") {
+			@Override
+			int compareRows (final IMixedMediaItem a, final IMixedMediaItem b, final Map<IMixedMediaItem, Long> sizes) {
+				return compareLongs(a.getEndCount(), b.getEndCount());
+			}
+
+			/**
+			 * Only containers are sorted as objects, and they have no play count.
+			 */
+			@Override
+			int compareObjects (final DIDLObject a, final DIDLObject b) {
+				return 0;
+			}
+		};
+
+		final String property;
+
+		private Key (final String property) {
+			this.property = property;
+		}
+
+		abstract int compareRows (IMixedMediaItem a, IMixedMediaItem b, Map<IMixedMediaItem, Long> sizes);
+
+		abstract int compareObjects (DIDLObject a, DIDLObject b);
+
+		static Key forProperty (final String property) {
+			for (final Key k : values()) {
+				if (k.property.equals(property)) return k;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * For SortCapabilities.
+	 */
+	static List<String> capabilities () {
+		final List<String> ret = new ArrayList<String>();
+		for (final Key k : Key.values()) {
+			ret.add(k.property);
+		}
+		return ret;
+	}
+
+	/**
+	 * Properties not in capabilities() are skipped.
+	 */
+	static SortOrder parse (final SortCriterion[] criteria) {
+		if (criteria == null || criteria.length < 1) return NONE;
+		final List<Key> keys = new ArrayList<Key>();
+		final List<Boolean> ascending = new ArrayList<Boolean>();
+		for (final SortCriterion c : criteria) {
+			final Key k = Key.forProperty(c.getPropertyName());
+			if (k == null) {
+				LOG.debug("Ignoring unsupported sort property: {}", c.getPropertyName());
+				continue;
+			}
+			keys.add(k);
+			ascending.add(Boolean.valueOf(c.isAscending()));
+		}
+		return keys.isEmpty() ? NONE : new SortOrder(keys, ascending);
+	}
+
+	private final List<Key> keys;
+	private final List<Boolean> ascending;
+	private final String key;
+
+	private SortOrder (final List<Key> keys, final List<Boolean> ascending) {
+		this.keys = keys;
+		this.ascending = ascending;
+		final StringBuilder s = new StringBuilder();
+		for (int i = 0; i < keys.size(); i++) {
+			if (i > 0) s.append(',');
+			s.append(ascending.get(i).booleanValue() ? '+' : '-').append(keys.get(i).property);
+		}
+		this.key = s.toString();
+	}
+
+	boolean isNone () {
+		return this.keys.isEmpty();
+	}
+
+	/**
+	 * Same as the SortCriteria it was parsed from.  Empty for NONE.
+	 */
+	String key () {
+		return this.key;
+	}
+
+	/**
+	 * Returns a sorted copy.
+	 */
+	List<IMixedMediaItem> sortRows (final Collection<IMixedMediaItem> rows) {
+		final List<IMixedMediaItem> ret = new ArrayList<IMixedMediaItem>(rows);
+		if (isNone()) return ret;
+		final Map<IMixedMediaItem, Long> sizes = new IdentityHashMap<IMixedMediaItem, Long>();
+		Collections.sort(ret, new Comparator<IMixedMediaItem>() {
+			@Override
+			public int compare (final IMixedMediaItem a, final IMixedMediaItem b) {
+				for (int i = 0; i < SortOrder.this.keys.size(); i++) {
+					final int c = SortOrder.this.keys.get(i).compareRows(a, b, sizes);
+					if (c != 0) return SortOrder.this.ascending.get(i).booleanValue() ? c : -c;
+				}
+				return 0;
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Returns a sorted copy.
+	 */
+	<T extends DIDLObject> List<T> sortObjects (final List<T> objects) {
+		final List<T> ret = new ArrayList<T>(objects);
+		if (isNone()) return ret;
+		Collections.sort(ret, new Comparator<T>() {
+			@Override
+			public int compare (final T a, final T b) {
+				for (int i = 0; i < SortOrder.this.keys.size(); i++) {
+					final int c = SortOrder.this.keys.get(i).compareObjects(a, b);
+					if (c != 0) return SortOrder.this.ascending.get(i).booleanValue() ? c : -c;
+				}
+				return 0;
+			}
+		});
+		return ret;
+	}
+
+	@Override
+	public String toString () {
+		return this.key;
+	}
+
+	/**
+	 * Nulls sort first.
+	 */
+	static int compareStrings (final String a, final String b) {
+		if (a == null) return b == null ? 0 : -1;
+		if (b == null) return 1;
+		return a.compareToIgnoreCase(b);
+	}
+
+	static int compareDates (final Date a, final Date b) {
+		if (a == null) return b == null ? 0 : -1;
+		if (b == null) return 1;
+		return a.compareTo(b);
+	}
+
+	static int compareLongs (final long a, final long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * Files are only stat'ed once per sort.
+	 */
+	static long fileSize (final IMixedMediaItem row, final Map<IMixedMediaItem, Long> sizes) {
+		Long size = sizes.get(row);
+		if (size == null) {
+			size = Long.valueOf(new File(row.getFilepath()).length());
+			sizes.put(row, size);
+		}
+		return size.longValue();
+	}
+
+	static long resSize (final DIDLObject obj) {
+		final Res res = obj.getFirstResource();
+		if (res == null || res.getSize() == null) return -1;
+		return res.getSize().longValue();
+	}
+
+}
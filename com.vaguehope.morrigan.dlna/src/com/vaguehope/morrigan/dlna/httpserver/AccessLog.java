@@ -0,0 +1,220 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request log that costs the request thread one small allocation and a CAS.
+ * Entries go into a fixed size ring which a background thread drains and writes.
+ * If the ring is full entries are dropped and counted rather than blocking.
+ * Successful requests can be sampled and output is rate limited; errors are always logged.
+ */
+public class AccessLog {
+
+	private static final int DEFAULT_CAPACITY = 4096;
+	private static final int DEFAULT_SAMPLE_EVERY = 1;
+	private static final int DEFAULT_MAX_LINES_PER_SECOND = 50;
+	private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccessLog.class);
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final int sampleEvery;
+	private final int maxLinesPerSecond;
+
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+	private final AtomicLong sampleCounter = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private long reportedDropped = 0;
+	private volatile Thread drainer;
+
+	public AccessLog () {
+		this(DEFAULT_CAPACITY, DEFAULT_SAMPLE_EVERY, DEFAULT_MAX_LINES_PER_SECOND);
+	}
+
+	/**
+	 * @param capacity rounded up to a power of two.
+	 * @param sampleEvery log 1 in this many successful requests.
+	 * @param maxLinesPerSecond lines beyond this are counted and summarised instead.
+	 */
+	public AccessLog (final int capacity, final int sampleEvery, final int maxLinesPerSecond) {
+		if (capacity < 1 || sampleEvery < 1 || maxLinesPerSecond < 1) throw new IllegalArgumentException();
+		final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+		this.sampleEvery = sampleEvery;
+		this.maxLinesPerSecond = maxLinesPerSecond;
+	}
+
+	public void start () {
+		final Thread t = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				drainLoop();
+			}
+		}, "dlna-access-log");
+		t.setDaemon(true);
+		this.drainer = t;
+		t.start();
+	}
+
+	/**
+	 * Writes anything still queued before returning.
+	 */
+	public void stop () {
+		final Thread t = this.drainer;
+		this.drainer = null;
+		if (t == null) return;
+		LockSupport.unpark(t);
+		try {
+			t.join(TimeUnit.SECONDS.toMillis(5));
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Safe to call from any thread, never blocks.
+	 * range may be null.
+	 */
+	public void record (final String method, final int status, final String client, final long bytes,
+			final long durationMillis, final String uri, final String range) {
+		if (status < 400 && this.sampleEvery > 1 && this.sampleCounter.incrementAndGet() % this.sampleEvery != 0) return;
+		final Entry entry = new Entry(method, status, client, bytes, durationMillis, uri, range);
+		while (true) {
+			final long t = this.tail.get();
+			if (t - this.head >= this.slots.length()) {
+				this.dropped.incrementAndGet();
+				return;
+			}
+			if (this.tail.compareAndSet(t, t + 1)) {
+				this.slots.set((int) (t & this.mask), entry);
+				return;
+			}
+		}
+	}
+
+	public long getDropped () {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Number of entries waiting to be written.
+	 */
+	public long getPending () {
+		return this.tail.get() - this.head;
+	}
+
+	private void drainLoop () {
+		final RateLimit rateLimit = new RateLimit(this.maxLinesPerSecond);
+		while (this.drainer != null) {
+			drain(rateLimit);
+			LockSupport.parkNanos(this, DRAIN_INTERVAL_NANOS);
+		}
+		drain(rateLimit);
+		rateLimit.flushSuppressed();
+	}
+
+	/**
+	 * Only ever called from one thread at a time.
+	 * A slot that has been claimed but not yet filled stops the drain until next time.
+	 */
+	int drain (final RateLimit rateLimit) {
+		int count = 0;
+		long h = this.head;
+		while (h < this.tail.get()) {
+			final int i = (int) (h & this.mask);
+			final Entry entry = this.slots.get(i);
+			if (entry == null) break;
+			this.slots.set(i, null);
+			h += 1;
+			this.head = h;
+			count += 1;
+			if (rateLimit.allow(entry.status)) write(entry);
+		}
+
+		final long d = this.dropped.get();
+		if (d > this.reportedDropped) {
+			LOG.warn("Access log ring full, dropped {} entries.", d - this.reportedDropped);
+			this.reportedDropped = d;
+		}
+		return count;
+	}
+
+	private static void write (final Entry e) {
+		if (e.range != null) {
+			LOG.info("Request: {} {} {} {}b {}ms {} ({})", e.method, e.status, e.client, e.bytes, e.durationMillis, e.uri, e.range);
+		}
+		else {
+			LOG.info("Request: {} {} {} {}b {}ms {}", e.method, e.status, e.client, e.bytes, e.durationMillis, e.uri);
+		}
+	}
+
+	static final class RateLimit {
+
+		private final int maxPerSecond;
+		private long windowStart = System.nanoTime();
+		private int inWindow = 0;
+		private long suppressed = 0;
+
+		RateLimit (final int maxPerSecond) {
+			this.maxPerSecond = maxPerSecond;
+		}
+
+		boolean allow (final int status) {
+			final long now = System.nanoTime();
+			if (now - this.windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+				flushSuppressed();
+				this.windowStart = now;
+				this.inWindow = 0;
+			}
+			if (status >= 400 || this.inWindow < this.maxPerSecond) {
+				this.inWindow += 1;
+				return true;
+			}
+			this.suppressed += 1;
+			return false;
+		}
+
+		void flushSuppressed () {
+			if (this.suppressed > 0) {
+				LOG.info("Access log rate limited, suppressed {} entries.", this.suppressed);
+				this.suppressed = 0;
+			}
+		}
+
+	}
+
+	private static final class Entry {
+
+		final String method;
+		final int status;
+		final String client;
+		final long bytes;
+		final long durationMillis;
+		final String uri;
+		final String range;
+
+		Entry (final String method, final int status, final String client, final long bytes,
+				final long durationMillis, final String uri, final String range) {
+			this.method = method;
+			this.status = status;
+			this.client = client;
+			this.bytes = bytes;
+			this.durationMillis = durationMillis;
+			this.uri = uri;
+			this.range = range;
+		}
+
+	}
+
+}
@@ -0,0 +1,218 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+import com.vaguehope.morrigan.dlna.MediaFormat;
+import com.vaguehope.morrigan.dlna.content.ContentGroup;
+import com.vaguehope.morrigan.dlna.util.Quietly;
+
+/**
+ * Keeps small images (album art, thumbnails) in direct buffers so
+ * renderers scrolling long lists do not cause a disk read per item.
+ * Bounded by total bytes, least recently used is evicted first.
+ */
+public class ArtCache {
+
+	private static final long DEFAULT_MAX_TOTAL_BYTES = 32L * 1024 * 1024;
+	private static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+	private static final long RECHECK_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+	private final long maxTotalBytes;
+	private final int maxEntryBytes;
+	private final Map<String, CachedArt> entries = new LinkedHashMap<String, CachedArt>(16, 0.75f, true);
+	private final Object[] lock = new Object[] {};
+	private long totalBytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ArtCache () {
+		this(DEFAULT_MAX_TOTAL_BYTES, DEFAULT_MAX_ENTRY_BYTES);
+	}
+
+	public ArtCache (final long maxTotalBytes, final int maxEntryBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+		this.maxEntryBytes = maxEntryBytes;
+	}
+
+	/**
+	 * Returns null if not cached or if cached copy may be out of date.
+	 */
+	public CachedArt get (final String id) {
+		final CachedArt art;
+		synchronized (this.lock) {
+			art = this.entries.get(id);
+		}
+		if (art == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		if (!art.isFresh()) {
+			remove(id, art);
+			this.misses.incrementAndGet();
+			return null;
+		}
+		this.hits.incrementAndGet();
+		return art;
+	}
+
+	/**
+	 * Returns null if file is not suitable for caching.
+	 */
+	public CachedArt load (final String id, final File file, final Validators validators) throws IOException {
+		if (!isCacheable(file)) return null;
+		final CachedArt art = CachedArt.read(file, validators);
+		if (art == null) return null;
+
+		synchronized (this.lock) {
+			final CachedArt prev = this.entries.put(id, art);
+			if (prev != null) this.totalBytes -= prev.length();
+			this.totalBytes += art.length();
+			evict();
+		}
+		return art;
+	}
+
+	private boolean isCacheable (final File file) {
+		final long length = file.length();
+		if (length < 1 || length > this.maxEntryBytes) return false;
+		final MediaFormat format = MediaFormat.identify(file);
+		return format != null && format.getContentGroup() == ContentGroup.IMAGE;
+	}
+
+	private void remove (final String id, final CachedArt art) {
+		synchronized (this.lock) {
+			if (this.entries.get(id) == art) {
+				this.entries.remove(id);
+				this.totalBytes -= art.length();
+			}
+		}
+	}
+
+	/**
+	 * Must hold lock.
+	 */
+	private void evict () {
+		final Iterator<CachedArt> ittr = this.entries.values().iterator();
+		while (this.totalBytes > this.maxTotalBytes && ittr.hasNext()) {
+			final CachedArt art = ittr.next();
+			ittr.remove();
+			this.totalBytes -= art.length();
+		}
+	}
+
+	public long getHits () {
+		return this.hits.get();
+	}
+
+	public long getMisses () {
+		return this.misses.get();
+	}
+
+	public long getTotalBytes () {
+		synchronized (this.lock) {
+			return this.totalBytes;
+		}
+	}
+
+	public static final class CachedArt {
+
+		private final File file;
+		private final Validators validators;
+		private final ByteBuffer bytes;
+		private final String contentType;
+		private final String contentLength;
+		private volatile long checkedNanos;
+
+		private CachedArt (final File file, final Validators validators, final ByteBuffer bytes, final String contentType) {
+			this.file = file;
+			this.validators = validators;
+			this.bytes = bytes;
+			this.contentType = contentType;
+			this.contentLength = String.valueOf(bytes.limit());
+			this.checkedNanos = System.nanoTime();
+		}
+
+		static CachedArt read (final File file, final Validators validators) throws IOException {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel fc = raf.getChannel();
+				final long size = fc.size();
+				if (size > Integer.MAX_VALUE) return null;
+				final ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+				while (buffer.hasRemaining()) {
+					if (fc.read(buffer) < 0) break;
+				}
+				buffer.flip();
+				return new CachedArt(file, validators, buffer.asReadOnlyBuffer(), FileStreamer.contentTypeOf(file));
+			}
+			finally {
+				Quietly.close(raf);
+			}
+		}
+
+		/**
+		 * Only hits the file system once per RECHECK_NANOS.
+		 */
+		boolean isFresh () {
+			final long now = System.nanoTime();
+			if (now - this.checkedNanos < RECHECK_NANOS) return true;
+			if (!this.validators.isValidFor(this.file) || this.file.length() != this.bytes.limit()) return false;
+			this.checkedNanos = now;
+			return true;
+		}
+
+		long length () {
+			return this.bytes.limit();
+		}
+
+		public Validators getValidators () {
+			return this.validators;
+		}
+
+		/**
+		 * If sendBody is false only headers are written, e.g. for HEAD.
+		 * Returns the number of body bytes written.
+		 */
+		public long serve (final HttpServletResponse resp, final boolean sendBody) throws IOException {
+			resp.setStatus(HttpServletResponse.SC_OK);
+			resp.setContentType(this.contentType);
+			resp.setHeader(HttpHeaders.CONTENT_LENGTH, this.contentLength);
+			this.validators.addHeaders(resp);
+			if (!sendBody) return 0;
+
+			final ByteBuffer body = this.bytes.duplicate();
+			final ServletOutputStream out = resp.getOutputStream();
+			if (out instanceof AbstractHttpConnection.Output) {
+				((AbstractHttpConnection.Output) out).sendContent(new DirectNIOBuffer(body, true));
+			}
+			else {
+				final byte[] chunk = new byte[Math.min(body.remaining(), 64 * 1024)];
+				while (body.hasRemaining()) {
+					final int n = Math.min(chunk.length, body.remaining());
+					body.get(chunk, 0, n);
+					out.write(chunk, 0, n);
+				}
+			}
+			return this.bytes.limit();
+		}
+
+	}
+
+}
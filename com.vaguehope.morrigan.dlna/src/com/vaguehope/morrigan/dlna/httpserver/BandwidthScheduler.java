@@ -0,0 +1,192 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces concurrent streams so one client pulling as fast as it can does not starve the others.
+ * Streams with a known playback bitrate reserve a multiple of it, so they can buffer ahead
+ * but never need more.  If the link rate is known, whatever is not reserved is shared
+ * equally between clients, and then between each client's streams.
+ * If the link rate is not known (0), streams of unknown bitrate are not paced,
+ * and nothing is paced while there is only one stream.
+ * Allowances change as streams open and close, and streams already running take the new one from their next chunk,
+ * so a stream that started alone is paced as soon as another competes with it.
+ */
+public class BandwidthScheduler {
+
+	/**
+	 * How far ahead of real time a stream may run once its burst is used up.
+	 */
+	private static final int HEADROOM_FACTOR = 4;
+	/**
+	 * Seconds of allowance a new stream may send straight away, so playback and seeks start quickly.
+	 */
+	private static final int INITIAL_BURST_SECONDS = 5;
+	private static final long MIN_ALLOWANCE_BYTES_PER_SECOND = 64 * 1024;
+	private static final long UNLIMITED = Long.MAX_VALUE;
+
+	private final long linkBytesPerSecond;
+	private final List<Stream> streams = new ArrayList<Stream>();
+	private final Object[] lock = new Object[] {};
+
+	/**
+	 * @param linkBytesPerSecond 0 if not known.
+	 */
+	public BandwidthScheduler (final long linkBytesPerSecond) {
+		this.linkBytesPerSecond = linkBytesPerSecond;
+	}
+
+	/**
+	 * Caller must close() the returned stream when done.
+	 * @param requiredBytesPerSecond 0 if not known, e.g. not a media file.
+	 */
+	public Stream open (final String client, final long requiredBytesPerSecond) {
+		final Stream s = new Stream(this, client, requiredBytesPerSecond);
+		synchronized (this.lock) {
+			this.streams.add(s);
+			reallocate();
+		}
+		return s;
+	}
+
+	void close (final Stream s) {
+		synchronized (this.lock) {
+			if (this.streams.remove(s)) reallocate();
+		}
+	}
+
+	public int getActiveStreams () {
+		synchronized (this.lock) {
+			return this.streams.size();
+		}
+	}
+
+	/**
+	 * Must hold lock.
+	 */
+	private void reallocate () {
+		long reserved = 0;
+		final Map<String, Integer> streamsPerClient = new HashMap<String, Integer>();
+		for (final Stream s : this.streams) {
+			reserved += s.reserved;
+			final Integer n = streamsPerClient.get(s.client);
+			streamsPerClient.put(s.client, n != null ? n + 1 : 1);
+		}
+
+		if (this.linkBytesPerSecond <= 0) {
+			final boolean competing = this.streams.size() > 1;
+			for (final Stream s : this.streams) {
+				s.setAllowance(competing && s.reserved > 0 ? s.reserved : UNLIMITED);
+			}
+			return;
+		}
+
+		final long spare = Math.max(0, this.linkBytesPerSecond - reserved);
+		final long perClient = spare / Math.max(1, streamsPerClient.size());
+		for (final Stream s : this.streams) {
+			final long share = perClient / streamsPerClient.get(s.client);
+			s.setAllowance(Math.max(MIN_ALLOWANCE_BYTES_PER_SECOND, s.reserved + share));
+		}
+	}
+
+	public static final class Stream {
+
+		private final BandwidthScheduler scheduler;
+		private final String client;
+		private final long reserved;
+
+		private volatile long allowance = UNLIMITED;
+		private long tokens;
+		private long lastRefillNanos;
+		private boolean started = false;
+
+		Stream (final BandwidthScheduler scheduler, final String client, final long requiredBytesPerSecond) {
+			this.scheduler = scheduler;
+			this.client = client;
+			this.reserved = requiredBytesPerSecond > 0 ? requiredBytesPerSecond * HEADROOM_FACTOR : 0;
+		}
+
+		void setAllowance (final long bytesPerSecond) {
+			this.allowance = bytesPerSecond;
+		}
+
+		/**
+		 * Bytes per second, Long.MAX_VALUE if not paced.
+		 */
+		public long getAllowance () {
+			return this.allowance;
+		}
+
+		public boolean isPaced () {
+			return this.allowance != UNLIMITED;
+		}
+
+		/**
+		 * Blocks until count bytes may be sent.
+		 * Only called by the one thread serving the stream.
+		 */
+		public void acquire (final long count) throws InterruptedIOException {
+			long waitNanos = reserve(count);
+			while (waitNanos > 0) {
+				LockSupport.parkNanos(this, waitNanos);
+				if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while paced.");
+				waitNanos = owed();
+			}
+		}
+
+		/**
+		 * Non-blocking form of acquire(): takes count bytes of allowance and returns how many
+		 * nanoseconds the caller must wait before sending them, 0 if they may be sent now.
+		 * Only called by the thread currently serving the stream.
+		 */
+		public synchronized long reserve (final long count) {
+			final long rate = this.allowance;
+			if (rate == UNLIMITED) return 0;
+
+			final long now = System.nanoTime();
+			if (!this.started) {
+				this.tokens = rate * INITIAL_BURST_SECONDS;
+				this.lastRefillNanos = now;
+				this.started = true;
+			}
+			else {
+				refill(rate, now);
+			}
+
+			this.tokens -= count;
+			return this.tokens < 0 ? TimeUnit.SECONDS.toNanos(-this.tokens) / rate + 1 : 0;
+		}
+
+		/**
+		 * Nanoseconds until previously reserved bytes are covered, 0 if already covered.
+		 */
+		private synchronized long owed () {
+			final long rate = this.allowance;
+			if (rate == UNLIMITED) return 0;
+			refill(rate, System.nanoTime());
+			return this.tokens < 0 ? TimeUnit.SECONDS.toNanos(-this.tokens) / rate + 1 : 0;
+		}
+
+		/**
+		 * Refill is capped at one second of allowance so an idle stream can not save up.
+		 */
+		private void refill (final long rate, final long now) {
+			final long elapsed = now - this.lastRefillNanos;
+			this.lastRefillNanos = now;
+			final long add = elapsed >= TimeUnit.SECONDS.toNanos(1) ? rate : rate * elapsed / TimeUnit.SECONDS.toNanos(1);
+			this.tokens = Math.min(this.tokens + add, Math.max(this.tokens, rate));
+		}
+
+		public void close () {
+			this.scheduler.close(this);
+		}
+
+	}
+
+}
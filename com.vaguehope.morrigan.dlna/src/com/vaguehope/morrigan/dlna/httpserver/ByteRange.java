@@ -0,0 +1,90 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An inclusive byte range within a file of known length.
+ */
+public final class ByteRange {
+
+	private static final String BYTES_UNIT = "bytes=";
+	private static final int MAX_RANGES = 16;
+
+	private final long first;
+	private final long last;
+
+	public ByteRange (final long first, final long last) {
+		if (first < 0 || last < first) throw new IllegalArgumentException("Invalid range: " + first + "-" + last);
+		this.first = first;
+		this.last = last;
+	}
+
+	public long getFirst () {
+		return this.first;
+	}
+
+	public long getLast () {
+		return this.last;
+	}
+
+	public long length () {
+		return this.last - this.first + 1;
+	}
+
+	public String toContentRange (final long totalLength) {
+		return String.format("bytes %s-%s/%s", this.first, this.last, totalLength);
+	}
+
+	/**
+	 * Returns null if the header can not be parsed and so should be ignored.
+	 * Returns empty list if the header is valid but none of the ranges can be satisfied.
+	 */
+	public static List<ByteRange> parse (final String header, final long totalLength) {
+		if (header == null) return null;
+		final String h = header.trim();
+		if (!h.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) return null;
+
+		final String[] specs = h.substring(BYTES_UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES) return null;
+
+		final List<ByteRange> ret = new ArrayList<ByteRange>(specs.length);
+		for (final String rawSpec : specs) {
+			final String spec = rawSpec.trim();
+			final int dash = spec.indexOf('-');
+			if (dash < 0) return null;
+
+			final String firstStr = spec.substring(0, dash).trim();
+			final String lastStr = spec.substring(dash + 1).trim();
+			try {
+				if (firstStr.length() < 1) {
+					// Suffix range: last N bytes.
+					if (lastStr.length() < 1) return null;
+					final long suffixLength = Long.parseLong(lastStr);
+					if (suffixLength < 0) return null;
+					if (suffixLength == 0 || totalLength < 1) continue;
+					ret.add(new ByteRange(Math.max(totalLength - suffixLength, 0), totalLength - 1));
+				}
+				else {
+					final long first = Long.parseLong(firstStr);
+					if (first < 0) return null;
+					final long last = lastStr.length() > 0 ? Long.parseLong(lastStr) : Long.MAX_VALUE;
+					if (last < first) return null;
+					if (first >= totalLength) continue;
+					ret.add(new ByteRange(first, Math.min(last, totalLength - 1)));
+				}
+			}
+			catch (final NumberFormatException e) {
+				return null;
+			}
+		}
+		return ret.size() > 0 ? ret : Collections.<ByteRange> emptyList();
+	}
+
+	@Override
+	public String toString () {
+		return String.format("ByteRange{%s-%s}", this.first, this.last);
+	}
+
+}
@@ -0,0 +1,288 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.httpserver.ArtCache.CachedArt;
+
+/**
+ * Installed directly as the server's handler, so requests skip the
+ * servlet context, holder and filter chain entirely.
+ * The whole path is the ID, read from the raw URI so it is never decoded.
+ * Where the connection allows, file bodies are handed to the StreamPump,
+ * which redispatches the request here each time it continues.
+ * A stream's admission and its BandwidthScheduler.Stream are held until its last byte has been flushed,
+ * whether pumped or sent before the streamer returns.
+ * IDs ending in a TranscodeProfile's suffix are transcodes of the ID before it.
+ */
+public final class ContentHandler extends AbstractHandler {
+
+	private static final int RETRY_AFTER_SECONDS = 10;
+	private static final Logger LOG = LoggerFactory.getLogger(ContentHandler.class);
+
+	private final FileLocator fileLocator;
+	private final SeekIndexStore seekIndexStore;
+	private final AccessLog accessLog;
+	private final BandwidthScheduler bandwidthScheduler;
+	private final StreamPump streamPump;
+	private final FileStreamer fileStreamer;
+	private final TranscodeStreamer transcodeStreamer;
+	private final ArtCache artCache = new ArtCache();
+
+	public ContentHandler (final FileLocator fileLocator, final SeekIndexStore seekIndexStore,
+			final AccessLog accessLog, final BandwidthScheduler bandwidthScheduler, final SharedSegmentCache sharedSegments,
+			final StreamPump streamPump, final Transcoder transcoder, final TranscodeCache transcodeCache) {
+		this.fileLocator = fileLocator;
+		this.seekIndexStore = seekIndexStore;
+		this.accessLog = accessLog;
+		this.bandwidthScheduler = bandwidthScheduler;
+		this.streamPump = streamPump;
+		this.fileStreamer = new FileStreamer(sharedSegments, streamPump);
+		this.transcodeStreamer = new TranscodeStreamer(transcoder, transcodeCache, this.fileStreamer);
+	}
+
+	/**
+	 * Transcodes in the background, see TranscodeStreamer.preTranscode().
+	 */
+	public void preTranscode (final File source, final TranscodeProfile profile) {
+		this.transcodeStreamer.preTranscode(source, profile);
+	}
+
+	@Override
+	protected void doStop () throws Exception {
+		this.transcodeStreamer.dispose();
+		super.doStop();
+	}
+
+	@Override
+	public void handle (final String target, final Request baseRequest, final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+		baseRequest.setHandled(true);
+		if (this.streamPump.resume(req)) return;
+
+		final String method = req.getMethod();
+		if (HttpMethods.GET.equals(method)) {
+			handle(req, resp, true);
+		}
+		else if (HttpMethods.HEAD.equals(method)) {
+			handle(req, resp, false);
+		}
+		else {
+			resp.setHeader(HttpHeaders.ALLOW, HttpMethods.GET + ", " + HttpMethods.HEAD);
+			resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		}
+	}
+
+	private void handle (final HttpServletRequest req, final HttpServletResponse resp, final boolean sendBody) throws IOException {
+		final long startTime = now();
+		long bytes = 0;
+		boolean pumped = false;
+		try {
+			final String id = idFromUri(req.getRequestURI());
+			final String timeSeekHeader = req.getHeader(TimeSeekRange.HEADER);
+			final boolean ranged = req.getHeader(HttpHeaders.RANGE) != null || timeSeekHeader != null;
+
+			if (!ranged && id != null) {
+				final CachedArt art = this.artCache.get(id);
+				if (art != null) {
+					if (art.getValidators().isNotModified(req)) {
+						notModified(resp, art.getValidators());
+						return;
+					}
+					bytes = art.serve(resp, sendBody);
+					return;
+				}
+			}
+
+			final TranscodeProfile transcode = id != null ? TranscodeProfile.forId(id) : null;
+			final File file = findFile(transcode != null ? transcode.baseIdOf(id) : id);
+			if (file == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			// A transcode's output is not known until it has been made, the TranscodeStreamer validates it once cached.
+			Validators validators = null;
+			if (transcode == null) {
+				validators = findValidators(id, file);
+				if (validators.isNotModified(req)) {
+					notModified(resp, validators);
+					return;
+				}
+
+				if (!ranged) {
+					final CachedArt art = this.artCache.load(id, file, validators);
+					if (art != null) {
+						bytes = art.serve(resp, sendBody);
+						return;
+					}
+				}
+			}
+
+			if (sendBody && !this.streamPump.admit()) {
+				resp.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(RETRY_AFTER_SECONDS));
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return;
+			}
+			final BandwidthScheduler.Stream stream = this.bandwidthScheduler.open(req.getRemoteAddr(),
+					transcode != null ? transcode.getBytesPerSecond() : requiredBytesPerSecond(id, file));
+			try {
+				if (transcode != null) {
+					bytes = this.transcodeStreamer.serve(req, resp, file, transcode, stream, sendBody);
+				}
+				else if (timeSeekHeader != null && req.getHeader(HttpHeaders.RANGE) == null) {
+					bytes = serveTimeSeek(req, resp, file, validators, timeSeekHeader, stream, sendBody);
+				}
+				else {
+					bytes = this.fileStreamer.serve(req, resp, file, validators, stream, sendBody);
+				}
+				pumped = this.streamPump.isPending(req);
+				if (pumped) finishWhenPumped(req, resp, stream, startTime);
+			}
+			finally {
+				if (!pumped) {
+					stream.close();
+					if (sendBody) this.streamPump.release();
+				}
+			}
+		}
+		finally {
+			if (!pumped) record(req.getMethod(), resp.getStatus(), req.getRemoteAddr(), bytes, startTime, req.getRequestURI(), rangeOf(req));
+		}
+	}
+
+	/**
+	 * The request may have been recycled by the time the transfer finishes, so everything is read now.
+	 */
+	private void finishWhenPumped (final HttpServletRequest req, final HttpServletResponse resp,
+			final BandwidthScheduler.Stream stream, final long startTime) {
+		final String method = req.getMethod();
+		final int status = resp.getStatus();
+		final String client = req.getRemoteAddr();
+		final String uri = req.getRequestURI();
+		final String range = rangeOf(req);
+		this.streamPump.onFinish(req, new Transfer.Listener() {
+			@Override
+			public void transferFinished (final long bytesSent, final boolean complete) {
+				stream.close();
+				ContentHandler.this.streamPump.release();
+				record(method, status, client, bytesSent, startTime, uri, range);
+			}
+		});
+	}
+
+	private void record (final String method, final int status, final String client, final long bytes,
+			final long startTime, final String uri, final String range) {
+		this.accessLog.record(method, status, client, bytes, TimeUnit.NANOSECONDS.toMillis(now() - startTime), uri, range);
+	}
+
+	private static String rangeOf (final HttpServletRequest req) {
+		final String range = req.getHeader(HttpHeaders.RANGE);
+		return range != null ? range : req.getHeader(TimeSeekRange.HEADER);
+	}
+
+	/**
+	 * DLNA says unsupported time seeks get 406 rather than being ignored.
+	 */
+	private long serveTimeSeek (final HttpServletRequest req, final HttpServletResponse resp, final File file, final Validators validators,
+			final String timeSeekHeader, final BandwidthScheduler.Stream stream, final boolean sendBody) throws IOException {
+		final TimeSeekRange seek = TimeSeekRange.parse(timeSeekHeader);
+		if (seek == null) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return 0;
+		}
+		final SeekIndex index = this.seekIndexStore.get(file);
+		if (index == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE);
+			return 0;
+		}
+		return this.fileStreamer.serveTimeSeek(req, resp, file, validators, index, seek, stream, sendBody);
+	}
+
+	/**
+	 * Playback bitrate from duration and size, 0 if duration is not known.
+	 */
+	private long requiredBytesPerSecond (final String id, final File file) {
+		long durationMillis = 0;
+		try {
+			durationMillis = this.fileLocator.idToDurationMillis(id);
+		}
+		catch (final IOException e) {
+			LOG.info("Failed to find duration for '" + id + "': " + e.getMessage());
+		}
+		if (durationMillis <= 0) {
+			final SeekIndex index = this.seekIndexStore.peek(file);
+			if (index != null) durationMillis = index.getDurationMillis();
+		}
+		if (durationMillis <= 0) return 0;
+		return file.length() * 1000L / durationMillis;
+	}
+
+	private static void notModified (final HttpServletResponse resp, final Validators validators) {
+		resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		validators.addHeaders(resp);
+	}
+
+	/**
+	 * Validators from the locator are cached, so check they still describe the file.
+	 */
+	private Validators findValidators (final String id, final File file) {
+		try {
+			final Validators v = this.fileLocator.idToValidators(id);
+			if (v != null && v.isValidFor(file)) return v;
+		}
+		catch (final IOException e) {
+			LOG.info("Failed to find validators for '" + id + "': " + e.getMessage());
+		}
+		return Validators.forFile(file);
+	}
+
+	/**
+	 * Uses the raw request URI as the path in context has already been partly decoded.
+	 */
+	static String idFromUri (final String rUri) {
+		if (rUri == null || rUri.endsWith(".gz")) return null;
+		return rUri.startsWith("/") ? rUri.substring(1) : rUri;
+	}
+
+	/**
+	 * Returns null if not found.
+	 */
+	private File findFile (final String id) {
+		if (id == null) return null;
+		try {
+			final File file = this.fileLocator.idToFile(id);
+			if (file != null) {
+				if (file.isFile()) return file;
+				LOG.info("File not found: {}", file.getAbsolutePath());
+			}
+			else {
+				LOG.info("Resource not found: {}", id);
+			}
+		}
+		catch (final IllegalArgumentException e) {
+			LOG.info("Failed to map resource '" + id + "': " + e.getMessage());
+		}
+		catch (final IOException e) {
+			LOG.info("Failed to serve resource '" + id + "': " + e.getMessage());
+		}
+		return null;
+	}
+
+	private static final long NANO_ORIGIN = System.nanoTime();
+
+	protected static long now () {
+		return System.nanoTime() - NANO_ORIGIN;
+	}
+
+}
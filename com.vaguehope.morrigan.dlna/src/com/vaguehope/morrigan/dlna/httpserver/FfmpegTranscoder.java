@@ -0,0 +1,27 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FfmpegTranscoder implements Transcoder {
+
+	private static final String FFMPEG = "ffmpeg";
+
+	@Override
+	public Process start (final File source, final TranscodeProfile profile) throws IOException {
+		final List<String> cmd = new ArrayList<String>();
+		cmd.add(FFMPEG);
+		cmd.add("-hide_banner");
+		cmd.add("-nostdin");
+		cmd.add("-loglevel");
+		cmd.add("error");
+		cmd.add("-i");
+		cmd.add(source.getAbsolutePath());
+		cmd.addAll(profile.getFfmpegArgs());
+		cmd.add("-"); // stdout.
+		return new ProcessBuilder(cmd).start();
+	}
+
+}
@@ -8,4 +8,10 @@ public interface FileLocator {
 	// Returns null for not found.
 	File idToFile(String id) throws IOException;
 
+	// Returns null if unknown, in which case validators are derived from the file alone.
+	Validators idToValidators(String id) throws IOException;
+
+	// Returns 0 if unknown or not a timed media file.
+	long idToDurationMillis(String id) throws IOException;
+
 }
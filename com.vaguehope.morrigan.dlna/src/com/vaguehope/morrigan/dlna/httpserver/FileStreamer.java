@@ -0,0 +1,317 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+
+import com.vaguehope.morrigan.dlna.MediaFormat;
+import com.vaguehope.morrigan.dlna.util.Quietly;
+
+/**
+ * Serves whole files, byte ranges and DLNA time seeks of files straight from a FileChannel.
+ * Where the connection allows the range is memory mapped and handed to the StreamPump
+ * a slice at a time, as direct buffers so the connector writes them to the socket
+ * without copying through the heap, and no thread waits on slow clients.
+ * Otherwise bytes are copied via a per-thread buffer.
+ * Either way each chunk asks the stream's pacing, so a stream is paced from the moment another competes with it.
+ */
+public class FileStreamer {
+
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+	private static final String CRLF = "\r\n";
+
+	private final SharedSegmentCache sharedSegments;
+	private final StreamPump streamPump;
+
+	private static final ThreadLocal<ByteBuffer> COPY_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue () {
+			return ByteBuffer.allocate(COPY_BUFFER_BYTES);
+		}
+	};
+
+	public FileStreamer (final SharedSegmentCache sharedSegments, final StreamPump streamPump) {
+		this.sharedSegments = sharedSegments;
+		this.streamPump = streamPump;
+	}
+
+	/**
+	 * If sendBody is false only headers are written, e.g. for HEAD.
+	 * Returns the number of body bytes written.
+	 */
+	public long serve (final HttpServletRequest req, final HttpServletResponse resp, final File file,
+			final Validators validators, final BandwidthScheduler.Stream stream, final boolean sendBody) throws IOException {
+		final long totalLength = file.length();
+		final String contentType = contentTypeOf(file);
+
+		resp.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		validators.addHeaders(resp);
+
+		final List<ByteRange> ranges = validators.isIfRangeSatisfied(req)
+				? ByteRange.parse(req.getHeader(HttpHeaders.RANGE), totalLength)
+				: null;
+		if (ranges == null) {
+			resp.setStatus(HttpServletResponse.SC_OK);
+			resp.setContentType(contentType);
+			setContentLength(resp, totalLength);
+			if (!sendBody) return 0;
+			return send(req, resp, file, 0, totalLength, stream);
+		}
+
+		if (ranges.isEmpty()) {
+			resp.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + totalLength);
+			resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return 0;
+		}
+
+		if (ranges.size() == 1) {
+			final ByteRange range = ranges.get(0);
+			resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			resp.setContentType(contentType);
+			resp.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(totalLength));
+			setContentLength(resp, range.length());
+			if (!sendBody) return 0;
+			return send(req, resp, file, range.getFirst(), range.length(), stream);
+		}
+
+		return sendMultipart(resp, file, contentType, totalLength, ranges, stream, sendBody);
+	}
+
+	/**
+	 * Starts at the seek point at or before the requested time and, if an end is requested,
+	 * stops before the first seek point at or after it.
+	 * Returns the number of body bytes written.
+	 */
+	public long serveTimeSeek (final HttpServletRequest req, final HttpServletResponse resp, final File file, final Validators validators,
+			final SeekIndex index, final TimeSeekRange seek, final BandwidthScheduler.Stream stream, final boolean sendBody) throws IOException {
+		final long totalLength = file.length();
+		validators.addHeaders(resp);
+
+		if (totalLength < 1 || (index.getDurationMillis() > 0 && seek.getStartMillis() >= index.getDurationMillis())) {
+			resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return 0;
+		}
+
+		final int startPoint = index.floor(seek.getStartMillis());
+		final long first = Math.min(index.getOffset(startPoint), totalLength - 1);
+		long last = totalLength - 1;
+		long endMillis = index.getDurationMillis();
+		if (seek.hasEnd()) {
+			final int endPoint = index.ceiling(seek.getEndMillis());
+			if (endPoint >= 0 && index.getOffset(endPoint) > first && index.getOffset(endPoint) <= totalLength) {
+				last = index.getOffset(endPoint) - 1;
+				endMillis = index.getTimeMillis(endPoint);
+			}
+		}
+		final ByteRange range = new ByteRange(first, last);
+
+		resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		resp.setContentType(contentTypeOf(file));
+		resp.setHeader(TimeSeekRange.HEADER, TimeSeekRange.toResponseHeader(
+				index.getTimeMillis(startPoint), endMillis, index.getDurationMillis(), range, totalLength));
+		resp.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(totalLength));
+		setContentLength(resp, range.length());
+		if (!sendBody) return 0;
+		return send(req, resp, file, range.getFirst(), range.length(), stream);
+	}
+
+	private static long sendMultipart (final HttpServletResponse resp, final File file, final String contentType,
+			final long totalLength, final List<ByteRange> ranges, final BandwidthScheduler.Stream stream, final boolean sendBody) throws IOException {
+		final String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(file.hashCode());
+
+		final List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+		long contentLength = 0;
+		for (final ByteRange range : ranges) {
+			final byte[] partHeader = ascii((partHeaders.size() > 0 ? CRLF : "")
+					+ "--" + boundary + CRLF
+					+ HttpHeaders.CONTENT_TYPE + ": " + contentType + CRLF
+					+ HttpHeaders.CONTENT_RANGE + ": " + range.toContentRange(totalLength) + CRLF
+					+ CRLF);
+			partHeaders.add(partHeader);
+			contentLength += partHeader.length + range.length();
+		}
+		final byte[] closing = ascii(CRLF + "--" + boundary + "--" + CRLF);
+		contentLength += closing.length;
+
+		resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		resp.setContentType("multipart/byteranges; boundary=" + boundary);
+		setContentLength(resp, contentLength);
+		if (!sendBody) return 0;
+
+		long bodyBytes = 0;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel fc = raf.getChannel();
+			final OutputStream out = resp.getOutputStream();
+			for (int i = 0; i < ranges.size(); i++) {
+				final ByteRange range = ranges.get(i);
+				out.write(partHeaders.get(i));
+				copy(fc, range.getFirst(), range.length(), out, stream);
+				bodyBytes += range.length();
+			}
+			out.write(closing);
+		}
+		finally {
+			Quietly.close(raf);
+		}
+		return bodyBytes;
+	}
+
+	/**
+	 * If the connection allows, the stream is pumped, so it never blocks a thread and is not finished until the client has it all.
+	 * Pumped ranges are still zero-copy, each chunk is a slice of the mapped file.
+	 * Otherwise the stream is copied in chunks and flushed before returning, so the caller does not release it while Jetty is still writing.
+	 * Streams of a file something else is also streaming read through the shared segments,
+	 * and a pumped stream that was reading the mapping switches to them as soon as another stream of its file opens.
+	 * Returns the number of body bytes written, or to be written by the pump.
+	 */
+	private long send (final HttpServletRequest req, final HttpServletResponse resp, final File file, final long first, final long length,
+			final BandwidthScheduler.Stream stream) throws IOException {
+		final boolean pump = length > 0 && this.streamPump.canPump();
+		final SharedSegmentCache.Reader reader = this.sharedSegments.open(file);
+		boolean handedOver = false;
+		try {
+			final boolean mappable = length > 0 && length <= Integer.MAX_VALUE;
+			if (reader.isShared() || (pump && !mappable)) {
+				if (pump) {
+					handedOver = true;
+					this.streamPump.begin(req, new Transfer(new SegmentSource(reader), first, length, stream));
+				}
+				else {
+					final OutputStream out = resp.getOutputStream();
+					reader.write(first, length, out, stream);
+					out.flush();
+				}
+				return length;
+			}
+
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			boolean rafHandedOver = false;
+			try {
+				final FileChannel fc = raf.getChannel();
+				if (pump && mappable) {
+					handedOver = true;
+					rafHandedOver = true;
+					this.streamPump.begin(req, new Transfer(new MappedSource(raf, fc.map(MapMode.READ_ONLY, first, length), first, reader), first, length, stream));
+				}
+				else {
+					final OutputStream out = resp.getOutputStream();
+					copy(fc, first, length, out, stream);
+					out.flush();
+				}
+				return length;
+			}
+			finally {
+				if (!rafHandedOver) Quietly.close(raf);
+			}
+		}
+		finally {
+			if (!handedOver) reader.close();
+		}
+	}
+
+	private static void copy (final FileChannel fc, final long first, final long length, final OutputStream out,
+			final BandwidthScheduler.Stream stream) throws IOException {
+		final ByteBuffer buffer = COPY_BUFFER.get();
+		long position = first;
+		long remaining = length;
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+			final int n = fc.read(buffer, position);
+			if (n < 0) throw new IOException("File truncated while being served.");
+			stream.acquire(n);
+			out.write(buffer.array(), 0, n);
+			position += n;
+			remaining -= n;
+		}
+	}
+
+	static class SegmentSource implements Transfer.Source {
+
+		private final SharedSegmentCache.Reader reader;
+
+		SegmentSource (final SharedSegmentCache.Reader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public ByteBuffer read (final long position, final int maxLength, final long last) throws IOException {
+			return this.reader.read(position, maxLength, last);
+		}
+
+		@Override
+		public void close () {
+			this.reader.close();
+		}
+
+	}
+
+	/**
+	 * Reads the mapping until the reader is shared, then the shared segments.
+	 */
+	static class MappedSource implements Transfer.Source {
+
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer mapped;
+		private final long mappedFrom;
+		private final SharedSegmentCache.Reader reader;
+
+		MappedSource (final RandomAccessFile raf, final MappedByteBuffer mapped, final long mappedFrom, final SharedSegmentCache.Reader reader) {
+			this.raf = raf;
+			this.mapped = mapped;
+			this.mappedFrom = mappedFrom;
+			this.reader = reader;
+		}
+
+		@Override
+		public ByteBuffer read (final long position, final int maxLength, final long last) throws IOException {
+			if (this.reader.isShared()) return this.reader.read(position, maxLength, last);
+			final ByteBuffer view = this.mapped.duplicate();
+			final int start = (int) (position - this.mappedFrom);
+			view.position(start);
+			view.limit((int) Math.min(start + (long) maxLength, last - this.mappedFrom + 1));
+			return view;
+		}
+
+		@Override
+		public void close () {
+			Quietly.close(this.raf);
+			this.reader.close();
+		}
+
+	}
+
+	private static void setContentLength (final HttpServletResponse resp, final long length) {
+		resp.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(length));
+	}
+
+	static String contentTypeOf (final File file) {
+		final MediaFormat format = MediaFormat.identify(file);
+		return format != null ? format.getMime() : DEFAULT_CONTENT_TYPE;
+	}
+
+	private static byte[] ascii (final String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		}
+		catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("JVM should always know about US-ASCII.", e);
+		}
+	}
+
+}
@@ -1,32 +1,60 @@
 package com.vaguehope.morrigan.dlna.httpserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
-import org.eclipse.jetty.server.Handler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
-import org.eclipse.jetty.servlet.ServletContextHandler;
-import org.eclipse.jetty.servlet.ServletHolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vaguehope.morrigan.util.DaemonThreadFactory;
+
 public class MediaServer {
 
 	private static final int HTTP_START_PORT = 29085;
+	/**
+	 * How much of the next queued track to read before it is requested.
+	 */
+	private static final long PREFETCH_BYTES = 8L * 1024 * 1024;
+	private static final int READ_AHEAD_THREADS = 2;
+	/**
+	 * Read ahead is an optimisation, so if the disks can not keep up further requests are dropped.
+	 */
+	private static final int READ_AHEAD_QUEUE_LENGTH = 32;
 	private static final Logger LOG = LoggerFactory.getLogger(MediaServer.class);
 
+	private final AccessLog accessLog = new AccessLog();
+	private final ExecutorService readAheadExecutor = new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS,
+			0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(READ_AHEAD_QUEUE_LENGTH),
+			new DaemonThreadFactory("dlna-readahead"));
+	private final SharedSegmentCache sharedSegments = new SharedSegmentCache(this.readAheadExecutor);
+	private final StreamPump streamPump;
+	private final ContentHandler contentHandler;
 	private final Server server;
 	private final String bindAddress;
+	private volatile String uriPrefix;
 
-	public MediaServer (final FileLocator fileLocator, final InetAddress bindAddress) {
+	public MediaServer (final FileLocator fileLocator, final SeekIndexStore seekIndexStore,
+			final BandwidthScheduler bandwidthScheduler, final StreamPump streamPump, final TranscodeCache transcodeCache,
+			final InetAddress bindAddress) {
 		if (bindAddress == null) throw new IllegalArgumentException("bindAddress must not be null.");
 		this.bindAddress = bindAddress.getHostAddress();
-		this.server = makeContentServer(fileLocator, this.bindAddress);
+		this.streamPump = streamPump;
+		this.contentHandler = new ContentHandler(fileLocator, seekIndexStore, this.accessLog, bandwidthScheduler, this.sharedSegments,
+				streamPump, new FfmpegTranscoder(), transcodeCache);
+		this.server = makeContentServer(this.contentHandler, this.bindAddress);
 	}
 
 	public void start () {
+		this.accessLog.start();
+		this.streamPump.start();
 		try {
 			IOException bindFail = null;
 			for (int i = 0; i < 10; i++) {
@@ -46,6 +74,7 @@ public class MediaServer {
 				LOG.error("Abandonded search for port to bind to.");
 				throw bindFail;
 			}
+			this.uriPrefix = getExternalHttpUrl() + "/";
 			LOG.info("External URL: {}", getExternalHttpUrl());
 		}
 		catch (Exception e) {
@@ -60,9 +89,34 @@ public class MediaServer {
 		catch (Exception e) {
 			throw new IllegalStateException(e);
 		}
+		finally {
+			this.readAheadExecutor.shutdownNow();
+			this.streamPump.stop();
+			this.accessLog.stop();
+		}
+	}
+
+	/**
+	 * Starts reading the beginning of a file that is likely to be requested soon, e.g. the next track in a queue.
+	 * Returns immediately.
+	 */
+	public void prefetch (final File file) {
+		if (file == null || !file.isFile()) return;
+		this.sharedSegments.prefetch(file, PREFETCH_BYTES);
+	}
+
+	/**
+	 * Starts transcoding a file that is likely to be requested soon, so it can be served from the cache.
+	 * Returns immediately.
+	 */
+	public void preTranscode (final File file, final TranscodeProfile profile) {
+		if (file == null || !file.isFile()) return;
+		this.contentHandler.preTranscode(file, profile);
 	}
 
 	public String uriForId (final String id) {
+		final String prefix = this.uriPrefix;
+		if (prefix != null) return prefix + id;
 		return String.format("%s/%s", getExternalHttpUrl(), id);
 	}
 
@@ -70,16 +124,9 @@ public class MediaServer {
 		return "http://" + this.bindAddress + ":" + this.server.getConnectors()[0].getLocalPort();
 	}
 
-	private static Server makeContentServer (final FileLocator fileLocator, final String bindAddress) {
-		final ServletContextHandler servletHandler = new ServletContextHandler();
-		servletHandler.setContextPath("/");
-		servletHandler.addServlet(new ServletHolder(new ContentServlet(fileLocator)), "/");
-
-		final HandlerList handler = new HandlerList();
-		handler.setHandlers(new Handler[] { servletHandler });
-
+	private static Server makeContentServer (final ContentHandler contentHandler, final String bindAddress) {
 		final Server server = new Server();
-		server.setHandler(handler);
+		server.setHandler(contentHandler);
 		server.addConnector(createHttpConnector(bindAddress, 0));
 		return server;
 	}
@@ -0,0 +1,144 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sorted time to byte offset points for one file.
+ * Each point is the start of something a decoder can pick up from,
+ * e.g. an MP3 frame or an MPEG pack, so seeking is a search plus an offset read.
+ */
+public final class SeekIndex {
+
+	private static final int MAGIC = 0x534b4931; // SKI1
+
+	private final long durationMillis;
+	private final long[] times;
+	private final long[] offsets;
+
+	SeekIndex (final long durationMillis, final long[] times, final long[] offsets) {
+		if (times.length != offsets.length || times.length < 1) throw new IllegalArgumentException("Invalid index.");
+		this.durationMillis = durationMillis;
+		this.times = times;
+		this.offsets = offsets;
+	}
+
+	public long getDurationMillis () {
+		return this.durationMillis;
+	}
+
+	public int size () {
+		return this.times.length;
+	}
+
+	public long getTimeMillis (final int i) {
+		return this.times[i];
+	}
+
+	public long getOffset (final int i) {
+		return this.offsets[i];
+	}
+
+	/**
+	 * Index of the last point at or before millis.
+	 */
+	public int floor (final long millis) {
+		final int i = Arrays.binarySearch(this.times, millis);
+		if (i >= 0) return i;
+		return Math.max(0, -i - 2);
+	}
+
+	/**
+	 * Index of the first point at or after millis, or -1 if millis is after the last point.
+	 */
+	public int ceiling (final long millis) {
+		final int i = Arrays.binarySearch(this.times, millis);
+		if (i >= 0) return i;
+		final int c = -i - 1;
+		return c < this.times.length ? c : -1;
+	}
+
+	/**
+	 * Times are written as deltas to keep files small.
+	 */
+	void write (final DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeLong(this.durationMillis);
+		out.writeInt(this.times.length);
+		long prevTime = 0;
+		long prevOffset = 0;
+		for (int i = 0; i < this.times.length; i++) {
+			out.writeInt((int) (this.times[i] - prevTime));
+			out.writeLong(this.offsets[i] - prevOffset);
+			prevTime = this.times[i];
+			prevOffset = this.offsets[i];
+		}
+	}
+
+	static SeekIndex read (final DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("Not a seek index.");
+		final long duration = in.readLong();
+		final int count = in.readInt();
+		if (count < 1 || count > Builder.MAX_POINTS) throw new IOException("Invalid point count: " + count);
+		final long[] times = new long[count];
+		final long[] offsets = new long[count];
+		long prevTime = 0;
+		long prevOffset = 0;
+		for (int i = 0; i < count; i++) {
+			times[i] = prevTime + in.readInt();
+			offsets[i] = prevOffset + in.readLong();
+			prevTime = times[i];
+			prevOffset = offsets[i];
+		}
+		return new SeekIndex(duration, times, offsets);
+	}
+
+	@Override
+	public String toString () {
+		return String.format("SeekIndex{%s points, %sms}", this.times.length, this.durationMillis);
+	}
+
+	/**
+	 * Drops points that go backwards or that are closer than minIntervalMillis to the previous point.
+	 */
+	static class Builder {
+
+		static final int MAX_POINTS = 1000000;
+
+		private final long minIntervalMillis;
+		private long[] times = new long[256];
+		private long[] offsets = new long[256];
+		private int count = 0;
+
+		Builder (final long minIntervalMillis) {
+			this.minIntervalMillis = minIntervalMillis;
+		}
+
+		void add (final long timeMillis, final long offset) {
+			if (this.count > 0) {
+				if (timeMillis - this.times[this.count - 1] < this.minIntervalMillis) return;
+				if (offset <= this.offsets[this.count - 1]) return;
+			}
+			if (this.count >= MAX_POINTS) return;
+			if (this.count == this.times.length) {
+				this.times = Arrays.copyOf(this.times, this.count * 2);
+				this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+			}
+			this.times[this.count] = timeMillis;
+			this.offsets[this.count] = offset;
+			this.count += 1;
+		}
+
+		/**
+		 * Returns null if no points were added.
+		 */
+		SeekIndex build (final long durationMillis) {
+			if (this.count < 1) return null;
+			return new SeekIndex(durationMillis, Arrays.copyOf(this.times, this.count), Arrays.copyOf(this.offsets, this.count));
+		}
+
+	}
+
+}
@@ -0,0 +1,191 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.MediaFormat;
+import com.vaguehope.morrigan.dlna.util.Cache;
+import com.vaguehope.morrigan.dlna.util.HashHelper;
+import com.vaguehope.morrigan.dlna.util.Quietly;
+
+/**
+ * Seek indexes are built on first use then kept on disk keyed by
+ * path, mtime and size, so a changed file gets a new index.
+ * Recently used indexes are also kept in memory, as are files that could not be indexed.
+ * Index files are touched when read, and those unused for a while are deleted on start,
+ * which is what clears out indexes of files since changed or removed.
+ */
+public class SeekIndexStore {
+
+	private static final int MEMORY_CACHE_SIZE = 50;
+	private static final int MAX_FAILED = 500;
+	/**
+	 * In case the failure was not the file's fault, e.g. it was still being written.
+	 */
+	private static final int FAILED_RETRY_MINUTES = 60;
+	private static final long MAX_UNUSED_MILLIS = TimeUnit.DAYS.toMillis(30);
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final Logger LOG = LoggerFactory.getLogger(SeekIndexStore.class);
+
+	private final File cacheDir;
+	private final Cache<String, SeekIndex> memory = new Cache<String, SeekIndex>(MEMORY_CACHE_SIZE);
+	private final Cache<String, Boolean> failed = new Cache<String, Boolean>(10, MAX_FAILED);
+	private final ConcurrentMap<String, Object> inProgress = new ConcurrentHashMap<String, Object>();
+
+	public SeekIndexStore (final File cacheDir) {
+		this.cacheDir = cacheDir;
+		deleteUnused();
+	}
+
+	public boolean isSupported (final File file) {
+		return SeekIndexer.isSupported(MediaFormat.identify(file));
+	}
+
+	/**
+	 * Only returns an index already in memory, never reads or builds one.
+	 */
+	public SeekIndex peek (final File file) {
+		if (!isSupported(file)) return null;
+		return this.memory.getEvenIfExpired(keyFor(file));
+	}
+
+	/**
+	 * Returns null if the file format is not supported or it could not be indexed.
+	 */
+	public SeekIndex get (final File file) {
+		if (!isSupported(file)) return null;
+		final String key = keyFor(file);
+
+		final SeekIndex cached = this.memory.getEvenIfExpired(key);
+		if (cached != null) return cached;
+		if (isKnownFailure(key)) return null;
+
+		final Object lock = new Object();
+		final Object existingLock = this.inProgress.putIfAbsent(key, lock);
+		synchronized (existingLock != null ? existingLock : lock) {
+			try {
+				final SeekIndex again = this.memory.getEvenIfExpired(key);
+				if (again != null) return again;
+				if (isKnownFailure(key)) return null;
+
+				final File indexFile = new File(this.cacheDir, key + INDEX_SUFFIX);
+				SeekIndex index = readIndex(indexFile);
+				if (index == null) {
+					index = buildIndex(file);
+					if (index != null) writeIndex(index, indexFile);
+				}
+				if (index != null) {
+					this.memory.put(key, index);
+				}
+				else {
+					this.failed.put(key, Boolean.TRUE);
+				}
+				return index;
+			}
+			finally {
+				this.inProgress.remove(key, lock);
+			}
+		}
+	}
+
+	private boolean isKnownFailure (final String key) {
+		return this.failed.getFresh(key, FAILED_RETRY_MINUTES, TimeUnit.MINUTES) != null;
+	}
+
+	private void deleteUnused () {
+		final long cutoff = System.currentTimeMillis() - MAX_UNUSED_MILLIS;
+		final File[] files = this.cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept (final File f) {
+				if (!f.isFile()) return false;
+				if (f.getName().endsWith(TMP_SUFFIX)) return true; // Left by a crash, nothing writes them before start.
+				return f.getName().endsWith(INDEX_SUFFIX) && f.lastModified() < cutoff;
+			}
+		});
+		if (files == null) return;
+		for (final File f : files) {
+			if (!f.delete()) LOG.warn("Failed to delete: {}", f.getAbsolutePath());
+		}
+		if (files.length > 0) LOG.info("Deleted {} unused seek index files.", files.length);
+	}
+
+	private static String keyFor (final File file) {
+		return HashHelper.sha1(String.format("%s|%s|%s", file.getAbsolutePath(), file.lastModified(), file.length()));
+	}
+
+	private static SeekIndex buildIndex (final File file) {
+		final long startTime = System.nanoTime();
+		try {
+			final SeekIndex index = SeekIndexer.build(file);
+			if (index != null) {
+				LOG.info("Indexed {} in {}ms: {}", index, (System.nanoTime() - startTime) / 1000000L, file.getAbsolutePath());
+			}
+			else {
+				LOG.info("Not indexable in {}ms: {}", (System.nanoTime() - startTime) / 1000000L, file.getAbsolutePath());
+			}
+			return index;
+		}
+		catch (final IOException e) {
+			LOG.info("Failed to index {}: {}", file.getAbsolutePath(), e.toString());
+			return null;
+		}
+	}
+
+	private static SeekIndex readIndex (final File indexFile) {
+		if (!indexFile.exists()) return null;
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				final SeekIndex index = SeekIndex.read(in);
+				indexFile.setLastModified(System.currentTimeMillis());
+				return index;
+			}
+			finally {
+				Quietly.close(in);
+			}
+		}
+		catch (final IOException e) {
+			LOG.info("Discarding unreadable {}: {}", indexFile.getAbsolutePath(), e.toString());
+			indexFile.delete();
+			return null;
+		}
+	}
+
+	private void writeIndex (final SeekIndex index, final File indexFile) {
+		try {
+			if (!this.cacheDir.exists() && !this.cacheDir.mkdirs()) throw new IOException("Failed to create: " + this.cacheDir.getAbsolutePath());
+			final File tmp = new File(indexFile.getAbsolutePath() + TMP_SUFFIX);
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				index.write(out);
+				out.flush();
+			}
+			finally {
+				Quietly.close(out);
+			}
+			if (!tmp.renameTo(indexFile)) {
+				tmp.delete();
+				throw new IOException("Failed to rename " + tmp.getAbsolutePath() + " to " + indexFile.getAbsolutePath());
+			}
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to write {}: {}", indexFile.getAbsolutePath(), e.toString());
+		}
+	}
+
+}
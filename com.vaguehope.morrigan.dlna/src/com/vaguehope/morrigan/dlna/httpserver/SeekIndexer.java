@@ -0,0 +1,376 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import com.vaguehope.morrigan.dlna.MediaFormat;
+import com.vaguehope.morrigan.dlna.util.Quietly;
+
+/**
+ * Builds SeekIndex for the formats where a byte offset found from a time
+ * is something a renderer can start decoding from.
+ * MP3 is indexed by walking frame headers, FLAC from its SEEKTABLE,
+ * and MPEG program streams by sampling pack header clock references.
+ */
+public final class SeekIndexer {
+
+	private static final long MP3_INTERVAL_MILLIS = 1000L;
+	private static final long FLAC_INTERVAL_MILLIS = 1000L;
+	private static final long FLAC_ESTIMATE_INTERVAL_MILLIS = 10000L;
+	private static final int MPEG_MAX_PROBES = 4000;
+	private static final long MPEG_MIN_PROBE_STEP = 256 * 1024;
+	private static final int MPEG_PROBE_WINDOW = 64 * 1024;
+	private static final int READ_BUFFER = 64 * 1024;
+
+	private SeekIndexer () {
+		throw new AssertionError();
+	}
+
+	public static boolean isSupported (final MediaFormat format) {
+		if (format == null) return false;
+		switch (format) {
+			case MP3:
+			case MPGA:
+			case FLAC:
+			case MPEG:
+			case MPG:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns null if format not supported or no seek points found.
+	 */
+	public static SeekIndex build (final File file) throws IOException {
+		final MediaFormat format = MediaFormat.identify(file);
+		if (!isSupported(format)) return null;
+		switch (format) {
+			case MP3:
+			case MPGA:
+				return indexMp3(file);
+			case FLAC:
+				return indexFlac(file);
+			case MPEG:
+			case MPG:
+				return indexMpegPs(file);
+			default:
+				return null;
+		}
+	}
+
+//	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+//	MP3.
+
+	private static final int[][] MP3_BITRATES_KBPS = new int[][] {
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 }, // V1 L1
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 }, // V1 L2
+		{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }, // V1 L3
+		{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 }, // V2 L1
+		{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }, // V2 L2 and L3
+	};
+
+	private static final int[][] MP3_SAMPLE_RATES = new int[][] {
+		{ 44100, 48000, 32000 }, // V1
+		{ 22050, 24000, 16000 }, // V2
+		{ 11025, 12000, 8000 }, // V2.5
+	};
+
+	private static SeekIndex indexMp3 (final File file) throws IOException {
+		final long length = file.length();
+		final InputStream in = new BufferedInputStream(new FileInputStream(file), READ_BUFFER);
+		try {
+			long pos = skipId3v2(in);
+			final SeekIndex.Builder builder = new SeekIndex.Builder(MP3_INTERVAL_MILLIS);
+			builder.add(0, 0);
+
+			final byte[] header = new byte[4];
+			final Mp3Frame frame = new Mp3Frame();
+			int sampleRate = 0;
+			long samples = 0;
+			while (pos + header.length <= length) {
+				in.mark(header.length);
+				readFully(in, header);
+				if (frame.parse(header) && (sampleRate == 0 || frame.sampleRate == sampleRate) && pos + frame.length <= length) {
+					if (sampleRate == 0) sampleRate = frame.sampleRate;
+					builder.add(samples * 1000L / sampleRate, pos);
+					samples += frame.samples;
+					skipFully(in, frame.length - header.length);
+					pos += frame.length;
+				}
+				else {
+					in.reset();
+					skipFully(in, 1);
+					pos += 1;
+				}
+			}
+			if (sampleRate == 0) return null;
+			return builder.build(samples * 1000L / sampleRate);
+		}
+		finally {
+			Quietly.close(in);
+		}
+	}
+
+	/**
+	 * Returns the offset of the first byte after the tag, or 0 if there is no tag.
+	 */
+	private static long skipId3v2 (final InputStream in) throws IOException {
+		final byte[] h = new byte[10];
+		in.mark(h.length);
+		if (in.read(h) < h.length || h[0] != 'I' || h[1] != 'D' || h[2] != '3') {
+			in.reset();
+			return 0;
+		}
+		final long size = ((h[6] & 0x7f) << 21) | ((h[7] & 0x7f) << 14) | ((h[8] & 0x7f) << 7) | (h[9] & 0x7f);
+		final long footer = (h[5] & 0x10) != 0 ? 10 : 0;
+		final long skip = size + footer;
+		skipFully(in, skip);
+		return h.length + skip;
+	}
+
+	private static final class Mp3Frame {
+
+		int length;
+		int samples;
+		int sampleRate;
+
+		Mp3Frame () {}
+
+		/**
+		 * Returns false if not a valid frame header.
+		 */
+		boolean parse (final byte[] h) {
+			if ((h[0] & 0xff) != 0xff || (h[1] & 0xe0) != 0xe0) return false;
+			final int version = (h[1] >> 3) & 0x03; // 0 = V2.5, 1 = reserved, 2 = V2, 3 = V1.
+			final int layer = (h[1] >> 1) & 0x03; // 1 = L3, 2 = L2, 3 = L1.
+			final int bitrateIndex = (h[2] >> 4) & 0x0f;
+			final int sampleRateIndex = (h[2] >> 2) & 0x03;
+			final int padding = (h[2] >> 1) & 0x01;
+			if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) return false;
+
+			final boolean v1 = version == 3;
+			final int bitrateTable = v1 ? 3 - layer : (layer == 3 ? 3 : 4);
+			final int bitrate = MP3_BITRATES_KBPS[bitrateTable][bitrateIndex] * 1000;
+			this.sampleRate = MP3_SAMPLE_RATES[v1 ? 0 : (version == 2 ? 1 : 2)][sampleRateIndex];
+
+			if (layer == 3) {
+				this.samples = 384;
+				this.length = (12 * bitrate / this.sampleRate + padding) * 4;
+			}
+			else if (layer == 2 || v1) {
+				this.samples = 1152;
+				this.length = 144 * bitrate / this.sampleRate + padding;
+			}
+			else {
+				this.samples = 576;
+				this.length = 72 * bitrate / this.sampleRate + padding;
+			}
+			return this.length > 4;
+		}
+
+	}
+
+//	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+//	FLAC.
+
+	private static final int FLAC_STREAMINFO = 0;
+	private static final int FLAC_SEEKTABLE = 3;
+	private static final long FLAC_PLACEHOLDER_POINT = -1L;
+
+	/**
+	 * Without a SEEKTABLE offsets are estimated from the average bitrate.
+	 * That still lands close to the right time and decoders resync on the next frame header.
+	 */
+	private static SeekIndex indexFlac (final File file) throws IOException {
+		final long length = file.length();
+		final InputStream in = new BufferedInputStream(new FileInputStream(file), READ_BUFFER);
+		try {
+			final byte[] marker = new byte[4];
+			readFully(in, marker);
+			if (marker[0] != 'f' || marker[1] != 'L' || marker[2] != 'a' || marker[3] != 'C') return null;
+			long pos = marker.length;
+
+			int sampleRate = 0;
+			long totalSamples = 0;
+			byte[] seekTable = null;
+			boolean last = false;
+			while (!last) {
+				final byte[] bh = new byte[4];
+				readFully(in, bh);
+				last = (bh[0] & 0x80) != 0;
+				final int type = bh[0] & 0x7f;
+				final int blockLength = ((bh[1] & 0xff) << 16) | ((bh[2] & 0xff) << 8) | (bh[3] & 0xff);
+				pos += bh.length + blockLength;
+				if (type == FLAC_STREAMINFO || type == FLAC_SEEKTABLE) {
+					final byte[] block = new byte[blockLength];
+					readFully(in, block);
+					if (type == FLAC_STREAMINFO && blockLength >= 18) {
+						sampleRate = ((block[10] & 0xff) << 12) | ((block[11] & 0xff) << 4) | ((block[12] & 0xf0) >> 4);
+						totalSamples = ((block[13] & 0x0fL) << 32) | ((block[14] & 0xffL) << 24)
+								| ((block[15] & 0xffL) << 16) | ((block[16] & 0xffL) << 8) | (block[17] & 0xffL);
+					}
+					else if (type == FLAC_SEEKTABLE) {
+						seekTable = block;
+					}
+				}
+				else {
+					skipFully(in, blockLength);
+				}
+			}
+			if (sampleRate < 1) return null;
+
+			final long audioStart = pos;
+			final long durationMillis = totalSamples * 1000L / sampleRate;
+			if (seekTable != null) {
+				final SeekIndex.Builder builder = new SeekIndex.Builder(FLAC_INTERVAL_MILLIS);
+				builder.add(0, 0);
+				for (int i = 0; i + 18 <= seekTable.length; i += 18) {
+					final long sample = readLong(seekTable, i);
+					if (sample == FLAC_PLACEHOLDER_POINT) continue;
+					final long offset = audioStart + readLong(seekTable, i + 8);
+					if (offset >= length) continue;
+					builder.add(sample * 1000L / sampleRate, offset);
+				}
+				return builder.build(durationMillis);
+			}
+
+			if (durationMillis < 1) return null;
+			final SeekIndex.Builder builder = new SeekIndex.Builder(FLAC_ESTIMATE_INTERVAL_MILLIS);
+			builder.add(0, 0);
+			final long audioLength = length - audioStart;
+			for (long t = FLAC_ESTIMATE_INTERVAL_MILLIS; t < durationMillis; t += FLAC_ESTIMATE_INTERVAL_MILLIS) {
+				builder.add(t, audioStart + (long) (audioLength * (t / (double) durationMillis)));
+			}
+			return builder.build(durationMillis);
+		}
+		finally {
+			Quietly.close(in);
+		}
+	}
+
+	private static long readLong (final byte[] b, final int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xffL);
+		}
+		return v;
+	}
+
+//	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+//	MPEG program stream.
+
+	/**
+	 * Reads a small window every few MB rather than the whole file,
+	 * so a long film costs a few thousand small reads.
+	 */
+	private static SeekIndex indexMpegPs (final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final long length = raf.length();
+			final byte[] window = new byte[MPEG_PROBE_WINDOW];
+
+			final long[] first = findPack(raf, 0, window, false);
+			if (first == null) return null;
+			final long firstScr = first[1];
+
+			final SeekIndex.Builder builder = new SeekIndex.Builder(0);
+			builder.add(0, 0);
+			final long step = Math.max(length / MPEG_MAX_PROBES, MPEG_MIN_PROBE_STEP);
+			long lastTime = 0;
+			for (long probe = first[0] + step; probe < length; probe += step) {
+				final long[] pack = findPack(raf, probe, window, false);
+				if (pack == null) continue;
+				final long time = (pack[1] - firstScr) / 90;
+				builder.add(time, pack[0]);
+				lastTime = Math.max(lastTime, time);
+			}
+
+			final long[] tail = findPack(raf, Math.max(0, length - MPEG_PROBE_WINDOW), window, true);
+			if (tail != null) lastTime = Math.max(lastTime, (tail[1] - firstScr) / 90);
+			return builder.build(lastTime);
+		}
+		finally {
+			Quietly.close(raf);
+		}
+	}
+
+	/**
+	 * Returns {offset, scr} of the first (or last) pack header in the window starting at from, or null if none.
+	 * SCR is in 90 kHz units.
+	 */
+	private static long[] findPack (final RandomAccessFile raf, final long from, final byte[] window, final boolean last) throws IOException {
+		raf.seek(from);
+		int n = 0;
+		while (n < window.length) {
+			final int r = raf.read(window, n, window.length - n);
+			if (r < 0) break;
+			n += r;
+		}
+		if (last) {
+			for (int i = n - 9; i >= 0; i--) {
+				final long scr = scrAt(window, i);
+				if (scr >= 0) return new long[] { from + i, scr };
+			}
+		}
+		else {
+			for (int i = 0; i + 9 <= n; i++) {
+				final long scr = scrAt(window, i);
+				if (scr >= 0) return new long[] { from + i, scr };
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns -1 if there is no pack header at i.
+	 */
+	private static long scrAt (final byte[] w, final int i) {
+		if (w[i] != 0 || w[i + 1] != 0 || w[i + 2] != 1 || (w[i + 3] & 0xff) != 0xba) return -1;
+		final long b0 = w[i + 4] & 0xff;
+		final long b1 = w[i + 5] & 0xff;
+		final long b2 = w[i + 6] & 0xff;
+		final long b3 = w[i + 7] & 0xff;
+		final long b4 = w[i + 8] & 0xff;
+		if ((b0 & 0xc0) == 0x40) { // MPEG-2.
+			return ((b0 & 0x38) << 27) | ((b0 & 0x03) << 28) | (b1 << 20) | ((b2 & 0xf8) << 12)
+					| ((b2 & 0x03) << 13) | (b3 << 5) | (b4 >> 3);
+		}
+		if ((b0 & 0xf0) == 0x20) { // MPEG-1.
+			return ((b0 & 0x0e) << 29) | (b1 << 22) | ((b2 & 0xfe) << 14) | (b3 << 7) | (b4 >> 1);
+		}
+		return -1;
+	}
+
+//	- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+
+	private static void readFully (final InputStream in, final byte[] b) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			final int r = in.read(b, n, b.length - n);
+			if (r < 0) throw new EOFException();
+			n += r;
+		}
+	}
+
+	private static void skipFully (final InputStream in, final long count) throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			final long s = in.skip(remaining);
+			if (s > 0) {
+				remaining -= s;
+			}
+			else {
+				if (in.read() < 0) throw new EOFException();
+				remaining -= 1;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,412 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaguehope.morrigan.dlna.util.Quietly;
+
+/**
+ * Lets concurrent streams of the same file share reads, e.g. several rooms playing one track.
+ * Files are read in fixed size segments; the first stream to need a segment reads it
+ * and any other stream wanting it meanwhile waits for that read rather than starting its own.
+ * Segments are reference counted and only unreferenced ones are evicted, least recently used first,
+ * once the total exceeds the byte limit.
+ * Given an executor, segments ahead of a stream's position are loaded in the background,
+ * and prefetch() can warm the start of a file before anything requests it.
+ */
+public class SharedSegmentCache {
+
+	private static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+	private static final long DEFAULT_MAX_TOTAL_BYTES = 64L * 1024 * 1024;
+	private static final int WRITE_CHUNK_BYTES = 64 * 1024;
+	/**
+	 * Read ahead starts at one segment and doubles for each segment a stream consumes, up to this.
+	 */
+	private static final int MAX_READ_AHEAD_SEGMENTS = 4;
+	/**
+	 * Prefetch may not use more than this fraction of the total, so warming one file can not flush everything else.
+	 */
+	private static final int MAX_PREFETCH_FRACTION = 4;
+
+	private final int segmentBytes;
+	private final long maxTotalBytes;
+	private final Executor readAheadExecutor;
+	private final Map<SegmentKey, Segment> segments = new LinkedHashMap<SegmentKey, Segment>(16, 0.75f, true);
+	private final Map<String, Integer> readers = new HashMap<String, Integer>();
+	private final Object[] lock = new Object[] {};
+	private long totalBytes = 0;
+
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+
+	public SharedSegmentCache (final Executor readAheadExecutor) {
+		this(DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_TOTAL_BYTES, readAheadExecutor);
+	}
+
+	public SharedSegmentCache (final int segmentBytes, final long maxTotalBytes) {
+		this(segmentBytes, maxTotalBytes, null);
+	}
+
+	/**
+	 * @param readAheadExecutor null to disable read ahead and prefetch.
+	 */
+	public SharedSegmentCache (final int segmentBytes, final long maxTotalBytes, final Executor readAheadExecutor) {
+		this.segmentBytes = segmentBytes;
+		this.maxTotalBytes = maxTotalBytes;
+		this.readAheadExecutor = readAheadExecutor;
+	}
+
+	/**
+	 * Caller must close() the returned reader when done.
+	 */
+	public Reader open (final File file) {
+		final String fileKey = keyFor(file);
+		final boolean shared;
+		synchronized (this.lock) {
+			final Integer n = this.readers.get(fileKey);
+			this.readers.put(fileKey, n != null ? n + 1 : 1);
+			shared = n != null || hasSegmentsFor(fileKey);
+		}
+		return new Reader(this, file, fileKey, shared);
+	}
+
+	/**
+	 * Loads up to length bytes from the start of the file in the background,
+	 * e.g. for the next track in a queue, so the first request for it does not wait on the disk.
+	 */
+	public void prefetch (final File file, final long length) {
+		final long capped = Math.min(length, this.maxTotalBytes / MAX_PREFETCH_FRACTION);
+		readAhead(file, keyFor(file), 0, (int) ((capped + this.segmentBytes - 1) / this.segmentBytes));
+	}
+
+	private static String keyFor (final File file) {
+		return String.format("%s|%s|%s", file.getAbsolutePath(), file.lastModified(), file.length());
+	}
+
+	/**
+	 * Must hold lock.
+	 */
+	private boolean hasSegmentsFor (final String fileKey) {
+		for (final SegmentKey k : this.segments.keySet()) {
+			if (k.fileKey.equals(fileKey)) return true;
+		}
+		return false;
+	}
+
+	private boolean hasOtherReaders (final String fileKey) {
+		synchronized (this.lock) {
+			final Integer n = this.readers.get(fileKey);
+			return n != null && n > 1;
+		}
+	}
+
+	void close (final Reader reader) {
+		synchronized (this.lock) {
+			final Integer n = this.readers.get(reader.fileKey);
+			if (n == null || n <= 1) {
+				this.readers.remove(reader.fileKey);
+			}
+			else {
+				this.readers.put(reader.fileKey, n - 1);
+			}
+		}
+	}
+
+	private Segment acquire (final File file, final String fileKey, final long index) throws IOException {
+		final SegmentKey key = new SegmentKey(fileKey, index);
+		final Segment segment;
+		final boolean load;
+		synchronized (this.lock) {
+			final Segment existing = this.segments.get(key);
+			if (existing != null) {
+				existing.refs += 1;
+				segment = existing;
+				load = false;
+			}
+			else {
+				segment = new Segment(key);
+				segment.refs = 1;
+				this.segments.put(key, segment);
+				load = true;
+			}
+		}
+
+		if (load) {
+			fill(file, segment);
+		}
+		else {
+			this.hits.incrementAndGet();
+		}
+
+		try {
+			segment.await();
+		}
+		catch (final IOException e) {
+			release(segment);
+			throw e;
+		}
+		return segment;
+	}
+
+	/**
+	 * Queues loading of segments not already present.
+	 * Each is referenced until loaded so it can not be evicted half way.
+	 */
+	void readAhead (final File file, final String fileKey, final long fromIndex, final int count) {
+		if (this.readAheadExecutor == null || count < 1) return;
+
+		final long fileLength = file.length();
+		final List<Segment> toLoad = new ArrayList<Segment>();
+		synchronized (this.lock) {
+			for (long i = fromIndex; i < fromIndex + count && i * this.segmentBytes < fileLength; i++) {
+				final SegmentKey key = new SegmentKey(fileKey, i);
+				if (this.segments.containsKey(key)) continue;
+				final Segment segment = new Segment(key);
+				segment.refs = 1;
+				this.segments.put(key, segment);
+				toLoad.add(segment);
+			}
+		}
+
+		for (final Segment segment : toLoad) {
+			try {
+				this.readAheadExecutor.execute(new Runnable() {
+					@Override
+					public void run () {
+						try {
+							fill(file, segment);
+						}
+						finally {
+							release(segment);
+						}
+					}
+				});
+			}
+			catch (final RejectedExecutionException e) {
+				segment.failure = new IOException("Read ahead rejected: " + segment.key);
+				finishLoad(segment);
+				release(segment);
+			}
+		}
+	}
+
+	private void fill (final File file, final Segment segment) {
+		this.loads.incrementAndGet();
+		try {
+			segment.load(file, segment.key.index * this.segmentBytes, this.segmentBytes);
+		}
+		catch (final IOException e) {
+			segment.failure = e;
+		}
+		finishLoad(segment);
+	}
+
+	/**
+	 * Failed segments are removed so the next request tries again.
+	 */
+	private void finishLoad (final Segment segment) {
+		synchronized (this.lock) {
+			if (segment.bytes != null) {
+				this.totalBytes += segment.bytes.length;
+			}
+			else if (this.segments.get(segment.key) == segment) {
+				this.segments.remove(segment.key);
+			}
+		}
+		segment.loaded.countDown();
+	}
+
+	private void release (final Segment segment) {
+		synchronized (this.lock) {
+			segment.refs -= 1;
+			evict();
+		}
+	}
+
+	/**
+	 * Must hold lock.
+	 */
+	private void evict () {
+		final Iterator<Segment> ittr = this.segments.values().iterator();
+		while (this.totalBytes > this.maxTotalBytes && ittr.hasNext()) {
+			final Segment s = ittr.next();
+			if (s.refs > 0 || s.bytes == null) continue;
+			ittr.remove();
+			this.totalBytes -= s.bytes.length;
+		}
+	}
+
+	public long getLoads () {
+		return this.loads.get();
+	}
+
+	public long getHits () {
+		return this.hits.get();
+	}
+
+	public long getTotalBytes () {
+		synchronized (this.lock) {
+			return this.totalBytes;
+		}
+	}
+
+	public static final class Reader {
+
+		private final SharedSegmentCache cache;
+		private final File file;
+		private final String fileKey;
+		private volatile boolean shared;
+
+		// Only touched by the thread currently serving the stream.
+		private int readAhead = 1;
+		private long readAheadFrom = -1;
+
+		Reader (final SharedSegmentCache cache, final File file, final String fileKey, final boolean shared) {
+			this.cache = cache;
+			this.file = file;
+			this.fileKey = fileKey;
+			this.shared = shared;
+		}
+
+		/**
+		 * True if another stream of this file was open, or had recently left segments, when this one opened,
+		 * or if another has opened since.  Once true stays true, so a stream that was reading the file
+		 * some other way can switch to the segments and fill them for the streams that joined it.
+		 */
+		public boolean isShared () {
+			if (!this.shared && this.cache.hasOtherReaders(this.fileKey)) this.shared = true;
+			return this.shared;
+		}
+
+		public void write (final long first, final long length, final OutputStream out, final BandwidthScheduler.Stream stream) throws IOException {
+			final long last = first + length - 1;
+			long position = first;
+			while (position <= last) {
+				final ByteBuffer chunk = read(position, WRITE_CHUNK_BYTES, last);
+				final int n = chunk.remaining();
+				stream.acquire(n);
+				out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), n);
+				position += n;
+			}
+		}
+
+		/**
+		 * Returns up to maxLength bytes from position, never crossing a segment boundary.
+		 * The returned buffer wraps the segment and must not be modified.
+		 * @param last the final byte of the range being served, read ahead does not go past it.
+		 */
+		public ByteBuffer read (final long position, final int maxLength, final long last) throws IOException {
+			final int segmentBytes = this.cache.segmentBytes;
+			final long index = position / segmentBytes;
+			final Segment segment = this.cache.acquire(this.file, this.fileKey, index);
+			try {
+				if (index != this.readAheadFrom) {
+					this.cache.readAhead(this.file, this.fileKey, index + 1, (int) Math.min(this.readAhead, last / segmentBytes - index));
+					this.readAhead = Math.min(this.readAhead * 2, MAX_READ_AHEAD_SEGMENTS);
+					this.readAheadFrom = index;
+				}
+				final int offset = (int) (position - index * segmentBytes);
+				if (offset >= segment.bytes.length) throw new IOException("File truncated while being served.");
+				final int n = (int) Math.min(Math.min(maxLength, segment.bytes.length - offset), last - position + 1);
+				return ByteBuffer.wrap(segment.bytes, offset, n);
+			}
+			finally {
+				this.cache.release(segment);
+			}
+		}
+
+		public void close () {
+			this.cache.close(this);
+		}
+
+	}
+
+	private static final class Segment {
+
+		private final SegmentKey key;
+		private final CountDownLatch loaded = new CountDownLatch(1);
+		private volatile byte[] bytes;
+		private volatile IOException failure;
+		int refs; // Guarded by cache lock.
+
+		Segment (final SegmentKey key) {
+			this.key = key;
+		}
+
+		void load (final File file, final long position, final int maxLength) throws IOException {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel fc = raf.getChannel();
+				final long available = fc.size() - position;
+				if (available < 1) throw new IOException("Segment past end of file: " + this.key);
+				final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(maxLength, available));
+				while (buffer.hasRemaining()) {
+					if (fc.read(buffer, position + buffer.position()) < 0) break;
+				}
+				this.bytes = buffer.position() == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+			}
+			finally {
+				Quietly.close(raf);
+			}
+		}
+
+		void await () throws IOException {
+			try {
+				this.loaded.await();
+			}
+			catch (final InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for segment: " + this.key);
+			}
+			if (this.failure != null) throw new IOException("Failed to read segment " + this.key + ": " + this.failure.getMessage(), this.failure);
+			if (this.bytes == null) throw new IOException("Segment not loaded: " + this.key);
+		}
+
+	}
+
+	private static final class SegmentKey {
+
+		final String fileKey;
+		final long index;
+
+		SegmentKey (final String fileKey, final long index) {
+			this.fileKey = fileKey;
+			this.index = index;
+		}
+
+		@Override
+		public int hashCode () {
+			return this.fileKey.hashCode() * 31 + (int) (this.index ^ (this.index >>> 32));
+		}
+
+		@Override
+		public boolean equals (final Object obj) {
+			if (obj == this) return true;
+			if (!(obj instanceof SegmentKey)) return false;
+			final SegmentKey that = (SegmentKey) obj;
+			return this.index == that.index && this.fileKey.equals(that.fileKey);
+		}
+
+		@Override
+		public String toString () {
+			return this.fileKey + "#" + this.index;
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.http.HttpGenerator;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.AsyncHttpConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.util.DaemonThreadFactory;
+
+/**
+ * Sends response bodies without a thread waiting on clients that are not reading,
+ * e.g. a renderer that has paused playback, or on streams being paced.
+ * Between bursts the request is suspended and a timer resumes it later, so a parked
+ * stream costs a connection but no thread.
+ * Also caps how many streams may be open at once.
+ */
+public class StreamPump {
+
+	/**
+	 * A client that has not read anything for this long is disconnected.
+	 * It will reconnect with a Range request if it still wants the rest.
+	 */
+	private static final long MAX_STALL_NANOS = TimeUnit.MINUTES.toNanos(30);
+	/**
+	 * Backstop for a request that is never resumed, e.g. if the timer has been stopped.
+	 */
+	private static final long SUSPEND_TIMEOUT_MILLIS = TimeUnit.NANOSECONDS.toMillis(MAX_STALL_NANOS) + TimeUnit.MINUTES.toMillis(1);
+	private static final long METRICS_INTERVAL_SECONDS = 60;
+	private static final String TRANSFER_ATTR = StreamPump.class.getName() + ".transfer";
+
+	private static final Logger LOG = LoggerFactory.getLogger(StreamPump.class);
+
+	private final int maxStreams;
+	private final AtomicInteger openStreams = new AtomicInteger();
+	private final AtomicInteger parkedStreams = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong reportedRejected = new AtomicLong();
+	private volatile ScheduledExecutorService timer;
+
+	/**
+	 * @param maxStreams 0 for no limit.
+	 */
+	public StreamPump (final int maxStreams) {
+		this.maxStreams = maxStreams;
+	}
+
+	public void start () {
+		this.timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dlna-stream-pump"));
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run () {
+				logMetrics();
+			}
+		}, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public void stop () {
+		final ScheduledExecutorService t = this.timer;
+		this.timer = null;
+		if (t != null) t.shutdownNow();
+	}
+
+	/**
+	 * Call before opening a stream.  If true, release() must be called when the stream is done.
+	 */
+	public boolean admit () {
+		while (true) {
+			final int n = this.openStreams.get();
+			if (this.maxStreams > 0 && n >= this.maxStreams) {
+				this.rejected.incrementAndGet();
+				return false;
+			}
+			if (this.openStreams.compareAndSet(n, n + 1)) return true;
+		}
+	}
+
+	public void release () {
+		this.openStreams.decrementAndGet();
+	}
+
+	public int getOpenStreams () {
+		return this.openStreams.get();
+	}
+
+	/**
+	 * Streams waiting on their client or their pacing, and not holding a thread.
+	 */
+	public int getParkedStreams () {
+		return this.parkedStreams.get();
+	}
+
+	/**
+	 * Streams currently holding a thread.
+	 */
+	public int getActiveStreams () {
+		return Math.max(0, this.openStreams.get() - this.parkedStreams.get());
+	}
+
+	public long getRejected () {
+		return this.rejected.get();
+	}
+
+	/**
+	 * True if the current request is on a connection that can be suspended and written without blocking.
+	 */
+	boolean canPump () {
+		if (this.timer == null) return false;
+		final AbstractHttpConnection conn = AbstractHttpConnection.getCurrentConnection();
+		return conn instanceof AsyncHttpConnection && conn.getGenerator() instanceof HttpGenerator;
+	}
+
+	/**
+	 * True if the request has a transfer that has not finished, i.e. it has been suspended to continue later.
+	 */
+	boolean isPending (final HttpServletRequest req) {
+		return req.getAttribute(TRANSFER_ATTR) != null;
+	}
+
+	/**
+	 * Only valid while isPending().
+	 */
+	void onFinish (final HttpServletRequest req, final Transfer.Listener listener) {
+		((Transfer) req.getAttribute(TRANSFER_ATTR)).onFinish(listener);
+	}
+
+	/**
+	 * Response headers must already be set.
+	 * Sends as much as can be sent now and, if that is not everything, suspends the request to continue later.
+	 */
+	void begin (final HttpServletRequest req, final Transfer transfer) throws IOException {
+		final AbstractHttpConnection conn = AbstractHttpConnection.getCurrentConnection();
+		try {
+			conn.commitResponse(false);
+		}
+		catch (final IOException e) {
+			transfer.finish(false);
+			throw e;
+		}
+
+		req.setAttribute(TRANSFER_ATTR, transfer);
+		ContinuationSupport.getContinuation(req).addContinuationListener(new ContinuationListener() {
+			@Override
+			public void onComplete (final Continuation continuation) {
+				transfer.finish(false); // Only has an effect if the connection went away while parked.
+			}
+
+			@Override
+			public void onTimeout (final Continuation continuation) {/* Handled when redispatched. */}
+		});
+		step(req, conn, transfer);
+	}
+
+	/**
+	 * Call at the start of every dispatch.
+	 * Returns true if the request was the continuation of a transfer, which has now been continued.
+	 */
+	public boolean resume (final HttpServletRequest req) throws IOException {
+		final Transfer transfer = (Transfer) req.getAttribute(TRANSFER_ATTR);
+		if (transfer == null) return false;
+
+		final AbstractHttpConnection conn = AbstractHttpConnection.getCurrentConnection();
+		if (ContinuationSupport.getContinuation(req).isExpired()) {
+			abandon(req, conn, transfer, "suspended too long");
+			return true;
+		}
+		step(req, conn, transfer);
+		return true;
+	}
+
+	private void step (final HttpServletRequest req, final AbstractHttpConnection conn, final Transfer transfer) throws IOException {
+		final long waitNanos;
+		try {
+			waitNanos = transfer.pump((HttpGenerator) conn.getGenerator());
+		}
+		catch (final IOException e) {
+			finish(req, transfer, false);
+			throw e;
+		}
+		catch (final RuntimeException e) {
+			finish(req, transfer, false);
+			throw e;
+		}
+
+		if (waitNanos == Transfer.DONE) {
+			finish(req, transfer, true);
+		}
+		else if (transfer.stalledNanos() > MAX_STALL_NANOS) {
+			abandon(req, conn, transfer, "client stopped reading");
+		}
+		else {
+			park(req, waitNanos);
+		}
+	}
+
+	private void park (final HttpServletRequest req, final long waitNanos) {
+		final Continuation continuation = ContinuationSupport.getContinuation(req);
+		continuation.setTimeout(SUSPEND_TIMEOUT_MILLIS);
+		continuation.suspend();
+		this.parkedStreams.incrementAndGet();
+
+		final Runnable wake = new Runnable() {
+			@Override
+			public void run () {
+				StreamPump.this.parkedStreams.decrementAndGet();
+				try {
+					continuation.resume();
+				}
+				catch (final IllegalStateException e) {
+					// Already expired or completed.
+				}
+			}
+		};
+
+		final ScheduledExecutorService t = this.timer;
+		try {
+			if (t == null) throw new RejectedExecutionException("Stopped.");
+			t.schedule(wake, waitNanos, TimeUnit.NANOSECONDS);
+		}
+		catch (final RejectedExecutionException e) {
+			wake.run(); // Shutting down, carry on without parking.
+		}
+	}
+
+	private static void finish (final HttpServletRequest req, final Transfer transfer, final boolean complete) {
+		req.removeAttribute(TRANSFER_ATTR);
+		transfer.finish(complete);
+	}
+
+	/**
+	 * Content-Length can no longer be honoured, so the connection is closed.
+	 */
+	private static void abandon (final HttpServletRequest req, final AbstractHttpConnection conn, final Transfer transfer, final String why) throws IOException {
+		LOG.info("Abandoning stream to {} after {} bytes: {}", req.getRemoteAddr(), transfer.bytesSent(), why);
+		finish(req, transfer, false);
+		conn.getEndPoint().close();
+	}
+
+	private void logMetrics () {
+		final int open = this.openStreams.get();
+		final int parked = this.parkedStreams.get();
+		final long r = this.rejected.get();
+		final long newlyRejected = r - this.reportedRejected.getAndSet(r);
+		if (open > 0 || newlyRejected > 0) {
+			LOG.info("Streams: {} active, {} parked, {} rejected.", Math.max(0, open - parked), parked, newlyRejected);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+/**
+ * DLNA TimeSeekRange.dlna.org request header, e.g. npt=5400.0- or npt=1:30:00-1:35:00.5
+ */
+public final class TimeSeekRange {
+
+	public static final String HEADER = "TimeSeekRange.dlna.org";
+
+	private static final String NPT_UNIT = "npt=";
+
+	private final long startMillis;
+	private final long endMillis;
+
+	/**
+	 * endMillis is -1 for open ended.
+	 */
+	public TimeSeekRange (final long startMillis, final long endMillis) {
+		if (startMillis < 0 || (endMillis >= 0 && endMillis < startMillis)) {
+			throw new IllegalArgumentException("Invalid range: " + startMillis + "-" + endMillis);
+		}
+		this.startMillis = startMillis;
+		this.endMillis = endMillis;
+	}
+
+	public long getStartMillis () {
+		return this.startMillis;
+	}
+
+	/**
+	 * -1 for open ended.
+	 */
+	public long getEndMillis () {
+		return this.endMillis;
+	}
+
+	public boolean hasEnd () {
+		return this.endMillis >= 0;
+	}
+
+	/**
+	 * Returns null if the header is missing or can not be parsed.
+	 */
+	public static TimeSeekRange parse (final String header) {
+		if (header == null) return null;
+		final String h = header.trim();
+		if (!h.regionMatches(true, 0, NPT_UNIT, 0, NPT_UNIT.length())) return null;
+
+		final String spec = h.substring(NPT_UNIT.length()).trim();
+		final int dash = spec.indexOf('-');
+		if (dash < 1) return null;
+
+		final long start = parseNpt(spec.substring(0, dash).trim());
+		if (start < 0) return null;
+
+		final String endStr = spec.substring(dash + 1).trim();
+		final long end;
+		if (endStr.length() > 0) {
+			end = parseNpt(endStr);
+			if (end < start) return null;
+		}
+		else {
+			end = -1;
+		}
+		return new TimeSeekRange(start, end);
+	}
+
+	/**
+	 * Accepts seconds (123.45) and h:mm:ss(.fff).
+	 * Returns -1 if invalid.
+	 */
+	static long parseNpt (final String npt) {
+		try {
+			final String[] parts = npt.split(":");
+			if (parts.length == 1) return secondsToMillis(parts[0]);
+			if (parts.length != 3) return -1;
+			final long hours = Long.parseLong(parts[0]);
+			final long minutes = Long.parseLong(parts[1]);
+			final long secondsMillis = secondsToMillis(parts[2]);
+			if (hours < 0 || minutes < 0 || minutes > 59 || secondsMillis < 0 || secondsMillis >= 60000) return -1;
+			return ((hours * 60) + minutes) * 60000 + secondsMillis;
+		}
+		catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long secondsToMillis (final String s) {
+		if (s.length() < 1) return -1;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if ((c < '0' || c > '9') && c != '.') return -1;
+		}
+		return Math.round(Double.parseDouble(s) * 1000d);
+	}
+
+	public static String formatNpt (final long millis) {
+		return String.format("%d.%03d", millis / 1000, millis % 1000);
+	}
+
+	/**
+	 * Value for the TimeSeekRange.dlna.org response header.
+	 */
+	public static String toResponseHeader (final long startMillis, final long endMillis, final long durationMillis,
+			final ByteRange range, final long totalLength) {
+		return String.format("npt=%s-%s/%s bytes=%s-%s/%s",
+				formatNpt(startMillis), formatNpt(endMillis), formatNpt(durationMillis),
+				range.getFirst(), range.getLast(), totalLength);
+	}
+
+	@Override
+	public String toString () {
+		return String.format("TimeSeekRange{%s-%s}", this.startMillis, this.endMillis);
+	}
+
+}
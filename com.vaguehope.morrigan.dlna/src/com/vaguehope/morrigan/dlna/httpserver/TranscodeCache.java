@@ -0,0 +1,145 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.util.HashHelper;
+
+/**
+ * Finished transcodes kept on disk keyed by source path, mtime and size and profile,
+ * so a changed source gets a new transcode.
+ * Files are touched when used and the least recently used are deleted to stay within a byte budget.
+ */
+public class TranscodeCache {
+
+	private static final String PART_SUFFIX = ".part";
+
+	private static final Logger LOG = LoggerFactory.getLogger(TranscodeCache.class);
+
+	private final File cacheDir;
+	private final long maxBytes;
+	private final Object[] lock = new Object[] {};
+
+	public TranscodeCache (final File cacheDir, final long maxBytes) {
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		deleteStaleParts();
+	}
+
+	public static String keyFor (final File source, final TranscodeProfile profile) {
+		return String.format("%s-%s.%s",
+				HashHelper.sha1(String.format("%s|%s|%s", source.getAbsolutePath(), source.lastModified(), source.length())),
+				profile.name().toLowerCase(Locale.ENGLISH), profile.getFileExt());
+	}
+
+	/**
+	 * Returns null if not cached.
+	 */
+	public File get (final String key) {
+		final File file = new File(this.cacheDir, key);
+		if (!file.isFile()) return null;
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Where to write a transcode in progress, pass it to commit() once complete.
+	 * Unique per call, so a session abandoned as stalled can not delete the part file of the one that replaced it.
+	 */
+	File partFileFor (final String key) throws IOException {
+		if (!this.cacheDir.exists() && !this.cacheDir.mkdirs()) throw new IOException("Failed to create: " + this.cacheDir.getAbsolutePath());
+		return File.createTempFile(key + ".tmp", PART_SUFFIX, this.cacheDir);
+	}
+
+	/**
+	 * Returns the file now in the cache.
+	 */
+	File commit (final File partFile, final String key) throws IOException {
+		final File file = new File(this.cacheDir, key);
+		if (!partFile.renameTo(file)) {
+			partFile.delete();
+			throw new IOException("Failed to rename " + partFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+		file.setLastModified(System.currentTimeMillis());
+		trim();
+		return file;
+	}
+
+	public long getTotalBytes () {
+		long total = 0;
+		for (final File f : listCached()) {
+			total += f.length();
+		}
+		return total;
+	}
+
+	/**
+	 * The most recently used file is always kept, even if it alone is over budget.
+	 */
+	private void trim () {
+		synchronized (this.lock) {
+			final File[] files = listCached();
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare (final File a, final File b) {
+					final long am = a.lastModified();
+					final long bm = b.lastModified();
+					return am > bm ? -1 : (am < bm ? 1 : 0); // Newest first.
+				}
+			});
+			long total = 0;
+			for (int i = 0; i < files.length; i++) {
+				total += files[i].length();
+				if (i > 0 && total > this.maxBytes) {
+					total -= files[i].length();
+					if (files[i].delete()) {
+						LOG.info("Evicted transcode: {}", files[i].getName());
+					}
+					else {
+						LOG.warn("Failed to delete: {}", files[i].getAbsolutePath());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parts are not counted by trim(), so any left by a crash or kill would otherwise stay forever.
+	 * Nothing can be writing them yet as no transcode runs before the cache exists.
+	 */
+	private void deleteStaleParts () {
+		final File[] parts = this.cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept (final File f) {
+				return f.isFile() && f.getName().endsWith(PART_SUFFIX);
+			}
+		});
+		if (parts == null) return;
+		for (final File part : parts) {
+			if (part.delete()) {
+				LOG.info("Deleted stale transcode part: {}", part.getName());
+			}
+			else {
+				LOG.warn("Failed to delete: {}", part.getAbsolutePath());
+			}
+		}
+	}
+
+	private File[] listCached () {
+		final File[] files = this.cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept (final File f) {
+				return f.isFile() && !f.getName().endsWith(PART_SUFFIX);
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+
+}
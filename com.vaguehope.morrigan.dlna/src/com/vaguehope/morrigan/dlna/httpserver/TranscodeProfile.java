@@ -0,0 +1,77 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats content can be transcoded to on the fly.
+ * A transcoded stream's ID is the source's ID plus the profile's suffix.
+ */
+public enum TranscodeProfile {
+
+	MP3("audio/mpeg", "mp3", 320 * 1000 / 8,
+			"-vn", "-codec:a", "libmp3lame", "-b:a", "320k", "-f", "mp3");
+
+	private final String mimeType;
+	private final String fileExt;
+	private final long bytesPerSecond;
+	private final List<String> ffmpegArgs;
+	private final String idSuffix;
+
+	private TranscodeProfile (final String mimeType, final String fileExt, final long bytesPerSecond, final String... ffmpegArgs) {
+		this.mimeType = mimeType;
+		this.fileExt = fileExt;
+		this.bytesPerSecond = bytesPerSecond;
+		this.ffmpegArgs = Collections.unmodifiableList(Arrays.asList(ffmpegArgs));
+		this.idSuffix = "/" + name();
+	}
+
+	public String getMimeType () {
+		return this.mimeType;
+	}
+
+	public String getFileExt () {
+		return this.fileExt;
+	}
+
+	public long getBytesPerSecond () {
+		return this.bytesPerSecond;
+	}
+
+	/**
+	 * Output options, the output itself is not included.
+	 */
+	public List<String> getFfmpegArgs () {
+		return this.ffmpegArgs;
+	}
+
+	/**
+	 * Output length is not known until transcoding finishes, so estimate it from the bitrate.
+	 * Returns 0 if duration is not known.
+	 */
+	public long estimateLength (final long durationMillis) {
+		if (durationMillis <= 0) return 0;
+		return this.bytesPerSecond * durationMillis / TimeUnit.SECONDS.toMillis(1);
+	}
+
+	public String idFor (final String baseId) {
+		return baseId + this.idSuffix;
+	}
+
+	public String baseIdOf (final String id) {
+		return id.substring(0, id.length() - this.idSuffix.length());
+	}
+
+	/**
+	 * Returns null if ID is not for a transcode.
+	 */
+	public static TranscodeProfile forId (final String id) {
+		for (final TranscodeProfile p : values()) {
+			if (id.endsWith(p.idSuffix) && id.length() > p.idSuffix.length()) return p;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,419 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.util.Quietly;
+import com.vaguehope.morrigan.util.DaemonThreadFactory;
+
+/**
+ * Serves transcodes while they are being made, so playback can start as soon as the
+ * transcoder produces its first bytes rather than once it has finished.
+ * Output is written to a part file in the TranscodeCache which requests follow as it grows,
+ * so concurrent requests for the same transcode share one transcoder.
+ * Once complete it is committed to the cache and later requests are served from there,
+ * with ranges and time seeks like any other file.
+ * A transcode carries on if its requests go away so the next play is served from the cache.
+ * Live output is copied on the request's thread, the transcoder sets the pace anyway.
+ * Items likely to be requested soon can be transcoded in the background, one at a time.
+ */
+public class TranscodeStreamer {
+
+	private static final int COPY_BUFFER_BYTES = 64 * 1024;
+	private static final int MAX_STDERR_CHARS = 4096;
+	/**
+	 * A transcoder that produces nothing for this long is assumed to have hung.
+	 */
+	private static final long STALL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	/**
+	 * Background transcodes are an optimisation, so if they can not keep up further requests are dropped.
+	 */
+	private static final int BACKGROUND_QUEUE_LENGTH = 8;
+
+	private static final Logger LOG = LoggerFactory.getLogger(TranscodeStreamer.class);
+
+	private final Transcoder transcoder;
+	private final TranscodeCache cache;
+	private final FileStreamer fileStreamer;
+	private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("dlna-transcode"));
+	private final ExecutorService backgroundExecutor = new ThreadPoolExecutor(1, 1,
+			0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(BACKGROUND_QUEUE_LENGTH),
+			new LowPriorityThreadFactory(new DaemonThreadFactory("dlna-pretranscode")));
+	/**
+	 * Kills transcoders that stop producing, as a hung one blocks its session forever.
+	 */
+	private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("dlna-transcode-watchdog"));
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	private final Object[] lock = new Object[] {};
+
+	public TranscodeStreamer (final Transcoder transcoder, final TranscodeCache cache, final FileStreamer fileStreamer) {
+		this.transcoder = transcoder;
+		this.cache = cache;
+		this.fileStreamer = fileStreamer;
+	}
+
+	/**
+	 * Stops all transcodes in progress.
+	 */
+	public void dispose () {
+		this.backgroundExecutor.shutdownNow();
+		this.executor.shutdownNow();
+		this.watchdog.shutdownNow();
+		synchronized (this.lock) {
+			for (final Session s : this.sessions.values()) {
+				s.kill();
+			}
+		}
+	}
+
+	/**
+	 * Queues source to be transcoded into the cache so it is ready before it is requested.
+	 * Does nothing if it is already cached or being transcoded, or if the queue is full.
+	 * Returns immediately.
+	 */
+	public void preTranscode (final File source, final TranscodeProfile profile) {
+		final String key = TranscodeCache.keyFor(source, profile);
+		try {
+			this.backgroundExecutor.execute(new Runnable() {
+				@Override
+				public void run () {
+					// Only registered once running, so requests never wait on a transcode that is still queued.
+					final Session session;
+					synchronized (TranscodeStreamer.this.lock) {
+						if (TranscodeStreamer.this.sessions.containsKey(key) || TranscodeStreamer.this.cache.get(key) != null) return;
+						session = new Session(key, source, profile);
+						TranscodeStreamer.this.sessions.put(key, session);
+					}
+					session.run();
+				}
+			});
+		}
+		catch (final RejectedExecutionException e) {
+			LOG.debug("Pre-transcode queue full, skipping: {}", source.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * If sendBody is false only headers are written, e.g. for HEAD, and no transcode is started.
+	 * Returns the number of body bytes written.
+	 */
+	public long serve (final HttpServletRequest req, final HttpServletResponse resp, final File source,
+			final TranscodeProfile profile, final BandwidthScheduler.Stream stream, final boolean sendBody) throws IOException {
+		final String key = TranscodeCache.keyFor(source, profile);
+		Session session;
+		File cached = null;
+		synchronized (this.lock) {
+			// Sessions are only removed once committed, so check them before the cache.
+			session = this.sessions.get(key);
+			if (session == null) cached = this.cache.get(key);
+			if (session == null && cached == null && sendBody) {
+				session = new Session(key, source, profile);
+				this.sessions.put(key, session);
+				startSession(session);
+			}
+		}
+		if (cached != null) return this.fileStreamer.serve(req, resp, cached, Validators.forFile(cached), stream, sendBody);
+
+		if (session != null && !session.awaitFirstBytes()) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			return 0;
+		}
+
+		// Length is not known until the end, so no Content-Length and the response is chunked.
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType(profile.getMimeType());
+		resp.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+		if (!sendBody) return 0;
+		return session.copyTo(resp.getOutputStream(), stream);
+	}
+
+	/**
+	 * Must hold lock.
+	 */
+	private void startSession (final Session session) {
+		try {
+			this.executor.execute(session);
+		}
+		catch (final RejectedExecutionException e) {
+			session.fail(new IOException("Shutting down."));
+			this.sessions.remove(session.key);
+		}
+	}
+
+	private void endSession (final Session session) {
+		synchronized (this.lock) {
+			if (this.sessions.get(session.key) == session) this.sessions.remove(session.key);
+		}
+	}
+
+	private static class LowPriorityThreadFactory implements ThreadFactory {
+
+		private final ThreadFactory factory;
+
+		LowPriorityThreadFactory (final ThreadFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public Thread newThread (final Runnable r) {
+			final Thread t = this.factory.newThread(r);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+
+	}
+
+	private final class Session implements Runnable {
+
+		final String key;
+		private final File source;
+		private final TranscodeProfile profile;
+		private final StringBuffer stderr = new StringBuffer();
+		private volatile Process process;
+		private volatile long lastOutputNanos;
+
+		private final Object[] sessionLock = new Object[] {};
+		private File file; // Guarded by sessionLock.
+		private long written = 0; // Guarded by sessionLock.
+		private boolean complete = false; // Guarded by sessionLock.
+		private IOException failure; // Guarded by sessionLock.
+
+		Session (final String key, final File source, final TranscodeProfile profile) {
+			this.key = key;
+			this.source = source;
+			this.profile = profile;
+		}
+
+		@Override
+		public void run () {
+			final long startTime = System.nanoTime();
+			File partFile = null;
+			try {
+				partFile = TranscodeStreamer.this.cache.partFileFor(this.key);
+				synchronized (this.sessionLock) {
+					this.file = partFile;
+				}
+				this.process = TranscodeStreamer.this.transcoder.start(this.source, this.profile);
+				drainStderr(this.process);
+				final ScheduledFuture<?> watch = watch();
+				try {
+					transcodeTo(partFile);
+				}
+				finally {
+					if (watch != null) watch.cancel(false);
+				}
+				final int exitCode = this.process.waitFor();
+				if (exitCode != 0) {
+					throw new IOException("Transcoder exited with " + exitCode + ": " + this.stderr.toString().trim());
+				}
+
+				final File committed;
+				synchronized (this.sessionLock) {
+					// A transcoder killed as stalled may still exit cleanly, but its output is not to be trusted.
+					if (this.failure != null) throw new IOException("Abandoned as stalled.", this.failure);
+					committed = TranscodeStreamer.this.cache.commit(partFile, this.key);
+					this.file = committed;
+					this.complete = true;
+					this.sessionLock.notifyAll();
+				}
+				LOG.info("Transcoded {} ({} bytes) in {}ms: {}", this.profile, committed.length(),
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), this.source.getAbsolutePath());
+			}
+			catch (final IOException e) {
+				fail(e);
+				if (partFile != null) partFile.delete();
+			}
+			catch (final InterruptedException e) {
+				fail(new InterruptedIOException("Interrupted while transcoding."));
+				if (partFile != null) partFile.delete();
+			}
+			finally {
+				kill();
+				endSession(this);
+			}
+		}
+
+		/**
+		 * Returns null if shutting down.
+		 */
+		private ScheduledFuture<?> watch () {
+			this.lastOutputNanos = System.nanoTime();
+			try {
+				return TranscodeStreamer.this.watchdog.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run () {
+						if (System.nanoTime() - Session.this.lastOutputNanos > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLIS)) stalled();
+					}
+				}, STALL_TIMEOUT_MILLIS / 2, STALL_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+			}
+			catch (final RejectedExecutionException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Fails waiting readers, kills the transcoder so run() unblocks and cleans up,
+		 * and removes the session so the next request starts afresh.
+		 */
+		void stalled () {
+			fail(new IOException("Transcoder produced nothing for " + STALL_TIMEOUT_MILLIS + "ms."));
+			kill();
+			endSession(this);
+		}
+
+		private void transcodeTo (final File partFile) throws IOException {
+			final InputStream in = this.process.getInputStream();
+			try {
+				final OutputStream out = new FileOutputStream(partFile);
+				try {
+					final byte[] buffer = new byte[COPY_BUFFER_BYTES];
+					int n;
+					while ((n = in.read(buffer)) >= 0) {
+						this.lastOutputNanos = System.nanoTime();
+						out.write(buffer, 0, n);
+						synchronized (this.sessionLock) {
+							this.written += n;
+							this.sessionLock.notifyAll();
+						}
+					}
+				}
+				finally {
+					out.close();
+				}
+			}
+			finally {
+				Quietly.close(in);
+			}
+		}
+
+		/**
+		 * Otherwise a chatty transcoder could fill the pipe and block.
+		 */
+		private void drainStderr (final Process p) {
+			try {
+				TranscodeStreamer.this.executor.execute(new Runnable() {
+					@Override
+					public void run () {
+						final InputStream err = p.getErrorStream();
+						try {
+							final byte[] buffer = new byte[1024];
+							int n;
+							while ((n = err.read(buffer)) >= 0) {
+								if (Session.this.stderr.length() < MAX_STDERR_CHARS) Session.this.stderr.append(new String(buffer, 0, n));
+							}
+						}
+						catch (final IOException e) {
+							// Process has gone.
+						}
+						finally {
+							Quietly.close(err);
+						}
+					}
+				});
+			}
+			catch (final RejectedExecutionException e) {
+				// Shutting down, the process is about to be killed.
+			}
+		}
+
+		void fail (final IOException e) {
+			LOG.warn("Failed to transcode {} to {}: {}", this.source.getAbsolutePath(), this.profile, e.getMessage());
+			synchronized (this.sessionLock) {
+				this.failure = e;
+				this.sessionLock.notifyAll();
+			}
+		}
+
+		void kill () {
+			final Process p = this.process;
+			if (p != null) p.destroy();
+		}
+
+		/**
+		 * Returns false if the transcode failed before producing anything.
+		 */
+		boolean awaitFirstBytes () throws IOException {
+			synchronized (this.sessionLock) {
+				awaitMore(0);
+				return this.written > 0 || this.failure == null;
+			}
+		}
+
+		/**
+		 * Follows the output as it is written until the transcode completes.
+		 */
+		long copyTo (final OutputStream out, final BandwidthScheduler.Stream stream) throws IOException {
+			final byte[] buffer = new byte[COPY_BUFFER_BYTES];
+			RandomAccessFile raf = null;
+			long position = 0;
+			try {
+				while (true) {
+					final long available;
+					synchronized (this.sessionLock) {
+						awaitMore(position);
+						if (this.failure != null) throw new IOException("Transcode failed after " + position + " bytes.", this.failure);
+						available = this.written;
+						if (available <= position) return position;
+						if (raf == null) raf = new RandomAccessFile(this.file, "r"); // Stays valid if the part file is renamed.
+					}
+
+					raf.seek(position);
+					while (position < available) {
+						final int n = raf.read(buffer, 0, (int) Math.min(buffer.length, available - position));
+						if (n < 0) throw new IOException("Unexpected end of transcode at " + position + " bytes.");
+						stream.acquire(n);
+						out.write(buffer, 0, n);
+						position += n;
+					}
+					out.flush();
+				}
+			}
+			finally {
+				if (raf != null) Quietly.close(raf);
+			}
+		}
+
+		/**
+		 * Must hold sessionLock.
+		 * Waits until there is more than position, the transcode has ended, or it stalls.
+		 */
+		private void awaitMore (final long position) throws IOException {
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MILLIS);
+			while (this.written <= position && !this.complete && this.failure == null) {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) throw new IOException("Transcoder produced nothing for " + STALL_TIMEOUT_MILLIS + "ms.");
+				try {
+					this.sessionLock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+				}
+				catch (final InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for transcoder.");
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,14 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+import java.io.IOException;
+
+public interface Transcoder {
+
+	/**
+	 * Starts a process that writes source, transcoded to profile, to its stdout
+	 * and exits 0 once it has all been written.
+	 */
+	Process start (File source, TranscodeProfile profile) throws IOException;
+
+}
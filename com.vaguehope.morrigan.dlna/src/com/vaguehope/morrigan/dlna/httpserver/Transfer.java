@@ -0,0 +1,149 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpGenerator;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+
+/**
+ * A byte range sent over several dispatches of a suspended request.
+ * Content is handed to the connection's generator and flushed without blocking,
+ * so when the client stops reading, or the stream must wait its turn, the transfer
+ * says how long to wait rather than holding on to the thread.
+ */
+final class Transfer {
+
+	interface Source {
+
+		/**
+		 * Returns up to maxLength bytes from position.  Must not be modified.
+		 */
+		ByteBuffer read (long position, int maxLength, long last) throws IOException;
+
+		void close ();
+
+	}
+
+	interface Listener {
+
+		void transferFinished (long bytesSent, boolean complete);
+
+	}
+
+	static final long DONE = 0;
+
+	private static final int CHUNK_BYTES = 64 * 1024;
+	/**
+	 * Bytes handed over per dispatch before the thread is given back, so a fast client can not keep one.
+	 */
+	private static final long DISPATCH_BUDGET_BYTES = 1024 * 1024;
+	private static final long YIELD_NANOS = 1;
+	private static final long MIN_STALL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long MAX_STALL_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final Source source;
+	private final long first;
+	private final long last;
+	private final BandwidthScheduler.Stream stream;
+
+	// Only touched by the thread currently dispatching the request.
+	private long position;
+	private ByteBuffer pending; // Already reserved from stream.
+	private long stallWaitNanos = MIN_STALL_WAIT_NANOS;
+	private long stalledSinceNanos = 0;
+
+	private boolean finished = false; // Guarded by this.
+	private boolean complete = false; // Guarded by this.
+	private Listener listener; // Guarded by this.
+
+	Transfer (final Source source, final long first, final long length, final BandwidthScheduler.Stream stream) {
+		this.source = source;
+		this.first = first;
+		this.last = first + length - 1;
+		this.stream = stream;
+		this.position = first;
+	}
+
+	/**
+	 * Returns DONE once all content has been flushed to the connection, otherwise nanoseconds to wait before calling again.
+	 * Not done while the generator still holds content, so the stream stays open and counted until the client has it all.
+	 */
+	long pump (final HttpGenerator generator) throws IOException {
+		long budget = DISPATCH_BUDGET_BYTES;
+		while (true) {
+			generator.flushBuffer();
+			if (!generator.isEmpty()) return stalled();
+			this.stallWaitNanos = MIN_STALL_WAIT_NANOS;
+			this.stalledSinceNanos = 0;
+			if (this.pending == null && this.position > this.last) return DONE;
+			if (budget <= 0) return YIELD_NANOS;
+
+			if (this.pending == null) {
+				this.pending = this.source.read(this.position, CHUNK_BYTES, this.last);
+				this.position += this.pending.remaining();
+				final long wait = this.stream.reserve(this.pending.remaining());
+				if (wait > 0) return wait;
+			}
+			budget -= this.pending.remaining();
+			generator.addContent(toBuffer(this.pending), false);
+			this.pending = null;
+		}
+	}
+
+	private long stalled () {
+		if (this.stalledSinceNanos == 0) this.stalledSinceNanos = System.nanoTime();
+		final long wait = this.stallWaitNanos;
+		this.stallWaitNanos = Math.min(this.stallWaitNanos * 2, MAX_STALL_WAIT_NANOS);
+		return wait;
+	}
+
+	/**
+	 * How long the client has not been reading, 0 if it is.
+	 */
+	long stalledNanos () {
+		return this.stalledSinceNanos == 0 ? 0 : System.nanoTime() - this.stalledSinceNanos;
+	}
+
+	long bytesSent () {
+		return this.position - this.first - (this.pending != null ? this.pending.remaining() : 0);
+	}
+
+	/**
+	 * If already finished the listener is called straight away.
+	 */
+	void onFinish (final Listener l) {
+		final boolean call;
+		final boolean wasComplete;
+		synchronized (this) {
+			this.listener = l;
+			call = this.finished;
+			wasComplete = this.complete;
+		}
+		if (call) l.transferFinished(bytesSent(), wasComplete);
+	}
+
+	/**
+	 * Only the first call has any effect.
+	 */
+	void finish (final boolean wasComplete) {
+		final Listener l;
+		synchronized (this) {
+			if (this.finished) return;
+			this.finished = true;
+			this.complete = wasComplete;
+			l = this.listener;
+		}
+		this.source.close();
+		if (l != null) l.transferFinished(bytesSent(), wasComplete);
+	}
+
+	private static Buffer toBuffer (final ByteBuffer bb) {
+		if (bb.hasArray()) return new ByteArrayBuffer(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), Buffer.READONLY);
+		return new DirectNIOBuffer(bb.slice(), true);
+	}
+
+}
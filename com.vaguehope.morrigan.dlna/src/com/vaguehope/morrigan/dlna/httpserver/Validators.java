@@ -0,0 +1,117 @@
+package com.vaguehope.morrigan.dlna.httpserver;
+
+import java.io.File;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+
+/**
+ * Strong ETag and Last-Modified for a served file.
+ */
+public final class Validators {
+
+	private static final int RADIX = 36;
+
+	private final String etag;
+	private final long lastModified;
+
+	private Validators (final String etag, final long lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * contentHash identifies the content independent of path, e.g. the DB hashcode.
+	 * If null only the file's mtime and length are used.
+	 */
+	public static Validators forContent (final String contentHash, final File file) {
+		if (contentHash == null) return forFile(file);
+		final long mtime = file.lastModified();
+		return new Validators(quote(contentHash + "-" + Long.toString(mtime, RADIX)), mtime);
+	}
+
+	public static Validators forFile (final File file) {
+		final long mtime = file.lastModified();
+		return new Validators(quote(Long.toString(mtime, RADIX) + "-" + Long.toString(file.length(), RADIX)), mtime);
+	}
+
+	private static String quote (final String s) {
+		return "\"" + s + "\"";
+	}
+
+	public String getEtag () {
+		return this.etag;
+	}
+
+	public long getLastModified () {
+		return this.lastModified;
+	}
+
+	/**
+	 * False if the file has been modified since these were made.
+	 */
+	public boolean isValidFor (final File file) {
+		return file.lastModified() == this.lastModified;
+	}
+
+	public void addHeaders (final HttpServletResponse resp) {
+		resp.setHeader(HttpHeaders.ETAG, this.etag);
+		resp.setDateHeader(HttpHeaders.LAST_MODIFIED, this.lastModified);
+	}
+
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since (RFC 7232 section 6).
+	 */
+	public boolean isNotModified (final HttpServletRequest req) {
+		final String ifNoneMatch = req.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) return etagListMatches(ifNoneMatch);
+
+		final long ifModifiedSince = dateHeader(req, HttpHeaders.IF_MODIFIED_SINCE);
+		if (ifModifiedSince < 0) return false;
+		return this.lastModified / 1000 <= ifModifiedSince / 1000; // HTTP dates have 1 second resolution.
+	}
+
+	/**
+	 * True if there is no If-Range header or it matches,
+	 * i.e. any Range header should be honoured.
+	 */
+	public boolean isIfRangeSatisfied (final HttpServletRequest req) {
+		final String ifRange = req.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange == null) return true;
+		final String v = ifRange.trim();
+		if (v.startsWith("\"")) return v.equals(this.etag);
+		if (v.startsWith("W/")) return false; // Weak tags never match for ranges.
+		final long date = dateHeader(req, HttpHeaders.IF_RANGE);
+		return date >= 0 && this.lastModified / 1000 == date / 1000;
+	}
+
+	private boolean etagListMatches (final String header) {
+		for (final String raw : header.split(",")) {
+			final String tag = raw.trim();
+			if ("*".equals(tag)) return true;
+			// Weak comparison is allowed for If-None-Match.
+			if (tag.equals(this.etag) || (tag.startsWith("W/") && tag.substring(2).equals(this.etag))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns -1 if missing or invalid.
+	 */
+	private static long dateHeader (final HttpServletRequest req, final String name) {
+		try {
+			return req.getDateHeader(name);
+		}
+		catch (final IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString () {
+		return String.format("Validators{%s, %s}", this.etag, this.lastModified);
+	}
+
+}
@@ -21,8 +21,10 @@ import org.slf4j.LoggerFactory;
 import com.vaguehope.morrigan.dlna.DlnaException;
 import com.vaguehope.morrigan.dlna.MediaFormat;
 import com.vaguehope.morrigan.dlna.UpnpHelper;
+import com.vaguehope.morrigan.dlna.content.ContentGroup;
 import com.vaguehope.morrigan.dlna.content.MediaFileLocator;
 import com.vaguehope.morrigan.dlna.httpserver.MediaServer;
+import com.vaguehope.morrigan.dlna.httpserver.TranscodeProfile;
 import com.vaguehope.morrigan.dlna.util.StringHelper;
 import com.vaguehope.morrigan.engines.playback.IPlaybackEngine.PlayState;
 import com.vaguehope.morrigan.model.media.IMediaTrack;
@@ -35,6 +37,10 @@ import com.vaguehope.morrigan.util.Objs;
 
 public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 
+	/**
+	 * How many queued items to get ready ahead of them being played.
+	 */
+	private static final int PREPARE_AHEAD = 2;
 	private static final Logger LOG = LoggerFactory.getLogger(AbstractDlnaPlayer.class);
 
 	protected final ControlPoint controlPoint;
@@ -45,6 +51,7 @@ public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 	protected final ScheduledExecutorService scheduledExecutor;
 	private final MediaServer mediaServer;
 	private final MediaFileLocator mediaFileLocator;
+	private final RendererCapabilities rendererCapabilities;
 
 	private final String uid;
 
@@ -61,6 +68,7 @@ public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 			final RemoteService avTransportSvc,
 			final MediaServer mediaServer,
 			final MediaFileLocator mediaFileLocator,
+			final RendererCapabilities rendererCapabilities,
 			final ScheduledExecutorService scheduledExecutor,
 			final AvTransportActions avTransportActions,
 			final RenderingControlActions renderingControlActions) {
@@ -90,6 +98,7 @@ public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 
 		this.mediaServer = mediaServer;
 		this.mediaFileLocator = mediaFileLocator;
+		this.rendererCapabilities = rendererCapabilities;
 		this.scheduledExecutor = scheduledExecutor;
 		this.uid = UpnpHelper.remoteServiceUid(avTransportSvc);
 		addEventListener(this.playerEventCache);
@@ -172,7 +181,7 @@ public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 
 	@Override
 	protected void loadAndPlay (final PlayItem item, final File altFile) throws DlnaException, IOException {
-		final String id;
+		String id;
 		if (altFile != null) {
 			id = this.mediaFileLocator.fileId(altFile);
 		}
@@ -200,13 +209,24 @@ public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 			durationSeconds = item.getTrack().getDuration(); // TODO what if this is not available?
 		}
 		else {
-			uri = this.mediaServer.uriForId(id);
 			final File file = new File(item.getTrack().getFilepath());
-			mimeType = MediaFormat.identify(file).toMimeType();
-			fileSize = file.length();
+			final MediaFormat format = MediaFormat.identify(file);
 			int d = item.getTrack().getDuration();
 			if (d < 1) d = readFileDurationSeconds(file);
 			durationSeconds = d;
+
+			final TranscodeProfile transcode = transcodeForRenderer(format);
+			if (transcode != null) {
+				LOG.info("{} does not accept {}, playing as {}: {}", getUid(), format.getMime(), transcode, file.getAbsolutePath());
+				id = transcode.idFor(id);
+				mimeType = MimeType.valueOf(transcode.getMimeType());
+				fileSize = transcode.estimateLength(TimeUnit.SECONDS.toMillis(durationSeconds));
+			}
+			else {
+				mimeType = format.toMimeType();
+				fileSize = file.length();
+			}
+			uri = this.mediaServer.uriForId(id);
 		}
 
 		if (durationSeconds < 1) throw new DlnaException("Can not play track without a known duration.");
@@ -224,6 +244,46 @@ public abstract class AbstractDlnaPlayer extends AbstractPlayer {
 
 		// After dlnaPlay() because it will (likely) call setCurrentItem().
 		this.currentItemDurationSeconds.set(durationSeconds);
+
+		prepareNextInQueue();
+	}
+
+	/**
+	 * So the next tracks can start straight away: the next is read ahead in case its disk has since
+	 * spun down, and any the renderer will need transcoded are transcoded into the cache in the background.
+	 * TODO tracks transcoded because of the player's Transcode setting still wait for a full transcode at each track change:
+	 * AbstractPlayer runs the morrigan transcode pipeline and only calls loadAndPlay() with its finished altFile,
+	 * so the media server's /MP3 ID, which can be prepared here, is never asked for.
+	 * Closing that needs AbstractPlayer to let a player stream a Transcode itself instead of being handed altFile.
+	 */
+	private void prepareNextInQueue () {
+		final List<PlayItem> queue = getQueue().getQueueList();
+		for (int i = 0; i < queue.size() && i < PREPARE_AHEAD; i++) {
+			final PlayItem next = queue.get(i);
+			if (!next.hasTrack() || StringHelper.notBlank(next.getTrack().getRemoteLocation())) continue;
+			final String filepath = next.getTrack().getFilepath();
+			if (StringHelper.blank(filepath)) continue;
+
+			final File file = new File(filepath);
+			if (i == 0) this.mediaServer.prefetch(file);
+			final TranscodeProfile profile = transcodeForRenderer(MediaFormat.identify(file));
+			if (profile != null) this.mediaServer.preTranscode(file, profile);
+		}
+	}
+
+	/**
+	 * Returns the profile to play instead if the renderer has said it does not accept this format
+	 * but does accept MP3, otherwise null.  Unknown renderers get the original and take their chances.
+	 */
+	private TranscodeProfile transcodeForRenderer (final MediaFormat format) {
+		if (format == null || format.getContentGroup() != ContentGroup.AUDIO) return null;
+		final SinkProtocols sink = this.rendererCapabilities.forDevice(this.avTransportSvc.getDevice());
+		if (sink == null || sink.accepts(format.getMime())) return null;
+		if (!sink.accepts(TranscodeProfile.MP3.getMimeType())) {
+			LOG.info("{} does not list {} or {}, sending original anyway.", getUid(), format.getMime(), TranscodeProfile.MP3.getMimeType());
+			return null;
+		}
+		return TranscodeProfile.MP3;
 	}
 
 	/**
@@ -0,0 +1,41 @@
+package com.vaguehope.morrigan.dlna.players;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.support.connectionmanager.callback.GetProtocolInfo;
+import org.fourthline.cling.support.model.ProtocolInfos;
+
+import com.vaguehope.morrigan.dlna.DlnaException;
+import com.vaguehope.morrigan.dlna.DlnaResponseException;
+
+public class ConnectionManagerActions extends AbstractActions {
+
+	public ConnectionManagerActions (final ControlPoint controlPoint, final RemoteService connectionManagerSvc) {
+		super(controlPoint, connectionManagerSvc);
+	}
+
+	public SinkProtocols getSinkProtocols () throws DlnaException {
+		final AtomicReference<Failure> err = new AtomicReference<Failure>();
+		final AtomicReference<SinkProtocols> ref = new AtomicReference<SinkProtocols>();
+		final Future<?> f = this.controlPoint.execute(new GetProtocolInfo(this.removeService) {
+			@Override
+			public void received (final ActionInvocation invocation, final ProtocolInfos sinkProtocolInfos, final ProtocolInfos sourceProtocolInfos) {
+				ref.set(SinkProtocols.parse(sinkProtocolInfos != null ? sinkProtocolInfos.toString() : null));
+			}
+
+			@Override
+			public void failure (final ActionInvocation invocation, final UpnpResponse response, final String defaultMsg) {
+				err.set(new Failure("get protocol info", response, defaultMsg));
+			}
+		});
+		await(f, "get protocol info for connection manager '%s'.", this.removeService);
+		if (ref.get() == null || err.get() != null) throw new DlnaResponseException(err.get().msg(), err.get().getResponse());
+		return ref.get();
+	}
+
+}
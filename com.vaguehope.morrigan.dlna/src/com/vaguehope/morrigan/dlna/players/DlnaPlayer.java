@@ -29,8 +29,9 @@ public class DlnaPlayer extends AbstractDlnaPlayer {
 			final ControlPoint controlPoint, final RemoteService avTransportSvc,
 			final MediaServer mediaServer,
 			final MediaFileLocator mediaFileLocator,
+			final RendererCapabilities rendererCapabilities,
 			final ScheduledExecutorService scheduledExecutor) {
-		super(register, controlPoint, avTransportSvc, mediaServer, mediaFileLocator, scheduledExecutor, null, null);
+		super(register, controlPoint, avTransportSvc, mediaServer, mediaFileLocator, rendererCapabilities, scheduledExecutor, null, null);
 	}
 
 	@Override
@@ -60,8 +60,9 @@ public class GoalSeekingDlnaPlayer extends AbstractDlnaPlayer {
 			final RemoteService avTransportSvc,
 			final MediaServer mediaServer,
 			final MediaFileLocator mediaFileLocator,
+			final RendererCapabilities rendererCapabilities,
 			final ScheduledExecutorService scheduledExecutor) {
-		this(register, controlPoint, avTransportSvc, mediaServer, mediaFileLocator, scheduledExecutor, null, null);
+		this(register, controlPoint, avTransportSvc, mediaServer, mediaFileLocator, rendererCapabilities, scheduledExecutor, null, null);
 	}
 
 	public GoalSeekingDlnaPlayer (
@@ -70,10 +71,11 @@ public class GoalSeekingDlnaPlayer extends AbstractDlnaPlayer {
 			final RemoteService avTransportSvc,
 			final MediaServer mediaServer,
 			final MediaFileLocator mediaFileLocator,
+			final RendererCapabilities rendererCapabilities,
 			final ScheduledExecutorService scheduledExecutor,
 			final AvTransportActions avTransportActions,
 			final RenderingControlActions renderingControlActions) {
-		super(register, controlPoint, avTransportSvc, mediaServer, mediaFileLocator, scheduledExecutor, avTransportActions, renderingControlActions);
+		super(register, controlPoint, avTransportSvc, mediaServer, mediaFileLocator, rendererCapabilities, scheduledExecutor, avTransportActions, renderingControlActions);
 		controlPoint.execute(new AvSubscriber(this, this.avEventListener, avTransportSvc, 600));
 		this.schdFuture = scheduledExecutor.scheduleWithFixedDelay(this.schdRunner, 1, 1, TimeUnit.SECONDS);
 	}
@@ -34,6 +34,7 @@ public class PlayerHolder {
 	private final MediaFileLocator mediaFileLocator;
 	private final PlayerStateStorage stateStorage;
 	private final ScheduledExecutorService scheduledExecutor;
+	private final RendererCapabilities rendererCapabilities;
 
 	private final AtomicBoolean alive = new AtomicBoolean(true);
 	private final Map<UDN, RemoteService> avTransports = new ConcurrentHashMap<UDN, RemoteService>();
@@ -43,18 +44,21 @@ public class PlayerHolder {
 
 	public PlayerHolder (final ControlPoint controlPoint,
 			final MediaServer mediaServer, final MediaFileLocator mediaFileLocator,
-			final PlayerStateStorage playerStateStorage, final ScheduledExecutorService scheduledExecutor) {
+			final PlayerStateStorage playerStateStorage, final RendererCapabilities rendererCapabilities,
+			final ScheduledExecutorService scheduledExecutor) {
 		this.controlPoint = controlPoint;
 		this.mediaServer = mediaServer;
 		this.mediaFileLocator = mediaFileLocator;
 		this.stateStorage = playerStateStorage;
 		this.scheduledExecutor = scheduledExecutor;
+		this.rendererCapabilities = rendererCapabilities;
 	}
 
 	public void addAvTransport (final RemoteDevice device, final RemoteService avTransport, final Collection<PlayerRegister> playerRegisters) {
 		checkAlive();
 		final UDN udn = device.getIdentity().getUdn();
 		this.avTransports.put(udn, avTransport);
+		this.rendererCapabilities.learn(device);
 		for (final PlayerRegister playerRegister : playerRegisters) {
 			registerAvTransport(udn, playerRegister, avTransport);
 		}
@@ -105,12 +109,12 @@ public class PlayerHolder {
 		if (StringHelper.blank(System.getenv("DLNA_OLD_PLAYER"))) {
 			player = new GoalSeekingDlnaPlayer(register,
 					this.controlPoint, avTransport, this.mediaServer, this.mediaFileLocator,
-					this.scheduledExecutor);
+					this.rendererCapabilities, this.scheduledExecutor);
 		}
 		else {
 			player = new DlnaPlayer(register,
 					this.controlPoint, avTransport, this.mediaServer, this.mediaFileLocator,
-					this.scheduledExecutor);
+					this.rendererCapabilities, this.scheduledExecutor);
 		}
 
 		final PlayerState previousState = this.backedupPlayerState.get(UpnpHelper.remoteServiceUid(avTransport));
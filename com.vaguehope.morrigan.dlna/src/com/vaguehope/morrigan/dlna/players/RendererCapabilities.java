@@ -0,0 +1,154 @@
+package com.vaguehope.morrigan.dlna.players;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaguehope.morrigan.dlna.DlnaException;
+import com.vaguehope.morrigan.dlna.UpnpHelper;
+import com.vaguehope.morrigan.dlna.UserPrefs;
+import com.vaguehope.morrigan.dlna.util.LruMap;
+import com.vaguehope.morrigan.dlna.util.StringHelper;
+
+/**
+ * What each renderer says it can play.
+ * ConnectionManager GetProtocolInfo is asked once per renderer UDN and the answer is kept
+ * in UserPrefs, so players can pick a format up front instead of finding out from a failed
+ * SetAVTransportURI.
+ */
+public class RendererCapabilities {
+
+	private static final String PREF_SINK_PROTOCOLS = "sinkProtocols";
+	private static final int MAX_USER_AGENTS = 50;
+	private static final Logger LOG = LoggerFactory.getLogger(RendererCapabilities.class);
+
+	private final ControlPoint controlPoint;
+	private final ExecutorService executor;
+	private final ConcurrentMap<String, SinkProtocols> known = new ConcurrentHashMap<String, SinkProtocols>();
+	private final Set<String> fetching = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, String> addressToUdn = new ConcurrentHashMap<String, String>();
+	private final Map<String, SinkProtocols> userAgents = new LruMap<String, SinkProtocols>(10, MAX_USER_AGENTS);
+
+	public RendererCapabilities (final ControlPoint controlPoint, final ExecutorService executor) {
+		this.controlPoint = controlPoint;
+		this.executor = executor;
+	}
+
+	/**
+	 * Call when a renderer appears.
+	 * Loads what was saved for it, or if nothing was asks it in the background.
+	 */
+	public void learn (final RemoteDevice device) {
+		final String udn = udnOf(device);
+		final URL descriptorUrl = device.getIdentity().getDescriptorURL();
+		if (descriptorUrl != null) this.addressToUdn.put(descriptorUrl.getHost(), udn);
+		if (this.known.containsKey(udn)) return;
+
+		final SinkProtocols saved = readSaved(udn);
+		if (saved != null) {
+			this.known.put(udn, saved);
+			return;
+		}
+
+		final RemoteService connectionManager = UpnpHelper.findFirstServiceOfType(device, UpnpHelper.SERVICE_CONNECTIONMANAGER);
+		if (connectionManager == null) {
+			LOG.info("{} has no ConnectionManager, formats it accepts are unknown.", udn);
+			return;
+		}
+		if (!this.fetching.add(udn)) return;
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run () {
+				try {
+					fetch(udn, connectionManager);
+				}
+				finally {
+					RendererCapabilities.this.fetching.remove(udn);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns null if it is not known (yet) what this renderer accepts.
+	 */
+	public SinkProtocols forDevice (final RemoteDevice device) {
+		return this.known.get(udnOf(device));
+	}
+
+	/**
+	 * For when a renderer is also the control point, e.g. a TV browsing the library.
+	 * Matched on address, or failing that on a User-Agent previously seen from a known address.
+	 * Returns null if unknown.
+	 */
+	public SinkProtocols forClient (final InetAddress address, final String userAgent) {
+		SinkProtocols sink = null;
+		if (address != null) {
+			final String udn = this.addressToUdn.get(address.getHostAddress());
+			if (udn != null) sink = this.known.get(udn);
+		}
+		if (StringHelper.blank(userAgent)) return sink;
+		synchronized (this.userAgents) {
+			if (sink != null) {
+				this.userAgents.put(userAgent, sink);
+			}
+			else {
+				sink = this.userAgents.get(userAgent);
+			}
+		}
+		return sink;
+	}
+
+	private void fetch (final String udn, final RemoteService connectionManager) {
+		final SinkProtocols sink;
+		try {
+			sink = new ConnectionManagerActions(this.controlPoint, connectionManager).getSinkProtocols();
+		}
+		catch (final DlnaException e) {
+			LOG.info("Failed to read sink protocols for {}: {}", udn, e.toString());
+			return;
+		}
+		if (sink.isEmpty()) {
+			LOG.info("{} listed no http-get sink protocols, ignoring: {}", udn, sink);
+			return;
+		}
+		this.known.put(udn, sink);
+		LOG.info("{} accepts: {}", udn, sink);
+		try {
+			UserPrefs.INSTANCE.putValue(PREF_SINK_PROTOCOLS, udn, sink.toString());
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to save sink protocols for {}: {}", udn, e.toString());
+		}
+	}
+
+	private static SinkProtocols readSaved (final String udn) {
+		try {
+			final String raw = UserPrefs.INSTANCE.getValue(PREF_SINK_PROTOCOLS, udn, null);
+			if (raw == null) return null;
+			final SinkProtocols sink = SinkProtocols.parse(raw);
+			return sink.isEmpty() ? null : sink;
+		}
+		catch (final IOException e) {
+			LOG.warn("Failed to read saved sink protocols for {}: {}", udn, e.toString());
+			return null;
+		}
+	}
+
+	private static String udnOf (final RemoteDevice device) {
+		return device.getIdentity().getUdn().getIdentifierString();
+	}
+
+}
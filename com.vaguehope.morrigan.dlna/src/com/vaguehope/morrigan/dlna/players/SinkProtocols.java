@@ -0,0 +1,107 @@
+package com.vaguehope.morrigan.dlna.players;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A renderer's sink protocol list as returned by ConnectionManager GetProtocolInfo,
+ * e.g. http-get:*:audio/mpeg:*,http-get:*:audio/flac:DLNA.ORG_PN=FLAC
+ */
+public final class SinkProtocols {
+
+	private static final String HTTP_GET = "http-get";
+	private static final String ANY = "*";
+
+	/**
+	 * Renderers list the same format under different names, and rarely the one MediaFormat uses,
+	 * so each name is matched as the first in its group.
+	 * audio/L16 is not a WAV alias: it is raw big-endian PCM, not a RIFF file.
+	 */
+	private static final String[][] ALIAS_GROUPS = new String[][] {
+			{ "audio/flac", "audio/x-flac" },
+			{ "audio/vnd.wave", "audio/wav", "audio/wave", "audio/x-wav" },
+			{ "audio/mp4", "audio/x-m4a", "audio/m4a" },
+			{ "audio/mpeg", "audio/mp3", "audio/x-mp3", "audio/mpeg3" },
+			{ "video/x-matroska", "video/x-mkv", "video/mkv" },
+			{ "video/avi", "video/x-msvideo", "video/msvideo" },
+	};
+	private static final Map<String, String> ALIASES = makeAliases();
+
+	private final String raw;
+	private final List<String> httpGetFormats;
+
+	private SinkProtocols (final String raw, final List<String> httpGetFormats) {
+		this.raw = raw;
+		this.httpGetFormats = httpGetFormats;
+	}
+
+	/**
+	 * Entries that can not be parsed are skipped.
+	 */
+	public static SinkProtocols parse (final String raw) {
+		final List<String> formats = new ArrayList<String>();
+		if (raw != null) {
+			for (final String entry : raw.split(",")) {
+				final String[] parts = entry.trim().split(":", 4);
+				if (parts.length < 4 || !HTTP_GET.equalsIgnoreCase(parts[0])) continue;
+				final String format = canonicalMimeType(parts[2]);
+				if (format.length() > 0) formats.add(format);
+			}
+		}
+		return new SinkProtocols(raw != null ? raw : "", Collections.unmodifiableList(formats));
+	}
+
+	/**
+	 * True if the renderer takes nothing over HTTP, or said nothing at all.
+	 */
+	public boolean isEmpty () {
+		return this.httpGetFormats.isEmpty();
+	}
+
+	/**
+	 * True if the renderer says it will fetch this MIME type over HTTP.
+	 * Wildcards like * and audio/* match.
+	 */
+	public boolean accepts (final String mimeType) {
+		final String want = canonicalMimeType(mimeType);
+		final String wantTypeAny = want.substring(0, want.indexOf('/') + 1) + ANY;
+		for (final String format : this.httpGetFormats) {
+			if (ANY.equals(format) || format.equals(want) || format.equals(wantTypeAny)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * As passed to parse().
+	 */
+	@Override
+	public String toString () {
+		return this.raw;
+	}
+
+	private static Map<String, String> makeAliases () {
+		final Map<String, String> m = new HashMap<String, String>();
+		for (final String[] group : ALIAS_GROUPS) {
+			for (final String alias : group) {
+				m.put(alias, group[0]);
+			}
+		}
+		return Collections.unmodifiableMap(m);
+	}
+
+	private static String canonicalMimeType (final String mimeType) {
+		final String normalised = normaliseMimeType(mimeType);
+		final String canonical = ALIASES.get(normalised);
+		return canonical != null ? canonical : normalised;
+	}
+
+	private static String normaliseMimeType (final String mimeType) {
+		final int x = mimeType.indexOf(';');
+		return (x >= 0 ? mimeType.substring(0, x) : mimeType).trim().toLowerCase(Locale.ENGLISH);
+	}
+
+}